@@ -0,0 +1,204 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delivers TreeEvents to monitors on an Executor, so slow monitors do not hold up the BlockTree.<br>
+ * <br>
+ * Events are queued in a bounded ring buffer and delivered in order.  Each drain task delivers every event which is
+ * queued when it runs.  When the buffer is full, the backpressure policy decides whether the tree waits, the oldest
+ * event is dropped or the new event is merged into the newest queued event.
+ */
+public class AsyncTreeEventBus implements TreeEventMonitor {
+
+	public static enum Backpressure {
+		/**
+		 * The thread posting the event waits for space in the buffer
+		 */
+		BLOCK,
+		/**
+		 * The oldest queued event is dropped
+		 */
+		DROP_OLDEST,
+		/**
+		 * The new event is merged into the newest queued event, so no changes are lost
+		 */
+		COALESCE
+	}
+
+	private final Object lock = new Object();
+
+	private final List<TreeEventMonitor> monitors = new CopyOnWriteArrayList<TreeEventMonitor>();
+
+	private final Executor executor;
+	private final Backpressure backpressure;
+	private final TreeEvent[] ring;
+	private final Runnable drainer = new Drainer();
+
+	private int head = 0;
+	private int count = 0;
+	private boolean scheduled = false;
+
+	private long dropped = 0;
+	private long coalesced = 0;
+
+	public AsyncTreeEventBus(Executor executor, int capacity, Backpressure backpressure) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		this.executor = executor;
+		this.ring = new TreeEvent[capacity];
+		this.backpressure = backpressure;
+	}
+
+	/**
+	 * Adds a monitor which receives events from the bus
+	 *
+	 * @param monitor
+	 * @return
+	 */
+	public boolean addMonitor(TreeEventMonitor monitor) {
+		if (monitors.contains(monitor)) {
+			return false;
+		}
+		return monitors.add(monitor);
+	}
+
+	/**
+	 * Removes a monitor from the bus
+	 *
+	 * @param monitor
+	 * @return
+	 */
+	public boolean removeMonitor(TreeEventMonitor monitor) {
+		return monitors.remove(monitor);
+	}
+
+	/**
+	 * Queues an event for delivery
+	 *
+	 * @param event
+	 */
+	@Override
+	public void handle(TreeEvent event) {
+		boolean schedule;
+		synchronized (lock) {
+			while (count == ring.length) {
+				if (backpressure == Backpressure.COALESCE) {
+					int tail = (head + count - 1) % ring.length;
+					ring[tail] = ring[tail].merge(event);
+					coalesced++;
+					return;
+				} else if (backpressure == Backpressure.DROP_OLDEST) {
+					ring[head] = null;
+					head = (head + 1) % ring.length;
+					count--;
+					dropped++;
+				} else {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						dropped++;
+						return;
+					}
+				}
+			}
+			ring[(head + count) % ring.length] = event;
+			count++;
+			schedule = !scheduled;
+			scheduled = true;
+		}
+		if (schedule) {
+			try {
+				executor.execute(drainer);
+			} catch (RejectedExecutionException e) {
+				// Nothing will deliver the queued events, so they are dropped and the next event tries again
+				synchronized (lock) {
+					for (int i = 0; i < count; i++) {
+						ring[(head + i) % ring.length] = null;
+					}
+					dropped += count;
+					head = 0;
+					count = 0;
+					scheduled = false;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of events which are waiting for delivery
+	 *
+	 * @return
+	 */
+	public int getPending() {
+		synchronized (lock) {
+			return count;
+		}
+	}
+
+	/**
+	 * Gets the number of events which were dropped because the buffer was full
+	 *
+	 * @return
+	 */
+	public long getDropped() {
+		synchronized (lock) {
+			return dropped;
+		}
+	}
+
+	/**
+	 * Gets the number of events which were merged into a queued event because the buffer was full
+	 *
+	 * @return
+	 */
+	public long getCoalesced() {
+		synchronized (lock) {
+			return coalesced;
+		}
+	}
+
+	private class Drainer implements Runnable {
+
+		@Override
+		public void run() {
+			while (true) {
+				TreeEvent[] batch;
+				synchronized (lock) {
+					if (count == 0) {
+						scheduled = false;
+						return;
+					}
+					batch = new TreeEvent[count];
+					for (int i = 0; i < count; i++) {
+						int slot = (head + i) % ring.length;
+						batch[i] = ring[slot];
+						ring[slot] = null;
+					}
+					head = (head + count) % ring.length;
+					count = 0;
+					lock.notifyAll();
+				}
+				for (TreeEvent event : batch) {
+					for (TreeEventMonitor monitor : monitors) {
+						// A failing monitor must not stop delivery to the other monitors or of later events
+						try {
+							monitor.handle(event);
+						} catch (RuntimeException e) {
+							Thread t = Thread.currentThread();
+							t.getUncaughtExceptionHandler().uncaughtException(t, e);
+						}
+					}
+				}
+			}
+		}
+
+	}
+
+}
@@ -1,45 +1,195 @@
 package org.tiernolan.bitcoin.util.chain;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.tiernolan.bitcoin.util.protocol.Message;
 import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
 import org.tiernolan.bitcoin.util.protocol.types.Hash;
 import org.tiernolan.bitcoin.util.protocol.types.TargetBits;
 
+/**
+ * A tree of BlockHeaders, which tracks the main chain with the most proof of work.<br>
+ * <br>
+ * Writers are serialized by the tree's lock.  The main chain is published as an immutable MainChain snapshot each
+ * time its tip changes, so main chain and header lookups never block, even during a reorg.
+ */
 public class BlockTree {
 	
-	private BigInteger bestPOW = BigInteger.ZERO;
+	/**
+	 * The prune depth which disables pruning
+	 */
+	public static final int NO_PRUNING = 0;
+	
+	private static final int RETARGET_CACHE_SIZE = 64;
+	
+	private ChainWork bestPOW = ChainWork.ZERO;
+	
+	private final OrphanPool orphans = new OrphanPool();
 	
-	private final HashMap<Hash, BlockHeader> orphanHeaders = new HashMap<Hash, BlockHeader>();
+	private final HashIndex index = new HashIndex();
 	
-	private final HashMap<Hash, BlockTreeLink> tree = new HashMap<Hash, BlockTreeLink>();
+	private volatile BlockTreeLink[] nodes = new BlockTreeLink[1024];
 	
-	private final ArrayList<BlockTreeLink> mainChain = new ArrayList<BlockTreeLink>();
+	private volatile int[] heights = new int[1024];
+	
+	private final MainChain.Builder mainChain;
+	
+	private volatile MainChain mainSnapshot;
 
 	private final BigInteger maxPOW;
 	
 	private final boolean checkPOW;
 	
+	private final HeaderStore store;
+	
+	private final int pruneDepth;
+	
+	private int firstLiveId = 0;
+	
+	private final HashMap<Integer, Integer> prunedPeriodStarts = new HashMap<Integer, Integer>();
+	
+	@SuppressWarnings("serial")
+	private final Map<Integer, Integer> retargetCache = new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+			return size() > RETARGET_CACHE_SIZE;
+		}
+	};
+	
 	private ArrayList<TreeMonitor> treeMonitors = new ArrayList<TreeMonitor>(1);
 	
+	private ArrayList<TreeEventMonitor> eventMonitors = new ArrayList<TreeEventMonitor>(1);
+	
 	private BlockTreeLink mainLeaf;
 	
+	private BlockTreeLink bestLeaf;
+	
 	public BlockTree(BlockHeader genesis, BigInteger minPOW) {
 		this(genesis, minPOW, true);
 	}
 	
 	public BlockTree(BlockHeader genesis, BigInteger maxPOW, boolean checkPOW) {
-		this.mainLeaf = new BlockTreeLink(null, genesis, BigInteger.ZERO, 0);
-		this.tree.put(genesis.getBlockHash(), mainLeaf);
+		this(genesis, maxPOW, checkPOW, NO_PRUNING);
+	}
+	
+	/**
+	 * Creates a BlockTree which prunes headers which are more than pruneDepth below the tip of the main chain.  
+	 * Only the hashes of pruned main chain headers are kept, and forks which branch below the pruned height are 
+	 * dropped.
+	 * 
+	 * @param genesis
+	 * @param maxPOW
+	 * @param checkPOW
+	 * @param pruneDepth the prune depth, or NO_PRUNING
+	 */
+	public BlockTree(BlockHeader genesis, BigInteger maxPOW, boolean checkPOW, int pruneDepth) {
+		this.mainChain = new MainChain.Builder(index, 0);
+		this.mainLeaf = new BlockTreeLink(null, genesis, ChainWork.ZERO, 0);
+		addLink(genesis.getBlockHash(), mainLeaf);
+		this.bestLeaf = mainLeaf;
 		this.mainChain.add(mainLeaf);
+		this.mainSnapshot = mainChain.snapshot();
+		this.checkPOW = checkPOW;
+		this.maxPOW = maxPOW;
+		this.store = null;
+		this.pruneDepth = checkPruneDepth(pruneDepth);
+	}
+	
+	/**
+	 * Creates a BlockTree which starts from a trusted checkpoint rather than the genesis block.  The checkpoint 
+	 * headers are added to the tree as the start of the main chain.
+	 * 
+	 * @param checkpoint
+	 * @param maxPOW
+	 * @param checkPOW
+	 * @param pruneDepth the prune depth, or NO_PRUNING
+	 */
+	public BlockTree(Checkpoint checkpoint, BigInteger maxPOW, boolean checkPOW, int pruneDepth) {
+		this.checkPOW = checkPOW;
+		this.maxPOW = maxPOW;
+		this.store = null;
+		this.pruneDepth = checkPruneDepth(pruneDepth);
+		
+		BlockHeader[] headers = checkpoint.getHeaders();
+		int base = checkpoint.getBaseHeight();
+		this.mainChain = new MainChain.Builder(index, base);
+		
+		ChainWork work = checkpoint.getWork();
+		for (int i = headers.length - 1; i > 0; i--) {
+			work = work.subtract(ChainWork.fromTarget(headers[i].getTarget()));
+		}
+		
+		BlockTreeLink link = new BlockTreeLink(null, headers[0], work, base);
+		addLink(headers[0].getBlockHash(), link);
+		mainChain.add(link);
+		for (int i = 1; i < headers.length; i++) {
+			work = work.add(ChainWork.fromTarget(headers[i].getTarget()));
+			BlockTreeLink next = new BlockTreeLink(link, headers[i], work, base + i);
+			link.addChild(next);
+			link.setMainChild(next);
+			addLink(headers[i].getBlockHash(), next);
+			mainChain.add(next);
+			link = next;
+		}
+		
+		this.mainLeaf = link;
+		this.bestLeaf = link;
+		this.bestPOW = work;
+		this.mainSnapshot = mainChain.snapshot();
+	}
+	
+	/**
+	 * Creates a BlockTree which keeps its headers in a HeaderStore rather than on the heap.<br>
+	 * <br>
+	 * If the store already contains headers, the tree is rebuilt from the store.  Stored headers were checked when 
+	 * they were first added to the tree, so proof of work and difficulty are not checked again.
+	 * 
+	 * @param store
+	 * @param genesis
+	 * @param maxPOW
+	 * @param checkPOW
+	 * @throws IOException if the store does not contain a valid tree for the genesis block
+	 */
+	public BlockTree(HeaderStore store, BlockHeader genesis, BigInteger maxPOW, boolean checkPOW) throws IOException {
+		this(store, genesis, maxPOW, checkPOW, NO_PRUNING);
+	}
+	
+	/**
+	 * Creates a BlockTree which keeps its headers in a HeaderStore and prunes links which are more than pruneDepth 
+	 * below the tip of the main chain.  Pruned headers remain in the store.
+	 * 
+	 * @param store
+	 * @param genesis
+	 * @param maxPOW
+	 * @param checkPOW
+	 * @param pruneDepth the prune depth, or NO_PRUNING
+	 * @throws IOException if the store does not contain a valid tree for the genesis block
+	 */
+	public BlockTree(HeaderStore store, BlockHeader genesis, BigInteger maxPOW, boolean checkPOW, int pruneDepth) throws IOException {
 		this.checkPOW = checkPOW;
 		this.maxPOW = maxPOW;
+		this.store = store;
+		this.pruneDepth = checkPruneDepth(pruneDepth);
+		this.mainChain = new MainChain.Builder(index, 0);
+		if (store.size() == 0) {
+			store.setMainRecord(0, store.append(genesis));
+			store.setMainLength(1);
+		} else if (!genesis.equals(store.get(0))) {
+			throw new IOException("Genesis block does not match the first header in the store");
+		}
+		this.mainLeaf = new BlockTreeLink(null, store, 0, ChainWork.ZERO, 0);
+		addLink(genesis.getBlockHash(), mainLeaf);
+		this.mainChain.add(mainLeaf);
+		load();
+		prune();
 	}
 	
 	/**
@@ -67,35 +217,67 @@ public class BlockTree {
 		return treeMonitors.remove(monitor);
 	}
 	
+	/**
+	 * Adds the monitor to the list of tree event monitors.  Event monitors are called once for each change to the 
+	 * main chain, while the tree's lock is held.  An AsyncTreeEventBus can be used to deliver the events on another 
+	 * thread.
+	 * 
+	 * @param monitor
+	 * @return
+	 */
+	public synchronized boolean addTreeEventMonitor(TreeEventMonitor monitor) {
+		for (TreeEventMonitor m : eventMonitors) {
+			if (m == monitor) {
+				return false;
+			}
+		}
+		return eventMonitors.add(monitor);
+	}
+	
+	/**
+	 * Removes the monitor from the list of tree event monitors
+	 * 
+	 * @param monitor
+	 * @return
+	 */
+	public synchronized boolean removeTreeEventMonitor(TreeEventMonitor monitor) {
+		return eventMonitors.remove(monitor);
+	}
+	
+	/**
+	 * Gets the current snapshot of the main chain.  The snapshot does not change, so it can be used for several 
+	 * queries which must see the same chain.
+	 * 
+	 * @return
+	 */
+	public MainChain getMainChain() {
+		return mainSnapshot;
+	}
+	
 	/**
 	 * Gets the BlockHeader on the main chain with height index
 	 * 
 	 * @param index the height, the genesis block is zero
 	 * @return
 	 */
-	public synchronized BlockHeader getHeader(int index) {
-		if (index < 0) {
-			throw new IllegalArgumentException("Negative block indexes are invalid");
-		} else if (index >= mainChain.size()) {
-			return null;
-		}
-		return mainChain.get(index).getHeader();
+	public BlockHeader getHeader(int index) {
+		return mainSnapshot.getHeader(index);
 	}
 	
 	/**
 	 * Gets the previous BlockHeader from a BlockHeader.
 	 * 
 	 * @param header
-	 * @return
+	 * @return the parent, or null if the header is not in the tree or is the first unpruned header
 	 */
-	public synchronized BlockHeader getParent(BlockHeader header) {
-		BlockTreeLink link = tree.get(header.getBlockHash());
+	public BlockHeader getParent(BlockHeader header) {
+		BlockTreeLink link = getLink(header.getBlockHash());
 		if (link == null) {
 			return null;
 		}
 		BlockTreeLink parent = link.getPrevious();
 		if (parent == null) {
-			throw new IllegalStateException("Non-genesis block header has no parent");
+			return null;
 		}
 		return parent.getHeader();
 	}
@@ -106,16 +288,13 @@ public class BlockTree {
 	 * @param header
 	 * @return
 	 */
-	public synchronized BlockHeader getNext(BlockHeader header) {
-		BlockTreeLink link = tree.get(header.getBlockHash());
-		if (link == null) {
-			return null;
-		}
-		BlockTreeLink next = link.getMainChild();
-		if (next == null) {
+	public BlockHeader getNext(BlockHeader header) {
+		MainChain main = mainSnapshot;
+		int height = getMainHeight(header.getBlockHash(), main);
+		if (height < 0) {
 			return null;
 		}
-		return next.getHeader();
+		return main.getHeader(height + 1);
 	}
 	
 	/**
@@ -124,12 +303,51 @@ public class BlockTree {
 	 * @param header
 	 * @return
 	 */
-	public synchronized boolean isOnMain(BlockHeader header) {
-		BlockTreeLink link = tree.get(header.getBlockHash());
+	public boolean isOnMain(BlockHeader header) {
+		return getMainHeight(header.getBlockHash(), mainSnapshot) >= 0;
+	}
+	
+	/**
+	 * Gets the ancestor of a BlockHeader at a height.  The header does not need to be on the main chain.
+	 * 
+	 * @param header
+	 * @param height
+	 * @return the ancestor, or null if the header is not in the tree or the height is above the header
+	 */
+	public BlockHeader getAncestor(BlockHeader header, int height) {
+		BlockTreeLink link = getLink(header.getBlockHash());
 		if (link == null) {
-			return false;
+			return null;
+		}
+		MainChain main = mainSnapshot;
+		if (height >= 0 && height <= link.getHeight() && main.contains(link)) {
+			return main.getHeader(height);
+		}
+		BlockTreeLink ancestor = link.getAncestor(height);
+		if (ancestor == null) {
+			return null;
+		}
+		return ancestor.getHeader();
+	}
+	
+	/**
+	 * Finds the last common ancestor of two BlockHeaders
+	 * 
+	 * @param a
+	 * @param b
+	 * @return the fork point, or null if either header is not in the tree
+	 */
+	public BlockHeader findFork(BlockHeader a, BlockHeader b) {
+		BlockTreeLink linkA = getLink(a.getBlockHash());
+		BlockTreeLink linkB = getLink(b.getBlockHash());
+		if (linkA == null || linkB == null) {
+			return null;
 		}
-		return link.isOnMain();
+		BlockTreeLink fork = BlockTreeLink.findFork(linkA, linkB);
+		if (fork == null) {
+			return null;
+		}
+		return fork.getHeader();
 	}
 	
 	/**
@@ -139,7 +357,7 @@ public class BlockTree {
 	 * @return
 	 */
 	public synchronized Collection<BlockHeader> getAllNext(BlockHeader header) {
-		BlockTreeLink link = tree.get(header.getBlockHash());
+		BlockTreeLink link = getLink(header.getBlockHash());
 		if (link == null) {
 			return null;
 		}
@@ -160,11 +378,16 @@ public class BlockTree {
 	 * @param header
 	 * @return
 	 */
-	public synchronized int getHeight(BlockHeader header) {
-		BlockTreeLink link = tree.get(header.getBlockHash());
-		if (link == null) {
+	public int getHeight(BlockHeader header) {
+		int id = index.get(header.getBlockHash());
+		if (id < 0) {
 			return -1;
 		}
+		BlockTreeLink link = nodes[id];
+		if (link == null) {
+			// Pruned main chain headers keep their height, pruned forks do not
+			return heights[id];
+		}
 		return link.getHeight();
 	}
 	
@@ -174,15 +397,13 @@ public class BlockTree {
 	 * @param header
 	 * @return
 	 */
-	public synchronized int getConfirms(BlockHeader header) {
-		BlockTreeLink link = tree.get(header.getBlockHash());
-		if (link == null) {
-			return -1;
-		}
-		if (!link.isOnMain()) {
+	public int getConfirms(BlockHeader header) {
+		MainChain main = mainSnapshot;
+		int height = getMainHeight(header.getBlockHash(), main);
+		if (height < 0) {
 			return -1;
 		}
-		return getHeight() - link.getHeight();
+		return main.getLength() - height;
 	}
 	
 	/**
@@ -198,123 +419,261 @@ public class BlockTree {
 			throw new IllegalArgumentException("Cannot add null header");
 		}
 		
-		while (header != null) {
-
-			if (checkPOW && !header.checkPOW()) {
+		return addAll(new BlockHeader[] {header});
+		
+	}
+	
+	/**
+	 * Adds a batch of BlockHeaders to the tree.<br>
+	 * <br>
+	 * Each header in the batch must connect to the header before it.  Proof of work and linkage are checked for the 
+	 * whole batch before any header is added.  The main chain is updated once, after all the headers are added, and 
+	 * the tree monitors are notified of the combined change.
+	 * 
+	 * @param headers
+	 * @return true if any of the BlockHeaders were added to the tree or the orphan store
+	 * @throws MisbehaveException
+	 */
+	public synchronized boolean addAll(BlockHeader[] headers) throws MisbehaveException {
+		
+		for (int i = 0; i < headers.length; i++) {
+			if (headers[i] == null) {
+				throw new IllegalArgumentException("Cannot add null header");
+			}
+			if (checkPOW && !headers[i].checkPOW()) {
 				throw new MisbehaveException(MisbehaveException.CRITICAL, "Insufficient proof of work");
 			}
-
-			Hash prevHash = header.getPrevious();
-			BlockTreeLink prevLink = tree.get(prevHash);
+			if (i > 0 && !headers[i].getPrevious().equals(headers[i - 1].getBlockHash())) {
+				throw new MisbehaveException(MisbehaveException.WARN, "Header batch is not a connected sequence");
+			}
+		}
+		
+		boolean added = false;
+		
+		try {
+			for (BlockHeader header : headers) {
+				added |= insert(header);
+			}
+		} finally {
+			if (bestLeaf != mainLeaf) {
+				setMainLeaf(bestLeaf);
+				prune();
+			}
+		}
+		
+		return added;
+		
+	}
+	
+	/**
+	 * Inserts a BlockHeader into the tree, along with any orphans which it connects.  The link with the most POW is 
+	 * recorded as the best leaf, but the main chain is not updated.
+	 * 
+	 * @param header
+	 * @return true if the BlockHeader was added to the tree or the orphan store
+	 * @throws MisbehaveException
+	 */
+	private boolean insert(BlockHeader header) throws MisbehaveException {
+		
+		if (index.get(header.getBlockHash()) >= 0) {
+			return false;
+		}
+		
+		Hash prevHash = header.getPrevious();
+		BlockTreeLink prevLink = getLink(prevHash);
+		if (prevLink == null) {
+			return orphans.add(header);
+		}
+		
+		if (!insertLink(prevLink, header)) {
+			return false;
+		}
+		
+		for (BlockHeader orphan : orphans.resolve(header.getBlockHash())) {
+			prevLink = getLink(orphan.getPrevious());
 			if (prevLink == null) {
-				return orphanHeaders.put(prevHash, header) == null;
+				// The orphan's parent was rejected
+				continue;
 			}
-
-			if (checkPOW) {
-				TargetBits expectedTarget = getRetarget(prevLink);
-				if (!expectedTarget.equals(header.getTarget())) {
-					throw new MisbehaveException(MisbehaveException.CRITICAL, "Incorrect difficulty value");
-				}
+			try {
+				insertLink(prevLink, orphan);
+			} catch (MisbehaveException e) {
+				// The orphan may have come from a different peer
 			}
-			
-			Hash blockHash = header.getBlockHash();
-			
-			if (tree.containsKey(blockHash)) {
-				return false;
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Adds a link for a BlockHeader to the tree
+	 * 
+	 * @param prevLink
+	 * @param header
+	 * @return false if the BlockHeader was already in the tree
+	 * @throws MisbehaveException
+	 */
+	private boolean insertLink(BlockTreeLink prevLink, BlockHeader header) throws MisbehaveException {
+		
+		if (checkPOW) {
+			if (getRetarget(prevLink) != header.getTarget().getBits()) {
+				throw new MisbehaveException(MisbehaveException.CRITICAL, "Incorrect difficulty value");
 			}
+		}
+		
+		Hash blockHash = header.getBlockHash();
+		
+		if (index.get(blockHash) >= 0) {
+			return false;
+		}
 
-			BigInteger blockPOW = header.getBlockWork();
-			
-			BigInteger parentPOW = prevLink.getPOW();
-			
-			BigInteger newPOW = blockPOW.add(parentPOW);
-			
-			BlockTreeLink link = new BlockTreeLink(prevLink, header, newPOW, prevLink.getHeight() + 1);
-
-			prevLink.addChild(link);
-			
-			if (tree.put(blockHash, link) != null) {
-				throw new IllegalStateException("Header added to chain twice");
-			}
+		ChainWork newPOW = prevLink.getPOW().add(ChainWork.fromTarget(header.getTarget()));
+		
+		BlockTreeLink link;
+		if (store == null) {
+			link = new BlockTreeLink(prevLink, header, newPOW, prevLink.getHeight() + 1);
+		} else {
+			link = new BlockTreeLink(prevLink, store, store.append(header), newPOW, prevLink.getHeight() + 1);
+		}
 
-			if (newPOW.compareTo(bestPOW) > 0) {
-				bestPOW = newPOW;
-				BlockTreeLink oldPath = mainLeaf;
-				BlockTreeLink newPath = link;
+		prevLink.addChild(link);
+		
+		addLink(blockHash, link);
 
-				while (mainChain.size() < newPath.getHeight() + 1) {
-					mainChain.add(null);
-				}
+		if (newPOW.compareTo(bestPOW) > 0) {
+			bestPOW = newPOW;
+			bestLeaf = link;
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Moves the main chain to a new leaf and notifies the tree monitors of the headers which were replaced and added.
+	 * 
+	 * @param leaf
+	 */
+	private void setMainLeaf(BlockTreeLink leaf) {
+		BlockTreeLink oldPath = mainLeaf;
+		BlockTreeLink newPath = leaf;
 
-				while (mainChain.size() > newPath.getHeight() + 1) {
-					mainChain.remove(mainChain.size() - 1);
-				}
+		// Store backed headers are only decoded if a monitor will receive them
+		boolean notifyMonitors = !treeMonitors.isEmpty() || !eventMonitors.isEmpty();
 
-				boolean done = false;
-				
-				LinkedList<BlockHeader> reorgReplaced = new LinkedList<BlockHeader>();
-				LinkedList<BlockHeader> reorgNew = new LinkedList<BlockHeader>();
-				
-				while (!done) {
-					while (oldPath.getHeight() > newPath.getHeight()) {
-						reorgReplaced.add(oldPath.getHeader());
-						oldPath.setOnFork();
-						oldPath = oldPath.getPrevious();
-					}
-					
-					done = oldPath == newPath;
-					
-					if (!done) {
-						mainChain.set(newPath.getHeight(), newPath);
-						reorgNew.addFirst(newPath.getHeader());
-						
-						if (!newPath.getPrevious().setMainChild(newPath)) {
-							throw new IllegalStateException("Link not correctly recorded on parent link");
-						}
-						
-						newPath = newPath.getPrevious();
-					}
-				}
-				for (TreeMonitor m : treeMonitors) {
-					for (BlockHeader h : reorgReplaced) {
-						m.handle(h, true);
-					}
-					for (BlockHeader h : reorgNew) {
-						m.handle(h, false);
-					}
+		LinkedList<BlockHeader> reorgReplaced = new LinkedList<BlockHeader>();
+		LinkedList<BlockTreeLink> reorgNewLinks = new LinkedList<BlockTreeLink>();
+		
+		while (oldPath != newPath) {
+			if (oldPath.getHeight() > newPath.getHeight()) {
+				if (notifyMonitors) {
+					reorgReplaced.add(oldPath.getHeader());
 				}
-				mainLeaf = link;
+				oldPath.setOnFork();
+				oldPath = oldPath.getPrevious();
 			} else {
-				link.setOnFork();
+				reorgNewLinks.addFirst(newPath);
+				newPath = newPath.getPrevious();
 			}
-
-			header = orphanHeaders.remove(header.getBlockHash());
-
 		}
 		
-		return true;
+		mainChain.truncate(newPath.getHeight() + 1);
+		
+		LinkedList<BlockHeader> reorgNew = new LinkedList<BlockHeader>();
 		
+		for (BlockTreeLink l : reorgNewLinks) {
+			if (!l.getPrevious().setMainChild(l)) {
+				throw new IllegalStateException("Link not correctly recorded on parent link");
+			}
+			mainChain.add(l);
+			if (notifyMonitors) {
+				reorgNew.add(l.getHeader());
+			}
+			if (store != null) {
+				store.setMainRecord(l.getHeight(), l.getRecord());
+			}
+		}
+		if (store != null) {
+			store.setMainLength(mainChain.size());
+		}
+		mainSnapshot = mainChain.snapshot();
+		mainLeaf = leaf;
+		for (TreeMonitor m : treeMonitors) {
+			for (BlockHeader h : reorgReplaced) {
+				m.handle(h, true);
+			}
+			for (BlockHeader h : reorgNew) {
+				m.handle(h, false);
+			}
+		}
+		if (!eventMonitors.isEmpty()) {
+			TreeEvent event = new TreeEvent(reorgReplaced, reorgNew);
+			for (TreeEventMonitor m : eventMonitors) {
+				// The tree has already changed, so a failing monitor must not abort the writer
+				try {
+					m.handle(event);
+				} catch (RuntimeException e) {
+					Thread t = Thread.currentThread();
+					t.getUncaughtExceptionHandler().uncaughtException(t, e);
+				}
+			}
+		}
 	}
 	
 	/**
 	 * Gets a set of Hashes for the block locator field.<br>
 	 * <br>
-	 * The last 10 hashes on the main chain are included, and then the step size doubles.
+	 * The last 10 hashes on the main chain are included, and then the step size doubles.  The array is a copy of 
+	 * the shared locator from getLocator().
 	 * 
 	 * @return
 	 */
-	public synchronized Hash[] getBlockLocator() {
-		List<Hash> locators = new ArrayList<Hash>(20);
-		int h;
-		for (h = getHeight() - 1; h >= 0 && h > getHeight() - 10; h--) {
-			locators.add(this.getHeader(h).getBlockHash());
+	public Hash[] getBlockLocator() {
+		return mainSnapshot.getLocator().toArray(new Hash[0]);
+	}
+	
+	/**
+	 * Gets the block locator for the main chain as a shared, unmodifiable list.  The list is built once for each tip
+	 * of the main chain, so callers do not need to copy it.
+	 * 
+	 * @return
+	 */
+	public List<Hash> getLocator() {
+		return mainSnapshot.getLocator();
+	}
+
+	/**
+	 * Gets a set of Hashes for the block locator field, starting from a BlockHeader which may be on a fork.  The 
+	 * ancestors are found using skip links.
+	 * 
+	 * @param tip
+	 * @return the locator, or null if the header is not in the tree
+	 */
+	public Hash[] getBlockLocator(BlockHeader tip) {
+		BlockTreeLink link = getLink(tip.getBlockHash());
+		if (link == null) {
+			return null;
 		}
+		MainChain main = mainSnapshot;
+		int base = main.getBase();
+		List<Hash> locators = new ArrayList<Hash>(20);
+		int h = link.getHeight();
 		int step = 1;
-		for (; h > 0; h -= step) {
-			locators.add(this.getHeader(h).getBlockHash());
-			step = step << 1;
+		while (true) {
+			// Links below the first unpruned link are on the main chain
+			locators.add(link != null ? getHash(link) : main.getHash(h));
+			if (h <= base) {
+				break;
+			}
+			if (locators.size() >= 10) {
+				step = step << 1;
+			}
+			h = Math.max(base, h - step);
+			if (link != null) {
+				link = link.getAncestor(h);
+			}
 		}
-		locators.add(getHeader(0).getBlockHash());
 		return locators.toArray(new Hash[0]);
 	}
 
@@ -323,25 +682,267 @@ public class BlockTree {
 	 * 
 	 * @return
 	 */
-	public synchronized int getHeight() {
-		return mainChain.size();
+	public int getHeight() {
+		return mainSnapshot.getLength();
+	}
+	
+	/**
+	 * Rebuilds the tree from the header store.  The records are in the order that the headers were connected, so 
+	 * each parent is loaded before its children and ties in POW are resolved in favour of the first header seen.
+	 * 
+	 * @throws IOException
+	 */
+	private void load() throws IOException {
+		int size = store.size();
+		BlockTreeLink[] links = new BlockTreeLink[size];
+		links[0] = mainLeaf;
+		BlockTreeLink best = mainLeaf;
+		for (int record = 1; record < size; record++) {
+			BlockHeader header = store.get(record);
+			BlockTreeLink prevLink = getLink(header.getPrevious());
+			if (prevLink == null) {
+				throw new IOException("Stored header at record " + record + " does not connect to the tree");
+			}
+			ChainWork pow = prevLink.getPOW().add(ChainWork.fromTarget(header.getTarget()));
+			BlockTreeLink link = new BlockTreeLink(prevLink, store, record, pow, prevLink.getHeight() + 1);
+			Hash blockHash = header.getBlockHash();
+			if (index.get(blockHash) >= 0) {
+				throw new IOException("Stored header at record " + record + " is a duplicate");
+			}
+			prevLink.addChild(link);
+			addLink(blockHash, link);
+			links[record] = link;
+			if (pow.compareTo(best.getPOW()) > 0) {
+				best = link;
+			}
+		}
+		
+		int length = store.getMainLength();
+		int indexedRecord = store.getMainRecord(length - 1);
+		if (indexedRecord > 0 && indexedRecord < size) {
+			BlockTreeLink indexed = links[indexedRecord];
+			if (indexed.getPOW().compareTo(best.getPOW()) == 0) {
+				best = indexed;
+			}
+		}
+		
+		BlockTreeLink[] path = new BlockTreeLink[best.getHeight() + 1];
+		BlockTreeLink link = best;
+		while (link.getPrevious() != null) {
+			path[link.getHeight()] = link;
+			if (!link.getPrevious().setMainChild(link)) {
+				throw new IllegalStateException("Link not correctly recorded on parent link");
+			}
+			link = link.getPrevious();
+		}
+		for (int h = 1; h < path.length; h++) {
+			mainChain.add(path[h]);
+		}
+		
+		for (int h = 0; h < mainChain.size(); h++) {
+			int record = mainChain.get(h).getRecord();
+			if (store.getMainRecord(h) != record) {
+				store.setMainRecord(h, record);
+			}
+		}
+		store.setMainLength(mainChain.size());
+		
+		mainSnapshot = mainChain.snapshot();
+		mainLeaf = best;
+		bestLeaf = best;
+		bestPOW = best.getPOW();
+	}
+	
+	/**
+	 * Gets the height of a header if it is on the main chain.  Pruned main chain headers are found by comparing 
+	 * their hash with the main chain's hash at their height.
+	 * 
+	 * @param hash
+	 * @param main
+	 * @return the height, or -1 if the header is not on the main chain
+	 */
+	private int getMainHeight(Hash hash, MainChain main) {
+		int id = index.get(hash);
+		if (id < 0) {
+			return -1;
+		}
+		BlockTreeLink link = nodes[id];
+		if (link != null) {
+			return main.contains(link) ? link.getHeight() : -1;
+		}
+		int height = heights[id];
+		if (height < 0 || height >= main.getLength() || !hash.equals(main.getHash(height))) {
+			return -1;
+		}
+		return height;
+	}
+	
+	/**
+	 * Prunes the links which are more than the prune depth below the tip of the main chain.  The main chain is 
+	 * pruned a chunk at a time, and links which do not descend from the first unpruned main chain link are dropped.
+	 */
+	private void prune() {
+		if (pruneDepth == NO_PRUNING) {
+			return;
+		}
+		int base = mainChain.getBase();
+		int oldHeight = mainChain.getPrunedHeight();
+		int height = mainChain.size() - 1 - pruneDepth;
+		if (height <= oldHeight) {
+			return;
+		}
+		height = base + ((height - base) & ~MainChain.CHUNK_MASK);
+		if (height <= oldHeight) {
+			return;
+		}
+		
+		for (int h = oldHeight; h < height; h++) {
+			if (h % Message.RETARGET_INTERVAL == 0) {
+				prunedPeriodStarts.put(h, mainChain.get(h).getTimestamp());
+			}
+		}
+		
+		BlockTreeLink root = mainChain.get(height);
+		mainChain.prune(height);
+		
+		BlockTreeLink[] nodes = this.nodes;
+		int[] heights = this.heights;
+		int size = index.size();
+		int newFirstLiveId = size;
+		for (int id = firstLiveId; id < size; id++) {
+			BlockTreeLink link = nodes[id];
+			if (link == null) {
+				continue;
+			}
+			int h = link.getHeight();
+			boolean keep;
+			if (h < height) {
+				keep = false;
+			} else if (h == height) {
+				keep = link == root;
+			} else {
+				// Parents have lower ids than their children, so the parent has already been checked
+				BlockTreeLink parent = link.getPrevious();
+				keep = nodes[parent.getId()] == parent;
+			}
+			if (keep) {
+				link.truncate(height);
+				newFirstLiveId = Math.min(newFirstLiveId, id);
+			} else {
+				nodes[id] = null;
+				if (h >= height || mainChain.getPrunedId(h) != id) {
+					heights[id] = -1;
+				}
+			}
+		}
+		firstLiveId = newFirstLiveId;
+		
+		mainSnapshot = mainChain.snapshot();
+	}
+	
+	private static int checkPruneDepth(int pruneDepth) {
+		if (pruneDepth < 0) {
+			throw new IllegalArgumentException("Negative prune depths are invalid");
+		}
+		return pruneDepth;
+	}
+	
+	private BlockTreeLink getLink(Hash hash) {
+		int id = index.get(hash);
+		if (id < 0) {
+			return null;
+		}
+		return nodes[id];
+	}
+	
+	/**
+	 * Gets the hash of a link from the hash index, without decoding its header
+	 * 
+	 * @param link
+	 * @return
+	 */
+	private Hash getHash(BlockTreeLink link) {
+		byte[] hash = new byte[HashIndex.HASH_LENGTH];
+		index.getHash(link.getId(), hash, 0);
+		return new Hash(hash);
 	}
 	
-	private synchronized TargetBits getRetarget(BlockTreeLink prevLink) {
+	private void addLink(Hash hash, BlockTreeLink link) {
+		// The link must be visible in the node array before the index publishes its id
+		int id = index.size();
+		BlockTreeLink[] nodes = this.nodes;
+		if (id >= nodes.length) {
+			BlockTreeLink[] newNodes = new BlockTreeLink[nodes.length << 1];
+			System.arraycopy(nodes, 0, newNodes, 0, nodes.length);
+			nodes = newNodes;
+		}
+		nodes[id] = link;
+		this.nodes = nodes;
+		int[] heights = this.heights;
+		if (id >= heights.length) {
+			int[] newHeights = new int[heights.length << 1];
+			System.arraycopy(heights, 0, newHeights, 0, heights.length);
+			heights = newHeights;
+		}
+		heights[id] = link.getHeight();
+		this.heights = heights;
+		link.setId(id);
+		if (index.add(hash) != id) {
+			throw new IllegalStateException("Header added to chain twice");
+		}
+	}
+	
+	/**
+	 * Gets the ancestor of a link at a height.  Ancestors of main chain links are read from the main chain, 
+	 * otherwise the skip links are followed.
+	 * 
+	 * @param link
+	 * @param height
+	 * @return the ancestor, or null if the height is above the link
+	 */
+	private BlockTreeLink getAncestor(BlockTreeLink link, int height) {
+		int h = link.getHeight();
+		if (height >= 0 && height <= h && h < mainChain.size() && mainChain.get(h) == link) {
+			return height < mainChain.getPrunedHeight() ? null : mainChain.get(height);
+		}
+		return link.getAncestor(height);
+	}
+	
+	/**
+	 * Gets the expected compact target bits for the child of a link.<br>
+	 * <br>
+	 * The last link of a retarget period fixes the whole period, so computed targets are cached by the id of that 
+	 * link.  Competing branches which end a period at different links each get their own entry.  The timestamps and
+	 * bits are read from the links, so store backed headers are not decoded.
+	 * 
+	 * @param prevLink
+	 * @return
+	 */
+	private synchronized int getRetarget(BlockTreeLink prevLink) {
 		
 		if (((prevLink.getHeight() + 1) % Message.RETARGET_INTERVAL) != 0) {
-			return prevLink.getHeader().getTarget();
+			return prevLink.getBits();
+		}
+		
+		Integer key = prevLink.getId();
+		Integer cached = retargetCache.get(key);
+		if (cached != null) {
+			return cached;
 		}
 		
-		BlockTreeLink firstLink = prevLink;
-		for (int i = 0; i < Message.RETARGET_INTERVAL - 1; i++) {
-			if (firstLink == null) {
-				throw new IllegalStateException("Scanned backwards past the genesis block for difficulty target");
+		int firstHeight = prevLink.getHeight() - (Message.RETARGET_INTERVAL - 1);
+		BlockTreeLink firstLink = getAncestor(prevLink, firstHeight);
+		int start;
+		if (firstLink != null) {
+			start = firstLink.getTimestamp();
+		} else {
+			Integer prunedStart = prunedPeriodStarts.get(firstHeight);
+			if (prunedStart == null) {
+				throw new IllegalStateException("Scanned backwards past the first header for difficulty target");
 			}
-			firstLink = firstLink.getPrevious();
+			start = prunedStart;
 		}
-		int end = prevLink.getHeader().getTimestamp();
-		int start = firstLink.getHeader().getTimestamp();
+		int end = prevLink.getTimestamp();
 		int timespan = end - start;
 		if (timespan < (Message.RETARGET_TIMESPAN / 4)) {
 			timespan = Message.RETARGET_TIMESPAN / 4;
@@ -349,14 +950,16 @@ public class BlockTree {
 		if (timespan > (Message.RETARGET_TIMESPAN * 4)) {
 			timespan = Message.RETARGET_TIMESPAN * 4;
 		}
-		BigInteger newTarget = prevLink.getHeader().getTarget().getTarget();
+		BigInteger newTarget = TargetBits.bitsToTarget(prevLink.getBits());
 		newTarget = newTarget.multiply(BigInteger.valueOf(timespan));
 		newTarget = newTarget.divide(BigInteger.valueOf(Message.RETARGET_TIMESPAN));
 		
 		if (newTarget.compareTo(maxPOW) > 0) {
 			newTarget = maxPOW;
 		}
-		return new TargetBits(newTarget);
+		int bits = TargetBits.targetToBits(newTarget);
+		retargetCache.put(key, bits);
+		return bits;
 	}
 
 }
@@ -1,6 +1,5 @@
 package org.tiernolan.bitcoin.util.chain;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -8,16 +7,40 @@ import java.util.List;
 import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
 
 public class BlockTreeLink {
-	private final BlockTreeLink previous;
+	private BlockTreeLink previous;
+	private BlockTreeLink skip;
 	private final BlockHeader header;
+	private final HeaderStore store;
+	private final int record;
 	private final List<BlockTreeLink> children;
-	private final BigInteger pow; // counts from root of chain
+	private final ChainWork pow; // counts from root of chain
 	private final int height;
 	private int mainIndex;
+	private int id = -1;
 
-	public BlockTreeLink(BlockTreeLink previous, BlockHeader header, BigInteger pow, int height) {
+	public BlockTreeLink(BlockTreeLink previous, BlockHeader header, ChainWork pow, int height) {
+		this(previous, header, null, -1, pow, height);
+	}
+	
+	/**
+	 * Creates a link which reads its header from a HeaderStore on demand, rather than holding it on the heap
+	 * 
+	 * @param previous
+	 * @param store
+	 * @param record the record index of the header in the store
+	 * @param pow
+	 * @param height
+	 */
+	public BlockTreeLink(BlockTreeLink previous, HeaderStore store, int record, ChainWork pow, int height) {
+		this(previous, null, store, record, pow, height);
+	}
+	
+	private BlockTreeLink(BlockTreeLink previous, BlockHeader header, HeaderStore store, int record, ChainWork pow, int height) {
 		this.previous = previous;
+		this.skip = (previous == null) ? null : previous.getAncestor(getSkipHeight(height));
 		this.header = header;
+		this.store = store;
+		this.record = record;
 		this.pow = pow;
 		this.children = new ArrayList<BlockTreeLink>();
 		this.height = height;
@@ -28,8 +51,132 @@ public class BlockTreeLink {
 		return previous;
 	}
 
+	/**
+	 * Gets the skip link, an ancestor at a height chosen so that any ancestor can be reached in O(log n) steps
+	 * 
+	 * @return
+	 */
+	public BlockTreeLink getSkip() {
+		return skip;
+	}
+	
+	/**
+	 * Gets the ancestor of this link at a height, following skip links where they do not overshoot
+	 * 
+	 * @param height
+	 * @return the ancestor, or null if the height is negative or above this link
+	 */
+	public BlockTreeLink getAncestor(int height) {
+		if (height > this.height || height < 0) {
+			return null;
+		}
+		BlockTreeLink walk = this;
+		int walkHeight = this.height;
+		while (walkHeight > height) {
+			int skipHeight = getSkipHeight(walkHeight);
+			int skipHeightPrev = getSkipHeight(walkHeight - 1);
+			if (walk.skip != null && (skipHeight == height || 
+					(skipHeight > height && !(skipHeightPrev < skipHeight - 2 && skipHeightPrev >= height)))) {
+				walk = walk.skip;
+				walkHeight = skipHeight;
+			} else {
+				walk = walk.previous;
+				walkHeight--;
+				if (walk == null) {
+					// The ancestor is below the first link in the tree
+					return null;
+				}
+			}
+		}
+		return walk;
+	}
+	
+	/**
+	 * Finds the last common ancestor of two links
+	 * 
+	 * @param a
+	 * @param b
+	 * @return the common ancestor, or null if the links are not in the same tree
+	 */
+	public static BlockTreeLink findFork(BlockTreeLink a, BlockTreeLink b) {
+		if (a.height > b.height) {
+			a = a.getAncestor(b.height);
+		} else if (b.height > a.height) {
+			b = b.getAncestor(a.height);
+		}
+		// Both links are at the same height, so their skip links are too
+		while (a != b && a != null && b != null) {
+			if (a.skip != null && b.skip != null && a.skip != b.skip) {
+				a = a.skip;
+				b = b.skip;
+			} else {
+				a = a.previous;
+				b = b.previous;
+			}
+		}
+		return a == b ? a : null;
+	}
+
+	/**
+	 * Clears the previous and skip links if they point below a height, so the links below it can be pruned
+	 * 
+	 * @param height
+	 */
+	void truncate(int height) {
+		if (previous != null && previous.height < height) {
+			previous = null;
+		}
+		if (skip != null && skip.height < height) {
+			skip = null;
+		}
+	}
+
 	public BlockHeader getHeader() {
-		return header;
+		if (header != null) {
+			return header;
+		}
+		return store.get(record);
+	}
+	
+	/**
+	 * Gets the timestamp of the link's header, reading it directly from the store for store backed links
+	 * 
+	 * @return
+	 */
+	public int getTimestamp() {
+		if (header != null) {
+			return header.getTimestamp();
+		}
+		return store.getTimestamp(record);
+	}
+	
+	/**
+	 * Gets the compact target bits of the link's header, reading them directly from the store for store backed links
+	 * 
+	 * @return
+	 */
+	public int getBits() {
+		if (header != null) {
+			return header.getTarget().getBits();
+		}
+		return store.getBits(record);
+	}
+	
+	public int getRecord() {
+		return record;
+	}
+	
+	/**
+	 * Gets the id assigned to the link by the tree's hash index
+	 * 
+	 * @return the id, or -1 if the link has not been added to a tree
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	void setId(int id) {
+		this.id = id;
 	}
 
 	public void addChild(BlockTreeLink child) {
@@ -74,8 +221,20 @@ public class BlockTreeLink {
 		return height;
 	}
 
-	public BigInteger getPOW() {
+	public ChainWork getPOW() {
 		return pow;
 	}
 
+	private static int clearLowestOne(int n) {
+		return n & (n - 1);
+	}
+	
+	private static int getSkipHeight(int height) {
+		if (height < 2) {
+			return 0;
+		}
+		// Odd heights skip further back than even heights, giving a mix of short and long skips
+		return ((height & 1) != 0) ? clearLowestOne(clearLowestOne(height - 1)) + 1 : clearLowestOne(height);
+	}
+
 }
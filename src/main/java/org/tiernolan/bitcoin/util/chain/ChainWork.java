@@ -0,0 +1,300 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import java.math.BigInteger;
+
+import org.tiernolan.bitcoin.util.protocol.types.TargetBits;
+
+/**
+ * An immutable unsigned 256 bit amount of proof of work.<br>
+ * <br>
+ * The value is held as four longs, so adding and comparing chain work does not allocate intermediate values.  The
+ * work for a block is computed from its compact target bits and the most recent result is cached, since the target
+ * only changes at retarget boundaries.
+ */
+public class ChainWork implements Comparable<ChainWork> {
+
+	public static final ChainWork ZERO = new ChainWork(0, 0, 0, 0);
+	public static final ChainWork MAX = new ChainWork(-1L, -1L, -1L, -1L);
+
+	private static final int WORDS = 4;
+
+	private static volatile CachedWork cache = new CachedWork(0, ZERO);
+
+	// w3 is the most significant word
+	private final long w3;
+	private final long w2;
+	private final long w1;
+	private final long w0;
+
+	private ChainWork(long w3, long w2, long w1, long w0) {
+		this.w3 = w3;
+		this.w2 = w2;
+		this.w1 = w1;
+		this.w0 = w0;
+	}
+
+	/**
+	 * Gets the proof of work for a block with the given compact target bits.  This is 2^256 / (target + 1).
+	 * Negative, zero or overflowing targets give zero work.
+	 *
+	 * @param bits
+	 * @return
+	 */
+	public static ChainWork fromBits(int bits) {
+		CachedWork cached = cache;
+		if (cached.bits == bits) {
+			return cached.work;
+		}
+		ChainWork work = computeWork(bits);
+		cache = new CachedWork(bits, work);
+		return work;
+	}
+
+	/**
+	 * Gets the proof of work for a block with the given target
+	 *
+	 * @param target
+	 * @return
+	 */
+	public static ChainWork fromTarget(TargetBits target) {
+		return fromBits(target.getBits());
+	}
+
+	/**
+	 * Converts a non-negative BigInteger of up to 256 bits to a ChainWork
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static ChainWork valueOf(BigInteger value) {
+		if (value.signum() < 0 || value.bitLength() > 256) {
+			throw new IllegalArgumentException("Chain work must be a non-negative 256 bit value");
+		}
+		return new ChainWork(
+				value.shiftRight(192).longValue(),
+				value.shiftRight(128).longValue(),
+				value.shiftRight(64).longValue(),
+				value.longValue());
+	}
+
+	/**
+	 * Adds two amounts of work.  Sums which do not fit in 256 bits saturate at MAX.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public ChainWork add(ChainWork other) {
+		long r0 = w0 + other.w0;
+		long c = carry(r0, w0);
+		long r1 = w1 + other.w1 + c;
+		c = (c == 0) ? carry(r1, w1) : carryWithIn(r1, w1);
+		long r2 = w2 + other.w2 + c;
+		c = (c == 0) ? carry(r2, w2) : carryWithIn(r2, w2);
+		long r3 = w3 + other.w3 + c;
+		c = (c == 0) ? carry(r3, w3) : carryWithIn(r3, w3);
+		if (c != 0) {
+			// Headers which are not checked for proof of work can claim any target
+			return MAX;
+		}
+		return new ChainWork(r3, r2, r1, r0);
+	}
+
+	/**
+	 * Subtracts an amount of work
+	 *
+	 * @param other
+	 * @return
+	 * @throws ArithmeticException if the other work is larger than this work
+	 */
+	public ChainWork subtract(ChainWork other) {
+		if (compareTo(other) < 0) {
+			throw new ArithmeticException("Chain work cannot be negative");
+		}
+		long r0 = w0 - other.w0;
+		long b = borrow(w0, other.w0, 0);
+		long r1 = w1 - other.w1 - b;
+		b = borrow(w1, other.w1, b);
+		long r2 = w2 - other.w2 - b;
+		b = borrow(w2, other.w2, b);
+		long r3 = w3 - other.w3 - b;
+		return new ChainWork(r3, r2, r1, r0);
+	}
+
+	@Override
+	public int compareTo(ChainWork other) {
+		int c = compareUnsigned(w3, other.w3);
+		if (c != 0) {
+			return c;
+		}
+		c = compareUnsigned(w2, other.w2);
+		if (c != 0) {
+			return c;
+		}
+		c = compareUnsigned(w1, other.w1);
+		if (c != 0) {
+			return c;
+		}
+		return compareUnsigned(w0, other.w0);
+	}
+
+	/**
+	 * Gets one 64 bit word of the value
+	 *
+	 * @param word the word index, 0 is the least significant word
+	 * @return
+	 */
+	public long getWord(int word) {
+		switch (word) {
+			case 0: return w0;
+			case 1: return w1;
+			case 2: return w2;
+			case 3: return w3;
+			default: throw new IllegalArgumentException("Word index " + word + " is out of range");
+		}
+	}
+
+	public BigInteger toBigInteger() {
+		BigInteger value = BigInteger.ZERO;
+		for (int i = WORDS - 1; i >= 0; i--) {
+			value = value.shiftLeft(64).or(unsigned(getWord(i)));
+		}
+		return value;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (!(o instanceof ChainWork)) {
+			return false;
+		} else {
+			ChainWork other = (ChainWork) o;
+			return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		long h = w0 ^ (w1 * 31) ^ (w2 * 961) ^ (w3 * 29791);
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return toBigInteger().toString();
+	}
+
+	private static ChainWork computeWork(int bits) {
+		int size = (bits >>> 24) & 0xFF;
+		long mantissa = bits & 0x007FFFFFL;
+		if ((bits & 0x00800000) != 0 || mantissa == 0) {
+			return ZERO;
+		}
+		long[] target = new long[WORDS];
+		if (size <= 3) {
+			target[0] = mantissa >>> (8 * (3 - size));
+			if (target[0] == 0) {
+				return ZERO;
+			}
+		} else {
+			int shift = 8 * (size - 3);
+			if (shift + 64 - Long.numberOfLeadingZeros(mantissa) > 256) {
+				return ZERO;
+			}
+			int word = shift >>> 6;
+			int offset = shift & 63;
+			target[word] = mantissa << offset;
+			if (offset != 0 && word + 1 < WORDS) {
+				target[word + 1] = mantissa >>> (64 - offset);
+			}
+		}
+		// 2^256 / (target + 1) == ~target / (target + 1) + 1, which fits in 256 bits
+		long[] divisor = new long[WORDS];
+		long[] numerator = new long[WORDS];
+		long c = 1;
+		for (int i = 0; i < WORDS; i++) {
+			divisor[i] = target[i] + c;
+			c = (c != 0 && divisor[i] == 0) ? 1 : 0;
+			numerator[i] = ~target[i];
+		}
+		long[] quotient = divide(numerator, divisor);
+		return new ChainWork(quotient[3], quotient[2], quotient[1], quotient[0]).add(new ChainWork(0, 0, 0, 1));
+	}
+
+	/**
+	 * Divides two 256 bit values, using shift and subtract long division
+	 *
+	 * @param numerator
+	 * @param divisor
+	 * @return
+	 */
+	private static long[] divide(long[] numerator, long[] divisor) {
+		long[] quotient = new long[WORDS];
+		long[] remainder = new long[WORDS];
+		for (int bit = WORDS * 64 - 1; bit >= 0; bit--) {
+			// remainder = (remainder << 1) | numerator bit, keeping the bit shifted out
+			long overflow = remainder[WORDS - 1] >>> 63;
+			for (int i = WORDS - 1; i > 0; i--) {
+				remainder[i] = (remainder[i] << 1) | (remainder[i - 1] >>> 63);
+			}
+			remainder[0] = (remainder[0] << 1) | ((numerator[bit >>> 6] >>> (bit & 63)) & 1);
+			if (overflow != 0 || compare(remainder, divisor) >= 0) {
+				long b = 0;
+				for (int i = 0; i < WORDS; i++) {
+					long r = remainder[i];
+					remainder[i] = r - divisor[i] - b;
+					b = borrow(r, divisor[i], b);
+				}
+				quotient[bit >>> 6] |= 1L << (bit & 63);
+			}
+		}
+		return quotient;
+	}
+
+	private static int compare(long[] a, long[] b) {
+		for (int i = WORDS - 1; i >= 0; i--) {
+			int c = compareUnsigned(a[i], b[i]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	private static int compareUnsigned(long a, long b) {
+		a += Long.MIN_VALUE;
+		b += Long.MIN_VALUE;
+		return (a < b) ? -1 : ((a == b) ? 0 : 1);
+	}
+
+	private static long carry(long sum, long a) {
+		return compareUnsigned(sum, a) < 0 ? 1 : 0;
+	}
+
+	private static long carryWithIn(long sum, long a) {
+		return compareUnsigned(sum, a) <= 0 ? 1 : 0;
+	}
+
+	private static long borrow(long a, long b, long borrowIn) {
+		int c = compareUnsigned(a, b);
+		return (c < 0 || (c == 0 && borrowIn != 0)) ? 1 : 0;
+	}
+
+	private static BigInteger unsigned(long word) {
+		BigInteger value = BigInteger.valueOf(word & Long.MAX_VALUE);
+		return (word < 0) ? value.setBit(63) : value;
+	}
+
+	private static class CachedWork {
+
+		private final int bits;
+		private final ChainWork work;
+
+		public CachedWork(int bits, ChainWork work) {
+			this.bits = bits;
+			this.work = work;
+		}
+
+	}
+
+}
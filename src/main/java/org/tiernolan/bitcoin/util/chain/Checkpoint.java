@@ -0,0 +1,95 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import org.tiernolan.bitcoin.util.encoding.StringCreator;
+import org.tiernolan.bitcoin.util.protocol.Message;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+/**
+ * A trusted point on the main chain that a BlockTree can start from, instead of the genesis block.<br>
+ * <br>
+ * The checkpoint holds the headers of the retarget period which contains the checkpoint, ending at the checkpoint
+ * header, so that the difficulty of the following headers can be checked.
+ */
+public class Checkpoint {
+
+	private final Hash hash;
+	private final int height;
+	private final ChainWork work;
+	private final BlockHeader[] headers;
+
+	/**
+	 * Creates a checkpoint
+	 *
+	 * @param hash the hash of the checkpoint header
+	 * @param height the height of the checkpoint header
+	 * @param work the total work of the chain up to and including the checkpoint header
+	 * @param headers the headers from at least the start of the checkpoint's retarget period, ending at the checkpoint header
+	 */
+	public Checkpoint(Hash hash, int height, ChainWork work, BlockHeader[] headers) {
+		if (headers.length == 0) {
+			throw new IllegalArgumentException("A checkpoint requires at least one header");
+		} else if (height < headers.length - 1) {
+			throw new IllegalArgumentException("Checkpoint headers extend below the genesis block");
+		} else if (headers.length < (height % Message.RETARGET_INTERVAL) + 1) {
+			throw new IllegalArgumentException("Checkpoint headers must start at or before the start of the retarget period");
+		} else if (!headers[headers.length - 1].getBlockHash().equals(hash)) {
+			throw new IllegalArgumentException("The last checkpoint header does not match the checkpoint hash");
+		}
+		ChainWork windowWork = ChainWork.ZERO;
+		for (int i = 0; i < headers.length; i++) {
+			if (i > 0 && !headers[i].getPrevious().equals(headers[i - 1].getBlockHash())) {
+				throw new IllegalArgumentException("Checkpoint headers are not a connected sequence");
+			}
+			windowWork = windowWork.add(ChainWork.fromTarget(headers[i].getTarget()));
+		}
+		if (work.compareTo(windowWork) < 0) {
+			throw new IllegalArgumentException("Checkpoint work is less than the work of its headers");
+		}
+		this.hash = hash.copy();
+		this.height = height;
+		this.work = work;
+		this.headers = headers.clone();
+	}
+
+	public Hash getHash() {
+		return hash.copy();
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public ChainWork getWork() {
+		return work;
+	}
+
+	/**
+	 * Gets the height of the first checkpoint header
+	 *
+	 * @return
+	 */
+	public int getBaseHeight() {
+		return height - headers.length + 1;
+	}
+
+	/**
+	 * Gets the checkpoint headers, ending at the checkpoint header
+	 *
+	 * @return
+	 */
+	public BlockHeader[] getHeaders() {
+		return headers.clone();
+	}
+
+	@Override
+	public String toString() {
+		return new StringCreator()
+			.add("hash", hash)
+			.add("height", height)
+			.add("work", work)
+			.add("headers", headers.length)
+			.toString();
+	}
+
+}
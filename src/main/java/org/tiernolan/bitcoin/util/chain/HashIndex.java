@@ -0,0 +1,275 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import java.nio.ByteBuffer;
+
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+import org.tiernolan.bitcoin.util.protocol.types.Hash256;
+
+/**
+ * An open addressing index which maps 32 byte hashes to int node ids.<br>
+ * <br>
+ * Node ids are assigned in insertion order, starting at zero.  The keys are held as four longs per node and each
+ * slot packs 32 bits of the key's hash together with the node id, so probes rarely need to compare keys.  Lookups
+ * from byte arrays and ByteBuffers read the key in place, without creating a Hash.<br>
+ * <br>
+ * The index supports a single writer and any number of concurrent readers.  Readers never block, and a key which is
+ * being added while it is looked up may or may not be found.
+ */
+public class HashIndex {
+
+	public static final int HASH_LENGTH = 32;
+
+	private static final int KEY_WORDS = HASH_LENGTH / 8;
+
+	private volatile long[] slots;
+	private volatile long[] keys;
+	private volatile int size;
+
+	public HashIndex() {
+		this(1024);
+	}
+
+	public HashIndex(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		this.slots = new long[capacity];
+		this.keys = new long[Math.max(16, expected) * KEY_WORDS];
+	}
+
+	/**
+	 * Gets the number of keys in the index
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the node id for a hash
+	 *
+	 * @param hash
+	 * @return the node id, or -1 if the hash is not in the index
+	 */
+	public int get(Hash hash) {
+		checkLength(hash);
+		return find(hash.getLELong(0), hash.getLELong(8), hash.getLELong(16), hash.getLELong(24));
+	}
+
+	/**
+	 * Gets the node id for a hash
+	 *
+	 * @param hash
+	 * @return the node id, or -1 if the hash is not in the index
+	 */
+	public int get(Hash256 hash) {
+		return find(hash.getWord(0), hash.getWord(1), hash.getWord(2), hash.getWord(3));
+	}
+
+	/**
+	 * Gets the node id for the 32 byte hash starting at an offset in an array
+	 *
+	 * @param hash
+	 * @param offset
+	 * @return the node id, or -1 if the hash is not in the index
+	 */
+	public int get(byte[] hash, int offset) {
+		return find(getLELong(hash, offset), getLELong(hash, offset + 8), getLELong(hash, offset + 16), getLELong(hash, offset + 24));
+	}
+
+	/**
+	 * Gets the node id for the 32 byte hash starting at the buffer's position.  The position of the buffer is not
+	 * changed.
+	 *
+	 * @param hash
+	 * @return the node id, or -1 if the hash is not in the index
+	 */
+	public int get(ByteBuffer hash) {
+		int p = hash.position();
+		return find(getLELong(hash, p), getLELong(hash, p + 8), getLELong(hash, p + 16), getLELong(hash, p + 24));
+	}
+
+	/**
+	 * Adds a hash to the index
+	 *
+	 * @param hash
+	 * @return the node id assigned to the hash, or -1 if the hash was already in the index
+	 */
+	public int add(Hash hash) {
+		checkLength(hash);
+		return add(hash.getLELong(0), hash.getLELong(8), hash.getLELong(16), hash.getLELong(24));
+	}
+
+	/**
+	 * Adds a hash to the index
+	 *
+	 * @param hash
+	 * @return the node id assigned to the hash, or -1 if the hash was already in the index
+	 */
+	public int add(Hash256 hash) {
+		return add(hash.getWord(0), hash.getWord(1), hash.getWord(2), hash.getWord(3));
+	}
+
+	/**
+	 * Gets the hash for a node id
+	 *
+	 * @param id
+	 * @return
+	 */
+	public Hash256 getHash256(int id) {
+		return new Hash256(getWord(id, 0), getWord(id, 1), getWord(id, 2), getWord(id, 3));
+	}
+
+	/**
+	 * Adds the 32 byte hash starting at an offset in an array to the index
+	 *
+	 * @param hash
+	 * @param offset
+	 * @return the node id assigned to the hash, or -1 if the hash was already in the index
+	 */
+	public int add(byte[] hash, int offset) {
+		return add(getLELong(hash, offset), getLELong(hash, offset + 8), getLELong(hash, offset + 16), getLELong(hash, offset + 24));
+	}
+
+	/**
+	 * Gets one 8 byte word of the hash for a node id.  The words are little endian, so word zero holds the first 8
+	 * bytes of the hash.
+	 *
+	 * @param id
+	 * @param word the word index, from 0 to 3
+	 * @return
+	 */
+	public long getWord(int id, int word) {
+		if (id < 0 || id >= size) {
+			throw new IllegalArgumentException("Node id " + id + " is not in the index");
+		} else if (word < 0 || word >= KEY_WORDS) {
+			throw new IllegalArgumentException("Word index " + word + " is out of range");
+		}
+		return keys[id * KEY_WORDS + word];
+	}
+
+	/**
+	 * Copies the 32 byte hash for a node id into an array
+	 *
+	 * @param id
+	 * @param dest
+	 * @param offset
+	 */
+	public void getHash(int id, byte[] dest, int offset) {
+		for (int w = 0; w < KEY_WORDS; w++) {
+			long word = getWord(id, w);
+			for (int i = 0; i < 8; i++) {
+				dest[offset++] = (byte) word;
+				word >>>= 8;
+			}
+		}
+	}
+
+	private int find(long w0, long w1, long w2, long w3) {
+		// The size must be read first, the keys for all ids below it are visible
+		int size = this.size;
+		long[] slots = this.slots;
+		long[] keys = this.keys;
+		int mask = slots.length - 1;
+		int h = mix(w0, w1, w2, w3);
+		long tag = ((long) h) << 32;
+		int i = h & mask;
+		while (true) {
+			long slot = slots[i];
+			if (slot == 0) {
+				return -1;
+			}
+			if ((slot & 0xFFFFFFFF00000000L) == tag) {
+				int id = ((int) slot) - 1;
+				if (id >= 0 && id < size && matches(keys, id, w0, w1, w2, w3)) {
+					return id;
+				}
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private int add(long w0, long w1, long w2, long w3) {
+		if (find(w0, w1, w2, w3) >= 0) {
+			return -1;
+		}
+		if ((size + 1) * 2 > slots.length) {
+			resize(slots.length << 1);
+		}
+		int id = size;
+		int k = id * KEY_WORDS;
+		long[] keys = this.keys;
+		if (k + KEY_WORDS > keys.length) {
+			long[] newKeys = new long[keys.length << 1];
+			System.arraycopy(keys, 0, newKeys, 0, keys.length);
+			keys = newKeys;
+		}
+		keys[k] = w0;
+		keys[k + 1] = w1;
+		keys[k + 2] = w2;
+		keys[k + 3] = w3;
+		this.keys = keys;
+		long[] slots = this.slots;
+		insert(slots, slots.length - 1, mix(w0, w1, w2, w3), id);
+		// Publishes the new key to readers
+		size = id + 1;
+		return id;
+	}
+
+	private static boolean matches(long[] keys, int id, long w0, long w1, long w2, long w3) {
+		int k = id * KEY_WORDS;
+		return keys[k] == w0 && keys[k + 1] == w1 && keys[k + 2] == w2 && keys[k + 3] == w3;
+	}
+
+	private void resize(int capacity) {
+		long[] newSlots = new long[capacity];
+		int newMask = capacity - 1;
+		long[] keys = this.keys;
+		for (int id = 0; id < size; id++) {
+			int k = id * KEY_WORDS;
+			insert(newSlots, newMask, mix(keys[k], keys[k + 1], keys[k + 2], keys[k + 3]), id);
+		}
+		slots = newSlots;
+	}
+
+	private static void insert(long[] slots, int mask, int h, int id) {
+		int i = h & mask;
+		while (slots[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		slots[i] = (((long) h) << 32) | ((id + 1) & 0xFFFFFFFFL);
+	}
+
+	private static int mix(long w0, long w1, long w2, long w3) {
+		long h = w0 ^ Long.rotateLeft(w1, 16) ^ Long.rotateLeft(w2, 32) ^ Long.rotateLeft(w3, 48);
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	private static long getLELong(byte[] data, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (data[offset + i] & 0xFFL);
+		}
+		return value;
+	}
+
+	private static long getLELong(ByteBuffer data, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (data.get(offset + i) & 0xFFL);
+		}
+		return value;
+	}
+
+	private static void checkLength(Hash hash) {
+		if (hash.getLength() != HASH_LENGTH) {
+			throw new IllegalArgumentException("Only 32 byte hashes may be indexed");
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import java.io.IOException;
+
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+
+public interface HeaderStore {
+
+	/**
+	 * Appends a BlockHeader to the store.  Headers are stored in the order
+	 * they are connected to the tree, so a parent is always stored before
+	 * its children.
+	 *
+	 * @param header
+	 * @return the record index of the header
+	 */
+	public int append(BlockHeader header);
+
+	/**
+	 * Gets the BlockHeader stored at a record index
+	 *
+	 * @param record
+	 * @return
+	 */
+	public BlockHeader get(int record);
+
+	/**
+	 * Gets the timestamp of the BlockHeader stored at a record index, without decoding the header
+	 *
+	 * @param record
+	 * @return
+	 */
+	public int getTimestamp(int record);
+
+	/**
+	 * Gets the compact target bits of the BlockHeader stored at a record index, without decoding the header
+	 *
+	 * @param record
+	 * @return
+	 */
+	public int getBits(int record);
+
+	/**
+	 * Gets the number of headers in the store
+	 *
+	 * @return
+	 */
+	public int size();
+
+	/**
+	 * Sets the record index of the main chain header at a height
+	 *
+	 * @param height
+	 * @param record
+	 */
+	public void setMainRecord(int height, int record);
+
+	/**
+	 * Gets the record index of the main chain header at a height
+	 *
+	 * @param height
+	 * @return the record index, or -1 if the height is not on the main chain
+	 */
+	public int getMainRecord(int height);
+
+	/**
+	 * Sets the length of the main chain height index
+	 *
+	 * @param length
+	 */
+	public void setMainLength(int length);
+
+	/**
+	 * Gets the length of the main chain height index
+	 *
+	 * @return
+	 */
+	public int getMainLength();
+
+	/**
+	 * Writes any pending changes to the backing storage
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Flushes and closes the store
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+
+}
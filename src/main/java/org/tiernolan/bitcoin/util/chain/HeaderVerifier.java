@@ -0,0 +1,188 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.tiernolan.bitcoin.util.protocol.Message;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+
+/**
+ * Decodes and verifies the payload of a headers message in parallel.<br>
+ * <br>
+ * Hashing a header and checking its proof of work do not depend on any other header, so the payload is split
+ * across a ForkJoinPool.  The verified headers can then be inserted into a BlockTree serially.
+ */
+public class HeaderVerifier {
+
+	private static final int HEADER_LENGTH = 80;
+	private static final int THRESHOLD = 64;
+
+	private final ForkJoinPool pool;
+	private final boolean checkPOW;
+
+	/**
+	 * Creates a verifier which uses a pool of daemon threads shared by all verifiers
+	 *
+	 * @param checkPOW
+	 */
+	public HeaderVerifier(boolean checkPOW) {
+		this(SharedPool.POOL, checkPOW);
+	}
+
+	public HeaderVerifier(ForkJoinPool pool, boolean checkPOW) {
+		this.pool = pool;
+		this.checkPOW = checkPOW;
+	}
+
+	/**
+	 * Decodes the BlockHeaders in a headers message payload, checking their proof of work and that each header
+	 * connects to the header before it.
+	 *
+	 * @param version
+	 * @param payload
+	 * @return
+	 * @throws IOException if the payload could not be decoded
+	 * @throws MisbehaveException if a header fails verification
+	 */
+	public BlockHeader[] verify(int version, byte[] payload) throws IOException, MisbehaveException {
+		if (payload.length == 0) {
+			throw new IOException("Headers payload is empty");
+		}
+		int pos = getVarIntLength(payload[0]);
+		long count = readVarInt(payload, 0, pos);
+		if (count < 0) {
+			throw new IOException("Negative header count");
+		} else if (count > Message.MAX_HEADERS) {
+			throw new IOException("Number of headers exceeds maximum allowed");
+		}
+
+		int[] offsets = new int[(int) count + 1];
+		for (int i = 0; i < count; i++) {
+			offsets[i] = pos;
+			pos += HEADER_LENGTH;
+			if (pos >= payload.length) {
+				throw new IOException("Headers payload truncated at header " + i);
+			}
+			pos += getVarIntLength(payload[pos]);
+		}
+		if (pos > payload.length) {
+			throw new IOException("Headers payload truncated");
+		}
+		offsets[(int) count] = pos;
+
+		BlockHeader[] headers = new BlockHeader[(int) count];
+		AtomicReference<IOException> ioException = new AtomicReference<IOException>();
+		AtomicBoolean powFailed = new AtomicBoolean(false);
+
+		pool.invoke(new VerifyTask(version, payload, offsets, headers, 0, headers.length, ioException, powFailed));
+
+		if (ioException.get() != null) {
+			throw ioException.get();
+		}
+		if (powFailed.get()) {
+			throw new MisbehaveException(MisbehaveException.CRITICAL, "Insufficient proof of work");
+		}
+		for (int i = 1; i < headers.length; i++) {
+			if (!headers[i].getPrevious().equals(headers[i - 1].getBlockHash())) {
+				throw new MisbehaveException(MisbehaveException.WARN, "Header batch is not a connected sequence");
+			}
+		}
+		return headers;
+	}
+
+	private static int getVarIntLength(byte first) {
+		switch (first & 0xFF) {
+			case 0xFD: return 3;
+			case 0xFE: return 5;
+			case 0xFF: return 9;
+			default: return 1;
+		}
+	}
+
+	private static long readVarInt(byte[] data, int offset, int length) throws IOException {
+		if (offset + length > data.length) {
+			throw new IOException("Var int truncated");
+		}
+		if (length == 1) {
+			return data[offset] & 0xFF;
+		}
+		long value = 0;
+		for (int i = offset + length - 1; i > offset; i--) {
+			value = (value << 8) | (data[i] & 0xFF);
+		}
+		return value;
+	}
+
+	private class VerifyTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int version;
+		private final byte[] payload;
+		private final int[] offsets;
+		private final BlockHeader[] headers;
+		private final int start;
+		private final int end;
+		private final AtomicReference<IOException> ioException;
+		private final AtomicBoolean powFailed;
+
+		public VerifyTask(int version, byte[] payload, int[] offsets, BlockHeader[] headers, int start, int end, AtomicReference<IOException> ioException, AtomicBoolean powFailed) {
+			this.version = version;
+			this.payload = payload;
+			this.offsets = offsets;
+			this.headers = headers;
+			this.start = start;
+			this.end = end;
+			this.ioException = ioException;
+			this.powFailed = powFailed;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > THRESHOLD) {
+				int mid = (start + end) >>> 1;
+				invokeAll(
+						new VerifyTask(version, payload, offsets, headers, start, mid, ioException, powFailed),
+						new VerifyTask(version, payload, offsets, headers, mid, end, ioException, powFailed));
+				return;
+			}
+			for (int i = start; i < end; i++) {
+				if (ioException.get() != null || powFailed.get()) {
+					return;
+				}
+				ByteArrayInputStream bis = new ByteArrayInputStream(payload, offsets[i], offsets[i + 1] - offsets[i]);
+				try {
+					headers[i] = new BlockHeader(version, new EndianDataInputStream(bis));
+				} catch (IOException e) {
+					ioException.compareAndSet(null, e);
+					return;
+				}
+				if (checkPOW && !headers[i].checkPOW()) {
+					powFailed.set(true);
+					return;
+				}
+			}
+		}
+
+	}
+
+	private static class SharedPool {
+
+		private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				t.setDaemon(true);
+				return t;
+			}
+		}, null, false);
+
+	}
+
+}
@@ -0,0 +1,300 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+/**
+ * An immutable snapshot of the main chain.<br>
+ * <br>
+ * The BlockTree publishes a new snapshot each time the tip of the main chain changes, so readers can query a
+ * consistent view of the chain without taking the tree's lock.  The links are held in fixed size chunks which are
+ * shared between snapshots, so extending the chain does not copy it.<br>
+ * <br>
+ * The chain starts at the base height, which is zero unless the tree was started from a checkpoint.  If the tree
+ * prunes old headers, only the hashes are kept for heights below the pruned height.<br>
+ * <br>
+ * The block locator is built the first time it is requested and then shared by all readers of the snapshot.
+ */
+public class MainChain {
+
+	static final int CHUNK_BITS = 10;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final BlockTreeLink[][] chunks;
+	private final int base;
+	private final int length;
+	private final int prunedHeight;
+	private final int[] prunedIds;
+	private final HashIndex index;
+
+	private volatile List<Hash> locator;
+
+	private MainChain(BlockTreeLink[][] chunks, int base, int length, int prunedHeight, int[] prunedIds, HashIndex index) {
+		this.chunks = chunks;
+		this.base = base;
+		this.length = length;
+		this.prunedHeight = prunedHeight;
+		this.prunedIds = prunedIds;
+		this.index = index;
+	}
+
+	/**
+	 * Gets the length of the main chain, this is one more than the height of the tip
+	 *
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the height of the first header in the chain
+	 *
+	 * @return
+	 */
+	public int getBase() {
+		return base;
+	}
+
+	/**
+	 * Gets the height of the first header which has not been pruned.  Only the hashes are held for lower headers.
+	 *
+	 * @return
+	 */
+	public int getPrunedHeight() {
+		return prunedHeight;
+	}
+
+	/**
+	 * Gets the BlockHeader on the main chain with height index
+	 *
+	 * @param index the height, the genesis block is zero
+	 * @return the header, or null if the index is beyond the end of the chain, before its base or pruned
+	 */
+	public BlockHeader getHeader(int index) {
+		if (index < 0) {
+			throw new IllegalArgumentException("Negative block indexes are invalid");
+		} else if (index >= length || index < prunedHeight) {
+			return null;
+		}
+		return get(index).getHeader();
+	}
+
+	/**
+	 * Gets the hash of the BlockHeader on the main chain with height index.  Hashes are read from the hash index, so
+	 * they are available for pruned headers and store backed headers are not decoded.
+	 *
+	 * @param index the height, the genesis block is zero
+	 * @return the hash, or null if the index is beyond the end of the chain or before its base
+	 */
+	public Hash getHash(int index) {
+		if (index < 0) {
+			throw new IllegalArgumentException("Negative block indexes are invalid");
+		} else if (index >= length || index < base) {
+			return null;
+		}
+		int id = index < prunedHeight ? prunedIds[index - base] : get(index).getId();
+		byte[] hash = new byte[HashIndex.HASH_LENGTH];
+		this.index.getHash(id, hash, 0);
+		return new Hash(hash);
+	}
+
+	/**
+	 * Gets the BlockHeader at the tip of the main chain
+	 *
+	 * @return
+	 */
+	public BlockHeader getTip() {
+		return get(length - 1).getHeader();
+	}
+
+	/**
+	 * Gets the block locator for the tip of this chain.  The last 10 hashes on the chain are included, and then the
+	 * step size doubles, ending at the base of the chain.  The list is shared and cannot be modified.
+	 *
+	 * @return
+	 */
+	public List<Hash> getLocator() {
+		List<Hash> locator = this.locator;
+		if (locator == null) {
+			// Concurrent callers may each build the locator, but they build the same list
+			locator = Collections.unmodifiableList(buildLocator());
+			this.locator = locator;
+		}
+		return locator;
+	}
+
+	BlockTreeLink get(int height) {
+		int p = height - base;
+		return chunks[p >> CHUNK_BITS][p & CHUNK_MASK];
+	}
+
+	BlockTreeLink getTipLink() {
+		return get(length - 1);
+	}
+
+	boolean contains(BlockTreeLink link) {
+		int height = link.getHeight();
+		return height < length && height >= prunedHeight && get(height) == link;
+	}
+
+	private List<Hash> buildLocator() {
+		List<Hash> locator = new ArrayList<Hash>(20);
+		int h;
+		for (h = length - 1; h >= base && h > length - 10; h--) {
+			locator.add(getHash(h));
+		}
+		int step = 1;
+		for (; h > base; h -= step) {
+			locator.add(getHash(h));
+			step = step << 1;
+		}
+		locator.add(getHash(base));
+		return locator;
+	}
+
+	/**
+	 * A mutable main chain, owned by the tree's writer, which publishes MainChain snapshots.<br>
+	 * <br>
+	 * Chunks are shared with published snapshots.  A chunk is only written in place at heights which no snapshot
+	 * can read, otherwise it is copied first.
+	 */
+	static class Builder {
+
+		private final HashIndex index;
+		private final int base;
+
+		private BlockTreeLink[][] chunks = new BlockTreeLink[16][];
+		private int length;
+		private int prunedHeight;
+		private int[] prunedIds = new int[0];
+
+		private int sharedLength;
+		private boolean privateOuter = true;
+		private final BitSet privateChunks = new BitSet();
+
+		public Builder(HashIndex index, int base) {
+			this.index = index;
+			this.base = base;
+			this.length = base;
+			this.prunedHeight = base;
+			this.sharedLength = base;
+		}
+
+		public int size() {
+			return length;
+		}
+
+		public int getBase() {
+			return base;
+		}
+
+		public int getPrunedHeight() {
+			return prunedHeight;
+		}
+
+		public BlockTreeLink get(int height) {
+			if (height < prunedHeight || height >= length) {
+				throw new IndexOutOfBoundsException("Height " + height + " is not on the unpruned main chain");
+			}
+			int p = height - base;
+			return chunks[p >> CHUNK_BITS][p & CHUNK_MASK];
+		}
+
+		/**
+		 * Gets the node id of a pruned header
+		 *
+		 * @param height
+		 * @return
+		 */
+		public int getPrunedId(int height) {
+			if (height < base || height >= prunedHeight) {
+				throw new IndexOutOfBoundsException("Height " + height + " has not been pruned");
+			}
+			return prunedIds[height - base];
+		}
+
+		public void add(BlockTreeLink link) {
+			int height = length;
+			int c = (height - base) >> CHUNK_BITS;
+			if (c >= chunks.length) {
+				BlockTreeLink[][] newChunks = new BlockTreeLink[chunks.length << 1][];
+				System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+				chunks = newChunks;
+				privateOuter = true;
+			}
+			if (chunks[c] == null) {
+				setChunk(c, new BlockTreeLink[CHUNK_SIZE]);
+			} else if (height < sharedLength && !privateChunks.get(c)) {
+				BlockTreeLink[] copy = new BlockTreeLink[CHUNK_SIZE];
+				System.arraycopy(chunks[c], 0, copy, 0, CHUNK_SIZE);
+				setChunk(c, copy);
+			}
+			chunks[c][(height - base) & CHUNK_MASK] = link;
+			length++;
+		}
+
+		public void truncate(int length) {
+			if (length < prunedHeight || length > this.length) {
+				throw new IllegalArgumentException("Cannot truncate main chain of length " + this.length + " to " + length);
+			}
+			this.length = length;
+		}
+
+		/**
+		 * Drops the links below a height, keeping only their node ids.  The height must be a whole number of chunks
+		 * above the base.
+		 *
+		 * @param height
+		 */
+		public void prune(int height) {
+			if (height <= prunedHeight || height >= length || ((height - base) & CHUNK_MASK) != 0) {
+				throw new IllegalArgumentException("Cannot prune main chain to height " + height);
+			}
+			if (height - base > prunedIds.length) {
+				int[] newIds = new int[Math.max(height - base, prunedIds.length << 1)];
+				System.arraycopy(prunedIds, 0, newIds, 0, prunedHeight - base);
+				prunedIds = newIds;
+			}
+			for (int h = prunedHeight; h < height; h++) {
+				prunedIds[h - base] = get(h).getId();
+			}
+			if (!privateOuter) {
+				BlockTreeLink[][] copy = new BlockTreeLink[chunks.length][];
+				System.arraycopy(chunks, 0, copy, 0, chunks.length);
+				chunks = copy;
+				privateOuter = true;
+			}
+			for (int c = (prunedHeight - base) >> CHUNK_BITS; c < (height - base) >> CHUNK_BITS; c++) {
+				chunks[c] = null;
+			}
+			prunedHeight = height;
+		}
+
+		public MainChain snapshot() {
+			sharedLength = Math.max(sharedLength, length);
+			privateOuter = false;
+			privateChunks.clear();
+			return new MainChain(chunks, base, length, prunedHeight, prunedIds, index);
+		}
+
+		private void setChunk(int c, BlockTreeLink[] chunk) {
+			if (!privateOuter && base + (c << CHUNK_BITS) < sharedLength) {
+				BlockTreeLink[][] copy = new BlockTreeLink[chunks.length][];
+				System.arraycopy(chunks, 0, copy, 0, chunks.length);
+				chunks = copy;
+				privateOuter = true;
+			}
+			chunks[c] = chunk;
+			privateChunks.set(c);
+		}
+
+	}
+
+}
@@ -0,0 +1,259 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+
+/**
+ * A HeaderStore backed by two memory-mapped, append-only files.<br>
+ * <br>
+ * The headers file holds fixed length 80 byte header records, in the order they were connected to the tree.  The
+ * heights file holds the record index of the main chain header at each height.
+ */
+public class MappedHeaderStore implements HeaderStore {
+
+	public static final int RECORD_LENGTH = 80;
+
+	public static final String HEADERS_FILENAME = "headers.dat";
+	public static final String HEIGHTS_FILENAME = "heights.idx";
+
+	private static final int HEADERS_MAGIC = 0x53524448;
+	private static final int HEIGHTS_MAGIC = 0x58444948;
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int TIMESTAMP_OFFSET = 68;
+	private static final int BITS_OFFSET = 72;
+
+	private static final int FILE_HEADER_LENGTH = 16;
+	private static final int COUNT_OFFSET = 8;
+	private static final int INITIAL_RECORDS = 4096;
+
+	private final MappedFile headers;
+	private final MappedFile heights;
+
+	public MappedHeaderStore(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create header store directory " + directory);
+		}
+		this.headers = new MappedFile(new File(directory, HEADERS_FILENAME), HEADERS_MAGIC, RECORD_LENGTH);
+		try {
+			this.heights = new MappedFile(new File(directory, HEIGHTS_FILENAME), HEIGHTS_MAGIC, 4);
+		} catch (IOException e) {
+			headers.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public synchronized int append(BlockHeader header) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(RECORD_LENGTH);
+		EndianDataOutputStream eos = new EndianDataOutputStream(bos);
+		try {
+			header.write(0, eos);
+			eos.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException("Header serialization should not cause an IOException", e);
+		}
+		byte[] data = bos.toByteArray();
+		if (data.length != RECORD_LENGTH) {
+			throw new IllegalStateException("Serialized header length of " + data.length + " does not match record length");
+		}
+		int record = headers.count;
+		headers.ensureCapacity(record + 1);
+		ByteBuffer buffer = headers.buffer.duplicate();
+		buffer.position(headers.offset(record));
+		buffer.put(data);
+		headers.setCount(record + 1);
+		return record;
+	}
+
+	@Override
+	public BlockHeader get(int record) {
+		if (record < 0 || record >= headers.count) {
+			return null;
+		}
+		ByteBuffer buffer = headers.buffer.duplicate();
+		buffer.position(headers.offset(record));
+		// The trailing zero is the transaction count expected by the BlockHeader decoder
+		byte[] data = new byte[RECORD_LENGTH + 1];
+		buffer.get(data, 0, RECORD_LENGTH);
+		try {
+			return new BlockHeader(0, new EndianDataInputStream(new ByteArrayInputStream(data)));
+		} catch (IOException e) {
+			throw new IllegalStateException("Header decoding from memory should not cause an IOException", e);
+		}
+	}
+
+	@Override
+	public int getTimestamp(int record) {
+		checkRecord(record);
+		return headers.buffer.getInt(headers.offset(record) + TIMESTAMP_OFFSET);
+	}
+
+	@Override
+	public int getBits(int record) {
+		checkRecord(record);
+		return headers.buffer.getInt(headers.offset(record) + BITS_OFFSET);
+	}
+
+	@Override
+	public int size() {
+		return headers.count;
+	}
+
+	@Override
+	public synchronized void setMainRecord(int height, int record) {
+		if (height < 0) {
+			throw new IllegalArgumentException("Negative heights are invalid");
+		} else if (height > heights.count) {
+			throw new IllegalArgumentException("Height index may only be extended by one entry at a time");
+		}
+		heights.ensureCapacity(height + 1);
+		heights.buffer.putInt(heights.offset(height), record);
+		if (height == heights.count) {
+			heights.setCount(height + 1);
+		}
+	}
+
+	@Override
+	public int getMainRecord(int height) {
+		if (height < 0 || height >= heights.count) {
+			return -1;
+		}
+		return heights.buffer.getInt(heights.offset(height));
+	}
+
+	@Override
+	public synchronized void setMainLength(int length) {
+		if (length < 0 || length > heights.count) {
+			throw new IllegalArgumentException("Main chain length of " + length + " is out of range");
+		}
+		heights.setCount(length);
+	}
+
+	@Override
+	public int getMainLength() {
+		return heights.count;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		headers.buffer.force();
+		heights.buffer.force();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			try {
+				headers.close();
+			} finally {
+				heights.close();
+			}
+		}
+	}
+
+	private void checkRecord(int record) {
+		if (record < 0 || record >= headers.count) {
+			throw new IllegalArgumentException("Record " + record + " is not in the store");
+		}
+	}
+
+	private static class MappedFile {
+
+		private final File file;
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final int recordLength;
+
+		private volatile MappedByteBuffer buffer;
+		private volatile int count;
+
+		public MappedFile(File file, int magic, int recordLength) throws IOException {
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.recordLength = recordLength;
+			try {
+				long size = channel.size();
+				map(Math.max(size, FILE_HEADER_LENGTH + ((long) INITIAL_RECORDS) * recordLength));
+				if (size == 0) {
+					buffer.putInt(0, magic);
+					buffer.putInt(4, FORMAT_VERSION);
+					setCount(0);
+				} else {
+					if (size < FILE_HEADER_LENGTH || buffer.getInt(0) != magic) {
+						throw new IOException("File " + file + " is not a header store file");
+					}
+					if (buffer.getInt(4) != FORMAT_VERSION) {
+						throw new IOException("Unsupported header store format version " + buffer.getInt(4) + " in " + file);
+					}
+					int count = buffer.getInt(COUNT_OFFSET);
+					if (count < 0 || FILE_HEADER_LENGTH + ((long) count) * recordLength > size) {
+						throw new IOException("Record count of " + count + " exceeds the length of " + file);
+					}
+					this.count = count;
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		public int offset(int record) {
+			return FILE_HEADER_LENGTH + record * recordLength;
+		}
+
+		public void setCount(int count) {
+			buffer.putInt(COUNT_OFFSET, count);
+			this.count = count;
+		}
+
+		public void ensureCapacity(int records) {
+			long required = FILE_HEADER_LENGTH + ((long) records) * recordLength;
+			long capacity = buffer.capacity();
+			if (required <= capacity) {
+				return;
+			}
+			while (capacity < required) {
+				capacity <<= 1;
+			}
+			try {
+				map(capacity);
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to extend " + file, e);
+			}
+		}
+
+		private void map(long capacity) throws IOException {
+			if (capacity > Integer.MAX_VALUE) {
+				throw new IOException("File " + file + " exceeds the maximum mapped length");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			this.buffer = buffer;
+		}
+
+		public void close() throws IOException {
+			try {
+				channel.close();
+			} finally {
+				raf.close();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,196 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+import org.tiernolan.bitcoin.util.protocol.types.Hash256;
+
+/**
+ * A bounded pool of BlockHeaders whose parents are not yet known.<br>
+ * <br>
+ * Any number of orphans may share a missing parent.  Adding an orphan which is already in the pool marks it as
+ * recently used.  When the pool is full the least recently used orphan is evicted, and orphans older than the
+ * maximum age are expired.  When a parent arrives, all of its descendants in the pool are resolved together.
+ */
+public class OrphanPool {
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+	public static final long DEFAULT_MAX_AGE = 20 * 60 * 1000L;
+
+	private final int maxSize;
+	private final long maxAge;
+
+	// Insertion order, an orphan is moved to the end when it is used
+	private final LinkedHashMap<Hash256, Orphan> orphans = new LinkedHashMap<Hash256, Orphan>();
+	private final HashMap<Hash256, List<BlockHeader>> children = new HashMap<Hash256, List<BlockHeader>>();
+
+	public OrphanPool() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Creates an orphan pool
+	 *
+	 * @param maxSize the maximum number of orphans
+	 * @param maxAge the maximum age of an orphan, in milliseconds
+	 */
+	public OrphanPool(int maxSize, long maxAge) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be at least 1");
+		}
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Adds an orphan to the pool
+	 *
+	 * @param header
+	 * @return true if the orphan was not already in the pool
+	 */
+	public boolean add(BlockHeader header) {
+		return add(header, System.currentTimeMillis());
+	}
+
+	/**
+	 * Adds an orphan to the pool
+	 *
+	 * @param header
+	 * @param now the current time, in milliseconds
+	 * @return true if the orphan was not already in the pool
+	 */
+	public boolean add(BlockHeader header, long now) {
+		expire(now);
+		Hash256 hash = header.getBlockHash256();
+		Orphan orphan = orphans.remove(hash);
+		if (orphan != null) {
+			orphans.put(hash, new Orphan(orphan.header, now));
+			return false;
+		}
+		orphans.put(hash, new Orphan(header, now));
+		Hash256 parent = header.getPrevious256();
+		List<BlockHeader> siblings = children.get(parent);
+		if (siblings == null) {
+			siblings = new ArrayList<BlockHeader>(1);
+			children.put(parent, siblings);
+		}
+		siblings.add(header);
+		while (orphans.size() > maxSize) {
+			removeEldest();
+		}
+		return true;
+	}
+
+	/**
+	 * Removes orphans which are older than the maximum age
+	 *
+	 * @param now the current time, in milliseconds
+	 * @return the number of orphans removed
+	 */
+	public int expire(long now) {
+		int removed = 0;
+		while (!orphans.isEmpty() && now - orphans.values().iterator().next().time > maxAge) {
+			removeEldest();
+			removed++;
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes and returns all descendants of a parent which are in the pool.  Each header is returned after its
+	 * parent.
+	 *
+	 * @param parent
+	 * @return
+	 */
+	public List<BlockHeader> resolve(Hash parent) {
+		return resolve(new Hash256(parent));
+	}
+
+	/**
+	 * Removes and returns all descendants of a parent which are in the pool.  Each header is returned after its
+	 * parent.
+	 *
+	 * @param parent
+	 * @return
+	 */
+	public List<BlockHeader> resolve(Hash256 parent) {
+		List<BlockHeader> resolved = new ArrayList<BlockHeader>();
+		LinkedList<Hash256> pending = new LinkedList<Hash256>();
+		pending.add(parent);
+		while (!pending.isEmpty()) {
+			List<BlockHeader> next = children.remove(pending.removeFirst());
+			if (next == null) {
+				continue;
+			}
+			for (BlockHeader header : next) {
+				Hash256 hash = header.getBlockHash256();
+				orphans.remove(hash);
+				resolved.add(header);
+				pending.add(hash);
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * Gets if a header is in the pool
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public boolean contains(Hash hash) {
+		return hash.getLength() == Hash256.LENGTH && contains(new Hash256(hash));
+	}
+
+	/**
+	 * Gets if a header is in the pool
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public boolean contains(Hash256 hash) {
+		return orphans.containsKey(hash);
+	}
+
+	/**
+	 * Gets the number of orphans in the pool
+	 *
+	 * @return
+	 */
+	public int size() {
+		return orphans.size();
+	}
+
+	private void removeEldest() {
+		Iterator<Map.Entry<Hash256, Orphan>> itr = orphans.entrySet().iterator();
+		BlockHeader header = itr.next().getValue().header;
+		itr.remove();
+		Hash256 parent = header.getPrevious256();
+		List<BlockHeader> siblings = children.get(parent);
+		siblings.remove(header);
+		if (siblings.isEmpty()) {
+			children.remove(parent);
+		}
+	}
+
+	private static class Orphan {
+
+		private final BlockHeader header;
+		private final long time;
+
+		public Orphan(BlockHeader header, long time) {
+			this.header = header;
+			this.time = time;
+		}
+
+	}
+
+}
@@ -0,0 +1,82 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.tiernolan.bitcoin.util.encoding.StringCreator;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+
+/**
+ * A change to the main chain.  The headers which were disconnected are listed starting at the old tip and the 
+ * headers which were connected are listed starting at the fork point, so applying the lists in order moves from the
+ * old tip to the new tip.
+ */
+public class TreeEvent {
+	
+	private final List<BlockHeader> disconnected;
+	private final List<BlockHeader> connected;
+	
+	public TreeEvent(List<BlockHeader> disconnected, List<BlockHeader> connected) {
+		this.disconnected = Collections.unmodifiableList(new ArrayList<BlockHeader>(disconnected));
+		this.connected = Collections.unmodifiableList(new ArrayList<BlockHeader>(connected));
+	}
+	
+	/**
+	 * Gets the headers removed from the main chain, starting at the old tip
+	 * 
+	 * @return
+	 */
+	public List<BlockHeader> getDisconnected() {
+		return disconnected;
+	}
+	
+	/**
+	 * Gets the headers added to the main chain, ending at the new tip
+	 * 
+	 * @return
+	 */
+	public List<BlockHeader> getConnected() {
+		return connected;
+	}
+	
+	/**
+	 * Gets if the event removed headers from the main chain
+	 * 
+	 * @return
+	 */
+	public boolean isReorg() {
+		return !disconnected.isEmpty();
+	}
+	
+	/**
+	 * Combines this event with an event which followed it.  Headers connected by this event and then disconnected 
+	 * by the next event cancel out.
+	 * 
+	 * @param next
+	 * @return
+	 */
+	public TreeEvent merge(TreeEvent next) {
+		List<BlockHeader> disconnected = new ArrayList<BlockHeader>(this.disconnected);
+		List<BlockHeader> connected = new ArrayList<BlockHeader>(this.connected);
+		for (BlockHeader header : next.disconnected) {
+			int last = connected.size() - 1;
+			if (last >= 0 && connected.get(last).equals(header)) {
+				connected.remove(last);
+			} else {
+				disconnected.add(header);
+			}
+		}
+		connected.addAll(next.connected);
+		return new TreeEvent(disconnected, connected);
+	}
+	
+	@Override
+	public String toString() {
+		return new StringCreator()
+			.add("disconnected", disconnected.size())
+			.add("connected", connected.size())
+			.toString();
+	}
+
+}
@@ -0,0 +1,12 @@
+package org.tiernolan.bitcoin.util.chain;
+
+public interface TreeEventMonitor {
+
+	/**
+	 * Handles a change to the main chain.  Each reorg, or extension of the main chain, produces a single event.
+	 * 
+	 * @param event
+	 */
+	public void handle(TreeEvent event);
+	
+}
@@ -1,5 +1,6 @@
 package org.tiernolan.bitcoin.util.crypt;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
@@ -21,6 +22,22 @@ public class Digest {
 		return hash(message, SHA256, 2);
 	}
 
+	/**
+	 * Computes the double SHA-256 digest of the remaining bytes of a buffer, without copying them to an array.  The
+	 * position of the buffer is not changed.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static byte[] doubleSHA256(ByteBuffer message) {
+		MessageDigest d = getDigestLocal(SHA256);
+		d.reset();
+		d.update(message.duplicate());
+		byte[] first = d.digest();
+		d.update(first);
+		return d.digest();
+	}
+
 	public static byte[] RIPEMD160(byte[] message) {
 		return hash(message, RIPEMD160, 1);
 	}
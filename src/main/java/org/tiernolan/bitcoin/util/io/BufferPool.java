@@ -0,0 +1,197 @@
+package org.tiernolan.bitcoin.util.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of heap ByteBuffers, grouped into power of two size classes.<br>
+ * <br>
+ * The pool is split into stripes, and each thread uses the stripe selected by its id, so threads rarely contend for
+ * the same lock.  Each stripe holds a limited number of buffers of each size class.  Requests larger than the
+ * largest size class are allocated directly and are not pooled when released.<br>
+ * <br>
+ * A buffer must not be used after it has been released, and must only be released once.
+ */
+public class BufferPool {
+
+	public static final int MIN_CLASS_BITS = 8;
+	public static final int MAX_CLASS_BITS = 22;
+
+	private static final int DEFAULT_BUFFERS_PER_CLASS = 8;
+
+	private static final BufferPool DEFAULT = new BufferPool(Runtime.getRuntime().availableProcessors(), DEFAULT_BUFFERS_PER_CLASS);
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	private final int buffersPerClass;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong outstanding = new AtomicLong();
+	private final AtomicLong pooled = new AtomicLong();
+
+	/**
+	 * Gets the pool shared by the protocol streams
+	 *
+	 * @return
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Creates a buffer pool
+	 *
+	 * @param stripes the number of stripes, this is rounded up to a power of two
+	 * @param buffersPerClass the maximum number of buffers of each size class held by each stripe
+	 */
+	public BufferPool(int stripes, int buffersPerClass) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("At least one stripe is required");
+		} else if (buffersPerClass < 0) {
+			throw new IllegalArgumentException("Buffers per class must not be negative");
+		}
+		int count = Integer.highestOneBit(stripes);
+		if (count < stripes) {
+			count <<= 1;
+		}
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		this.stripeMask = count - 1;
+		this.buffersPerClass = buffersPerClass;
+	}
+
+	/**
+	 * Gets a cleared buffer with at least the given capacity.  The limit of the buffer is set to the requested size.
+	 *
+	 * @param size
+	 * @return
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative buffer sizes are not allowed");
+		}
+		int c = getSizeClass(size);
+		ByteBuffer buf = null;
+		if (c >= 0) {
+			Stripe stripe = getStripe();
+			synchronized (stripe) {
+				buf = stripe.buffers[c].pollLast();
+			}
+			if (buf != null) {
+				hits.incrementAndGet();
+				pooled.addAndGet(-buf.capacity());
+			} else {
+				misses.incrementAndGet();
+				buf = ByteBuffer.allocate(1 << (c + MIN_CLASS_BITS));
+			}
+		} else {
+			misses.incrementAndGet();
+			buf = ByteBuffer.allocate(size);
+		}
+		outstanding.addAndGet(buf.capacity());
+		buf.clear();
+		buf.limit(size);
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool
+	 *
+	 * @param buf a buffer which was acquired from this pool
+	 */
+	public void release(ByteBuffer buf) {
+		int capacity = buf.capacity();
+		outstanding.addAndGet(-capacity);
+		if (Integer.bitCount(capacity) != 1) {
+			return;
+		}
+		int c = Integer.numberOfTrailingZeros(capacity) - MIN_CLASS_BITS;
+		if (c < 0 || c > MAX_CLASS_BITS - MIN_CLASS_BITS) {
+			return;
+		}
+		Stripe stripe = getStripe();
+		synchronized (stripe) {
+			if (stripe.buffers[c].size() >= buffersPerClass) {
+				return;
+			}
+			stripe.buffers[c].addLast(buf);
+		}
+		pooled.addAndGet(capacity);
+	}
+
+	/**
+	 * Gets the number of requests which were served from the pool
+	 *
+	 * @return
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of requests which required a new buffer
+	 *
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the total capacity of the buffers which have been acquired and not released
+	 *
+	 * @return
+	 */
+	public long getBytesOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Gets the total capacity of the buffers held by the pool
+	 *
+	 * @return
+	 */
+	public long getBytesPooled() {
+		return pooled.get();
+	}
+
+	private Stripe getStripe() {
+		return stripes[((int) Thread.currentThread().getId()) & stripeMask];
+	}
+
+	/**
+	 * Gets the size class for a size
+	 *
+	 * @param size
+	 * @return the size class, or -1 if the size is larger than the largest class
+	 */
+	private static int getSizeClass(int size) {
+		if (size <= (1 << MIN_CLASS_BITS)) {
+			return 0;
+		}
+		int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+		if (bits > MAX_CLASS_BITS) {
+			return -1;
+		}
+		return bits - MIN_CLASS_BITS;
+	}
+
+	private static class Stripe {
+
+		private final ArrayDeque<ByteBuffer>[] buffers;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public Stripe() {
+			buffers = new ArrayDeque[MAX_CLASS_BITS - MIN_CLASS_BITS + 1];
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = new ArrayDeque<ByteBuffer>();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,73 @@
+package org.tiernolan.bitcoin.util.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream which reads the remaining bytes of a ByteBuffer.  The bytes are not copied, so the buffer must not
+ * be changed while the stream is in use.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buf;
+
+	private int mark;
+
+	public ByteBufferInputStream(ByteBuffer buf) {
+		this.buf = buf.duplicate();
+		this.mark = this.buf.position();
+	}
+
+	@Override
+	public int read() {
+		if (!buf.hasRemaining()) {
+			return -1;
+		}
+		return buf.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		int remaining = buf.remaining();
+		if (remaining == 0) {
+			return -1;
+		}
+		len = Math.min(len, remaining);
+		buf.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		int skipped = (int) Math.min(n, buf.remaining());
+		buf.position(buf.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public void mark(int readLimit) {
+		mark = buf.position();
+	}
+
+	@Override
+	public void reset() {
+		buf.position(mark);
+	}
+
+}
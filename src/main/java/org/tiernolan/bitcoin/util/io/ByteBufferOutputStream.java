@@ -0,0 +1,103 @@
+package org.tiernolan.bitcoin.util.io;
+
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * An OutputStream which writes to a ByteBuffer.<br>
+ * <br>
+ * The buffer is either supplied by the caller, or taken from a BufferPool.  A pooled buffer is replaced by a larger
+ * buffer from the pool when it is full.
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+	private final BufferPool pool;
+
+	private ByteBuffer buf;
+
+	/**
+	 * Creates a stream which writes to a buffer, starting at its position.  The stream does not grow the buffer.
+	 *
+	 * @param buf
+	 */
+	public ByteBufferOutputStream(ByteBuffer buf) {
+		this.pool = null;
+		this.buf = buf;
+	}
+
+	public ByteBufferOutputStream(BufferPool pool, int size) {
+		this.pool = pool;
+		this.buf = pool.acquire(size);
+		this.buf.limit(this.buf.capacity());
+	}
+
+	@Override
+	public void write(int b) {
+		ensureRemaining(1);
+		buf.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureRemaining(len);
+		buf.put(b, off, len);
+	}
+
+	/**
+	 * Gets the number of bytes written
+	 *
+	 * @return
+	 */
+	public int size() {
+		return buf.position();
+	}
+
+	/**
+	 * Discards the bytes written so far
+	 */
+	public void reset() {
+		buf.clear();
+	}
+
+	/**
+	 * Gets the buffer which holds the bytes written.  The buffer must not be used after the stream is closed.
+	 *
+	 * @return a buffer with its position at zero and its limit at the number of bytes written
+	 */
+	public ByteBuffer getBuffer() {
+		ByteBuffer written = buf.duplicate();
+		written.flip();
+		return written;
+	}
+
+	/**
+	 * Returns the buffer to the pool, if it was taken from a pool
+	 */
+	@Override
+	public void close() {
+		if (buf != null && pool != null) {
+			pool.release(buf);
+			buf = null;
+		}
+	}
+
+	private void ensureRemaining(int len) {
+		if (buf.remaining() >= len) {
+			return;
+		} else if (pool == null) {
+			throw new BufferOverflowException();
+		}
+		int required = buf.position() + len;
+		if (required < 0) {
+			throw new IllegalStateException("Buffer size exceeds maximum array length");
+		}
+		ByteBuffer newBuf = pool.acquire(Math.max(required, buf.capacity() << 1));
+		newBuf.limit(newBuf.capacity());
+		buf.flip();
+		newBuf.put(buf);
+		pool.release(buf);
+		buf = newBuf;
+	}
+
+}
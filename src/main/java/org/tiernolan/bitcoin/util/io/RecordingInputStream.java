@@ -0,0 +1,107 @@
+package org.tiernolan.bitcoin.util.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An InputStream which keeps a copy of every byte read from the underlying stream.  The stream does not read ahead,
+ * so the underlying stream is left positioned directly after the last byte read.
+ */
+public class RecordingInputStream extends FilterInputStream {
+
+	private byte[] buf;
+	private int count;
+
+	public RecordingInputStream(InputStream in) {
+		this(in, 256);
+	}
+
+	/**
+	 * Creates a stream
+	 *
+	 * @param in
+	 * @param initialSize the initial size of the record buffer
+	 */
+	public RecordingInputStream(InputStream in, int initialSize) {
+		super(in);
+		this.buf = new byte[Math.max(16, initialSize)];
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) {
+			ensureCapacity(1);
+			buf[count++] = (byte) b;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if (read > 0) {
+			ensureCapacity(read);
+			System.arraycopy(b, off, buf, count, read);
+			count += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// Skipped bytes must be recorded, so they are read
+		byte[] skipBuf = new byte[(int) Math.min(n, 512)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(skipBuf, 0, (int) Math.min(n - skipped, skipBuf.length));
+			if (read <= 0) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readLimit) {
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("Mark is not supported");
+	}
+
+	/**
+	 * Gets the number of bytes read
+	 *
+	 * @return
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the bytes read, without copying them.  The buffer is only valid until the next read.
+	 *
+	 * @return
+	 */
+	public ByteBuffer getRecord() {
+		return ByteBuffer.wrap(buf, 0, count);
+	}
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + extra));
+		}
+	}
+
+}
@@ -3,10 +3,12 @@ package org.tiernolan.bitcoin.util.protocol;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.MessageDigest;
 
-import org.bouncycastle.util.encoders.Hex;
 import org.tiernolan.bitcoin.util.crypt.Digest;
+import org.tiernolan.bitcoin.util.io.BufferPool;
 import org.tiernolan.bitcoin.util.protocol.endian.Endian;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
 import org.tiernolan.bitcoin.util.protocol.message.GetHeaders;
@@ -16,25 +18,31 @@ import org.tiernolan.bitcoin.util.protocol.message.Ping;
 import org.tiernolan.bitcoin.util.protocol.message.Pong;
 import org.tiernolan.bitcoin.util.protocol.message.Verack;
 import org.tiernolan.bitcoin.util.protocol.message.Version;
-import org.tiernolan.bitcoin.util.protocol.types.MutableHash;
 
 public class BitcoinInputStream extends EndianDataInputStream {
 
-	private static int MAX_LENGTH = 32 * 1024 * 1024;
-	
 	private final MessageDigest d;
+	private final FrameDecoder decoder;
 	
 	protected boolean headerRead = false;
 	protected boolean dataRead = false;
 	
 	protected final int network;
-	protected final MutableHash command;
 	protected final int safety;
 	protected int version;
 	protected int messageId;
 	protected int length;
 	protected byte[] checksum = new byte[4];
-	protected byte[] data;
+	protected MessageFrame frame;
+	
+	private final BufferPool pool;
+	private final byte[] header = new byte[FrameDecoder.HEADER_LENGTH];
+	
+	// Holds the header and payload of the current message, or null if no buffer is held
+	private ByteBuffer buffer;
+	
+	// The payload of the previous message, if it was opened as a stream
+	private PayloadInputStream payload;
 	
 	private int totalRead = 0;
 	
@@ -43,11 +51,25 @@ public class BitcoinInputStream extends EndianDataInputStream {
 	}
 	
 	public BitcoinInputStream(int network, InputStream in, int safety) throws IOException {
+		this(network, in, safety, BufferPool.getDefault());
+	}
+	
+	/**
+	 * Creates a stream which reads messages into buffers taken from a pool
+	 * 
+	 * @param network the network magic value
+	 * @param in
+	 * @param safety the divisor applied to the total bytes read so far when sizing the first buffer for a message
+	 * @param pool
+	 * @throws IOException
+	 */
+	public BitcoinInputStream(int network, InputStream in, int safety, BufferPool pool) throws IOException {
 		super(in);
+		this.pool = pool;
 		this.d = Digest.getDigest(Digest.SHA256);
+		this.decoder = new FrameDecoder(network);
 		this.network = network;
 		this.safety = safety;
-		this.command = new MutableHash(12);
 		if (this.d == null) {
 			throw new IOException("Unable to create SHA-256 digest");
 		}
@@ -55,6 +77,8 @@ public class BitcoinInputStream extends EndianDataInputStream {
 	
 	public int getCommandId() throws IOException {
 		if (!headerRead) {
+			releaseBuffer();
+			closePayload();
 			int m;
 			if ((m = Endian.swap(readInt())) != network) {
 				do {
@@ -66,10 +90,13 @@ public class BitcoinInputStream extends EndianDataInputStream {
 				} while (m != network);
 
 			}
-			command.read(this);
-			messageId = Message.getId(command);
-			length = Endian.swap(readInt());
-			read(checksum);
+			for (int i = 0; i < 4; i++) {
+				header[i] = (byte) (m >> (i << 3));
+			}
+			readFully(header, 4, FrameDecoder.HEADER_LENGTH - 4);
+			System.arraycopy(header, 20, checksum, 0, 4);
+			messageId = Message.getId(header, 4);
+			length = decoder.getLength(ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN), 0);
 			headerRead = true;
 		}
 		return messageId;
@@ -77,7 +104,8 @@ public class BitcoinInputStream extends EndianDataInputStream {
 	
 	public String getCommand() throws IOException {
 		getCommandId();
-		return command.toASCIIString();
+		ByteBuffer le = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		return Message.getCommand(le.getLong(4), le.getInt(12));
 	}
 	
 	public void setVersion(int version) {
@@ -86,78 +114,122 @@ public class BitcoinInputStream extends EndianDataInputStream {
 	
 	public void skipMessage() throws IOException {
 		readData();
-		dataRead = false;
-		headerRead = false;
+		endMessage(true);
 	}
 	
 	public Version readVersion() throws IOException {
 		readData();
 		try {
-			return new Version(version, data);
+			return new Version(version, frame.getInputStream());
 		} finally {
-			dataRead = false;
-			headerRead = false;
+			endMessage(true);
 		}
 	}
 	
 	public Verack readVerack() throws IOException {
 		readData();
 		try {
-			return new Verack(version, data);
+			return new Verack(version, frame.getInputStream());
 		} finally {
-			dataRead = false;
-			headerRead = false;
+			endMessage(true);
 		}
 	}
 	
 	public Ping readPing() throws IOException {
 		readData();
 		try {
-			return new Ping(version, data);
+			return new Ping(version, frame.getInputStream());
 		} finally {
-			dataRead = false;
-			headerRead = false;
+			endMessage(true);
 		}
 	}
 	
 	public Pong readPong() throws IOException {
 		readData();
 		try {
-			return new Pong(version, data);
+			return new Pong(version, frame.getInputStream());
 		} finally {
-			dataRead = false;
-			headerRead = false;
+			endMessage(true);
 		}
 	}
 
 	public GetHeaders readGetHeaders() throws IOException {
 		readData();
 		try {
-			return new GetHeaders(version, data);
+			return new GetHeaders(version, frame.getInputStream());
 		} finally {
-			dataRead = false;
-			headerRead = false;
+			endMessage(true);
 		}
 	}
 	
 	public Headers readHeaders() throws IOException {
 		readData();
 		try {
-			return new Headers(version, data);
+			return new Headers(version, frame.getInputStream());
 		} finally {
-			dataRead = false;
-			headerRead = false;
+			endMessage(true);
 		}
 	}
 	
 	public Inv getInv() throws IOException {
 		readData();
 		try {
-			return new Inv(version, data);
+			return new Inv(version, frame.getInputStream());
+		} finally {
+			endMessage(true);
+		}
+	}
+	
+	/**
+	 * Reads the checksummed payload of the current message without decoding it
+	 * 
+	 * @return a copy of the payload
+	 * @throws IOException
+	 */
+	public byte[] readPayload() throws IOException {
+		readData();
+		try {
+			return frame.toByteArray();
+		} finally {
+			endMessage(true);
+		}
+	}
+	
+	/**
+	 * Reads the current message as a checksummed frame without decoding it.  The payload of the frame is held in a
+	 * pooled buffer, so it is only valid until the next message is read.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public MessageFrame readFrame() throws IOException {
+		readData();
+		try {
+			return frame;
 		} finally {
-			dataRead = false;
-			headerRead = false;
+			// The frame buffer is released when the next message is read
+			endMessage(false);
+		}
+	}
+	
+	/**
+	 * Opens the payload of the current message as a stream which reads directly from the connection.  The checksum
+	 * is checked as the payload is read, and any unread bytes are skipped when the next message is read.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public PayloadInputStream openPayload() throws IOException {
+		if (!headerRead) {
+			getCommandId();
+		}
+		if (dataRead) {
+			throw new IllegalStateException("The payload of the current message has already been read");
 		}
+		payload = new PayloadInputStream(in, d, checksum, length);
+		totalRead += length;
+		headerRead = false;
+		return payload;
 	}
 	
 	public int getVersion() {
@@ -171,42 +243,79 @@ public class BitcoinInputStream extends EndianDataInputStream {
 		if (dataRead) {
 			return;
 		}
-		if (length < 0) {
-			throw new IOException("Negative data lengths are not allowed");
-		} else if (length > MAX_LENGTH) {
-			throw new IOException("Mesage sizes above 32MB are not allowed");
-		}
-
-		int size = Math.max(128, totalRead / safety);
-		size = Math.min(length, size);
 		
-		byte[] data = new byte[size];
+		int frameLength = FrameDecoder.HEADER_LENGTH + length;
 		
-		int read = 0;
+		// The buffer only grows as data arrives, so a false length cannot force a large allocation
+		int size = FrameDecoder.HEADER_LENGTH + Math.max(128, totalRead / safety);
+		size = Math.min(frameLength, size);
 		
-		while (read < length) {
-			read += read(data, read, data.length - read);
-			if (read == data.length) {
-				data = expand(data);
-			}
-		}
+		buffer = pool.acquire(size);
+		System.arraycopy(header, 0, buffer.array(), 0, FrameDecoder.HEADER_LENGTH);
 		
-		this.data = new byte[length];
-		System.arraycopy(data, 0, this.data, 0, length);
-		this.totalRead += length;
-		byte[] digest = Digest.doubleSHA256(this.data);
-		for (int i = 0; i < 4; i++) {
-			if (digest[i] != checksum[i]) {
-				throw new IOException("Checksum error at position " + i + " " + Hex.toHexString(digest, 0, 4) + " " + Hex.toHexString(checksum));
+		try {
+			int read = FrameDecoder.HEADER_LENGTH;
+			
+			// The digest is updated as each chunk arrives, rather than in a second pass over the payload
+			d.reset();
+			while (read < frameLength) {
+				int n = Math.min(buffer.capacity(), frameLength) - read;
+				readFully(buffer.array(), read, n);
+				d.update(buffer.array(), read, n);
+				read += n;
+				if (read < frameLength) {
+					ByteBuffer newBuffer = pool.acquire(Math.min(frameLength, (buffer.capacity() * 3) / 2));
+					System.arraycopy(buffer.array(), 0, newBuffer.array(), 0, read);
+					pool.release(buffer);
+					buffer = newBuffer;
+				}
 			}
+			
+			PayloadInputStream.checkDigest(d, checksum);
+			
+			buffer.limit(frameLength);
+			buffer.position(0);
+			this.frame = decoder.decode(buffer, false);
+		} catch (IOException e) {
+			releaseBuffer();
+			throw e;
+		}
+		if (frame == null) {
+			throw new IllegalStateException("Frame buffer does not contain a complete frame");
 		}
+		this.totalRead += length;
 		dataRead = true;
 	}
 	
-	private static byte[] expand(byte[] arr) {
-		byte[] newArr = new byte[(arr.length * 3) / 2];
-		System.arraycopy(arr, 0, newArr, 0, arr.length);
-		return newArr;
+	@Override
+	public void close() throws IOException {
+		releaseBuffer();
+		payload = null;
+		super.close();
+	}
+	
+	private void endMessage(boolean release) {
+		dataRead = false;
+		headerRead = false;
+		if (release) {
+			releaseBuffer();
+		}
+	}
+	
+	private void closePayload() throws IOException {
+		if (payload != null) {
+			PayloadInputStream p = payload;
+			payload = null;
+			p.close();
+		}
+	}
+	
+	private void releaseBuffer() {
+		if (buffer != null) {
+			pool.release(buffer);
+			buffer = null;
+			frame = null;
+		}
 	}
 
 }
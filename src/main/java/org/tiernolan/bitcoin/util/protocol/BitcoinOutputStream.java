@@ -1,35 +1,36 @@
 package org.tiernolan.bitcoin.util.protocol;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
 
-import org.tiernolan.bitcoin.util.crypt.Digest;
+import org.tiernolan.bitcoin.util.io.BufferPool;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
 import org.tiernolan.bitcoin.util.protocol.message.Version;
-import org.tiernolan.bitcoin.util.protocol.types.MutableHash;
 
 public class BitcoinOutputStream extends EndianDataOutputStream {
 
-	private final MessageDigest d;
-	
-	protected boolean headerRead = false;
+	private final FrameEncoder encoder;
 	
 	protected final int network;
-	protected final MutableHash command;
 	protected int version = 0;
-	protected byte[] checksum = new byte[4];
-	protected byte[] data;
 	
 	public BitcoinOutputStream(int network, OutputStream out) throws IOException {
+		this(network, out, BufferPool.getDefault());
+	}
+	
+	/**
+	 * Creates a stream which encodes messages into buffers taken from a pool
+	 * 
+	 * @param network the network magic value
+	 * @param out
+	 * @param pool
+	 * @throws IOException
+	 */
+	public BitcoinOutputStream(int network, OutputStream out, BufferPool pool) throws IOException {
 		super(out);
-		this.d = Digest.getDigest(Digest.SHA256);
+		this.encoder = new FrameEncoder(network, pool);
 		this.network = network;
-		this.command = new MutableHash(12);
-		if (this.d == null) {
-			throw new IOException("Unable to create SHA-256 digest");
-		}
 	}
 	
 	public void setVersion(int version) {
@@ -42,20 +43,13 @@ public class BitcoinOutputStream extends EndianDataOutputStream {
 	}
 	
 	public synchronized void writeMessage(Message message) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		EndianDataOutputStream eos = new EndianDataOutputStream(bos);
-		message.write(Version.VERSION, eos);
-		eos.flush();
-		eos.close();
-		byte[] data = bos.toByteArray();
-		byte[] check = Digest.doubleSHA256(data);
-		writeLEInt(network);
-		command.setASCII(message.getCommand());
-		command.write(version, this);
-		writeLEInt(data.length);
-		write(check, 0, 4);
-		write(data);
-		flush();
+		ByteBuffer frame = encoder.encode(Version.VERSION, message);
+		try {
+			write(frame.array(), frame.arrayOffset(), frame.limit());
+			flush();
+		} finally {
+			encoder.getPool().release(frame);
+		}
 	}
 
 }
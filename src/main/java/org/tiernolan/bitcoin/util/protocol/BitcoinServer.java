@@ -0,0 +1,208 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An accept loop which serves each inbound peer of a BitcoinServerSocket on its own thread.<br>
+ * <br>
+ * The acceptor only accepts connections.  The version handshake is performed on the peer's thread, so a slow peer
+ * cannot stall other connections.  The number of handshakes in progress is limited, and the acceptor waits for a
+ * handshake to complete when the limit is reached.<br>
+ * <br>
+ * By default, peers are served by virtual threads if the runtime supports them, and by a cached pool of daemon
+ * threads otherwise.
+ */
+public class BitcoinServer {
+
+	public static final int DEFAULT_MAX_HANDSHAKES = 256;
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+
+	/**
+	 * Handles a peer after the handshake has completed.  The socket is closed when the handler returns.
+	 */
+	public static interface PeerHandler {
+
+		/**
+		 * Handles a peer connection
+		 *
+		 * @param socket
+		 * @throws IOException
+		 */
+		public void handle(BitcoinSocket socket) throws IOException;
+
+	}
+
+	private final BitcoinServerSocket server;
+	private final PeerHandler handler;
+	private final Executor executor;
+	private final boolean ownsExecutor;
+	private final Semaphore handshakes;
+	private final int handshakeTimeout;
+	private final Thread acceptor;
+	private final Set<BitcoinSocket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<BitcoinSocket, Boolean>());
+
+	private volatile boolean running = true;
+
+	public BitcoinServer(BitcoinServerSocket server, PeerHandler handler) {
+		this(server, handler, null, DEFAULT_MAX_HANDSHAKES, DEFAULT_HANDSHAKE_TIMEOUT);
+	}
+
+	/**
+	 * Creates a server
+	 *
+	 * @param server
+	 * @param handler
+	 * @param executor the executor which runs the handshake and handler for each peer, or null to use the default
+	 * @param maxHandshakes the maximum number of handshakes in progress
+	 * @param handshakeTimeout the read timeout during the handshake, in milliseconds
+	 */
+	public BitcoinServer(BitcoinServerSocket server, PeerHandler handler, Executor executor, int maxHandshakes, int handshakeTimeout) {
+		if (maxHandshakes <= 0) {
+			throw new IllegalArgumentException("At least one handshake must be allowed");
+		}
+		this.server = server;
+		this.handler = handler;
+		this.ownsExecutor = executor == null;
+		this.executor = executor == null ? createDefaultExecutor() : executor;
+		this.handshakes = new Semaphore(maxHandshakes);
+		this.handshakeTimeout = handshakeTimeout;
+		this.acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "Bitcoin Server Acceptor");
+		this.acceptor.setDaemon(true);
+	}
+
+	public void start() {
+		acceptor.start();
+	}
+
+	/**
+	 * Gets the number of connected peers, including those which have not completed the handshake
+	 *
+	 * @return
+	 */
+	public int getConnectionCount() {
+		return sockets.size();
+	}
+
+	/**
+	 * Closes the server socket and all peer connections
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		running = false;
+		try {
+			server.close();
+		} catch (IOException e) {
+		}
+		acceptor.interrupt();
+		acceptor.join();
+		for (BitcoinSocket s : sockets) {
+			sockets.remove(s);
+			closeSocket(s);
+		}
+		if (ownsExecutor) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	private void acceptLoop() {
+		while (running) {
+			try {
+				handshakes.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
+			BitcoinSocket s;
+			try {
+				s = server.acceptSocket();
+			} catch (SocketTimeoutException e) {
+				handshakes.release();
+				continue;
+			} catch (IOException e) {
+				handshakes.release();
+				if (server.isClosed()) {
+					return;
+				}
+				continue;
+			}
+			sockets.add(s);
+			try {
+				executor.execute(new PeerTask(s));
+			} catch (RejectedExecutionException e) {
+				handshakes.release();
+				sockets.remove(s);
+				closeSocket(s);
+			}
+		}
+	}
+
+	private class PeerTask implements Runnable {
+
+		private final BitcoinSocket s;
+
+		public PeerTask(BitcoinSocket s) {
+			this.s = s;
+		}
+
+		@Override
+		public void run() {
+			try {
+				try {
+					int timeout = s.getSoTimeout();
+					s.setSoTimeout(handshakeTimeout);
+					s.handshake();
+					s.setSoTimeout(timeout);
+				} finally {
+					handshakes.release();
+				}
+				handler.handle(s);
+			} catch (IOException e) {
+			} finally {
+				sockets.remove(s);
+				closeSocket(s);
+			}
+		}
+
+	}
+
+	private static void closeSocket(BitcoinSocket s) {
+		try {
+			s.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static Executor createDefaultExecutor() {
+		try {
+			// Virtual threads are only available from Java 21
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor) m.invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Bitcoin Server Peer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+}
@@ -33,13 +33,29 @@ public class BitcoinServerSocket extends ServerSocket {
 	
 	@Override
 	public BitcoinSocket accept() throws IOException {
+		BitcoinSocket s = acceptSocket();
+		try {
+			s.handshake();
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		return s;
+	}
+	
+	/**
+	 * Accepts a connection without performing the version handshake
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	BitcoinSocket acceptSocket() throws IOException {
 		InetSocketAddress local = localAddress;
 		InetAddress localAddress = local == null ? null : local.getAddress();
 		int localPort = local == null ? 0 : local.getPort();
 		BitcoinSocket s = new BitcoinSocket(network, services, height, nonce, relay, localAddress, localPort);
 		s.setSoTimeout(getSoTimeout());
 		implAccept(s);
-		s.handshake();
 		return s;
 	}
 
@@ -6,9 +6,9 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import org.tiernolan.bitcoin.util.chain.BlockTree;
+import org.tiernolan.bitcoin.util.chain.HeaderVerifier;
 import org.tiernolan.bitcoin.util.chain.MisbehaveException;
 import org.tiernolan.bitcoin.util.protocol.message.GetHeaders;
-import org.tiernolan.bitcoin.util.protocol.message.Headers;
 import org.tiernolan.bitcoin.util.protocol.message.Verack;
 import org.tiernolan.bitcoin.util.protocol.message.Version;
 import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
@@ -80,29 +80,40 @@ public class BitcoinSocket extends Socket {
 	}
 
 	public boolean downloadHeaders(BlockTree tree, Hash stop) throws IOException {
+		return downloadHeaders(tree, stop, null);
+	}
+
+	/**
+	 * Downloads headers from the peer until it has no more to send.  If a HeaderVerifier is given, each batch is
+	 * decoded and proof of work checked in parallel before it is added to the tree.
+	 * 
+	 * @param tree
+	 * @param stop
+	 * @param verifier the verifier, or null to decode batches on this thread
+	 * @return true if any headers were added
+	 * @throws IOException
+	 */
+	public boolean downloadHeaders(BlockTree tree, Hash stop, HeaderVerifier verifier) throws IOException {
 		boolean added = false;
 		while (true) {
-			Hash[] locators = tree.getBlockLocator();
-			GetHeaders getHeaders = new GetHeaders(Message.VERSION, locators, new Hash(new byte[32]));
-			int commandId;
-			do {
-				getOutputStream().writeMessage(getHeaders);
-				commandId = getInputStream().getCommandId();
-				if (commandId != Message.HEADERS) {
-					getInputStream().skipMessage();
-				}
-			} while (commandId != Message.HEADERS);
-			Headers headers = getInputStream().readHeaders();
-			BlockHeader[] blockHeaders = headers.getBlockHeaders();
-			if (blockHeaders.length == 0) {
-				break;
+			GetHeaders getHeaders = new GetHeaders(Message.VERSION, tree.getLocator(), new Hash(new byte[32]));
+			getOutputStream().writeMessage(getHeaders);
+			while (getInputStream().getCommandId() != Message.HEADERS) {
+				getInputStream().skipMessage();
 			}
-			for (BlockHeader h : blockHeaders) {
-				try {
-					added |= tree.add(h);
-				} catch (MisbehaveException e) {
-					throw new IOException(e);
+			BlockHeader[] blockHeaders;
+			try {
+				if (verifier == null) {
+					blockHeaders = getInputStream().readHeaders().getBlockHeaders();
+				} else {
+					blockHeaders = verifier.verify(getInputStream().getVersion(), getInputStream().readPayload());
+				}
+				if (blockHeaders.length == 0) {
+					break;
 				}
+				added |= tree.addAll(blockHeaders);
+			} catch (MisbehaveException e) {
+				throw new IOException(e);
 			}
 		}
 		return added;
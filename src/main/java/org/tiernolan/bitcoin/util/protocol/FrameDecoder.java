@@ -0,0 +1,116 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.tiernolan.bitcoin.util.crypt.Digest;
+
+/**
+ * Decodes message frames from a ByteBuffer.<br>
+ * <br>
+ * Each frame is a 24 byte header, holding the network magic, command, payload length and checksum, followed by the
+ * payload.  The checksum is computed directly over the buffer and the payload of the decoded frame is a slice of the
+ * buffer, so decoding a frame does not copy the payload.
+ */
+public class FrameDecoder {
+
+	public static final int HEADER_LENGTH = 24;
+	public static final int MAX_LENGTH = 32 * 1024 * 1024;
+
+	private static final int COMMAND_OFFSET = 4;
+	private static final int LENGTH_OFFSET = 16;
+	private static final int CHECKSUM_OFFSET = 20;
+
+	private final int network;
+	private final int maxLength;
+
+	public FrameDecoder(int network) {
+		this(network, MAX_LENGTH);
+	}
+
+	public FrameDecoder(int network, int maxLength) {
+		this.network = network;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Decodes the next frame in a buffer.  Bytes before the next network magic value are skipped.  If a whole frame
+	 * is available, the position of the buffer is moved to the end of the frame.
+	 *
+	 * @param buf
+	 * @return the frame, or null if the buffer does not hold a whole frame
+	 * @throws IOException if the frame has an invalid length or checksum
+	 */
+	public MessageFrame decode(ByteBuffer buf) throws IOException {
+		return decode(buf, true);
+	}
+
+	/**
+	 * Decodes the next frame in a buffer
+	 *
+	 * @param buf
+	 * @param checksum false if the payload checksum has already been checked
+	 * @return the frame, or null if the buffer does not hold a whole frame
+	 * @throws IOException
+	 */
+	MessageFrame decode(ByteBuffer buf, boolean checksum) throws IOException {
+		ByteBuffer le = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int start = buf.position();
+		int limit = buf.limit();
+		while (start + 4 <= limit && le.getInt(start) != network) {
+			start++;
+		}
+		buf.position(start);
+		if (limit - start < HEADER_LENGTH) {
+			return null;
+		}
+		int length = getLength(le, start);
+		if (limit - start - HEADER_LENGTH < length) {
+			return null;
+		}
+		int payloadStart = start + HEADER_LENGTH;
+		le.limit(payloadStart + length);
+		le.position(payloadStart);
+		ByteBuffer payload = le.slice();
+
+		if (checksum) {
+			byte[] digest = Digest.doubleSHA256(payload);
+			for (int i = 0; i < 4; i++) {
+				if (digest[i] != buf.get(start + CHECKSUM_OFFSET + i)) {
+					byte[] expected = new byte[4];
+					for (int j = 0; j < 4; j++) {
+						expected[j] = buf.get(start + CHECKSUM_OFFSET + j);
+					}
+					throw new IOException("Checksum error at position " + i + " " + Hex.toHexString(digest, 0, 4) + " " + Hex.toHexString(expected));
+				}
+			}
+		}
+
+		long lo = le.getLong(start + COMMAND_OFFSET);
+		int hi = le.getInt(start + COMMAND_OFFSET + 8);
+
+		buf.position(payloadStart + length);
+		return new MessageFrame(Message.getId(lo, hi), lo, hi, payload);
+	}
+
+	/**
+	 * Gets the payload length from a frame header and checks that it is within the allowed range
+	 *
+	 * @param header a little endian buffer holding the header
+	 * @param start the position of the header
+	 * @return
+	 * @throws IOException
+	 */
+	int getLength(ByteBuffer header, int start) throws IOException {
+		int length = header.getInt(start + LENGTH_OFFSET);
+		if (length < 0) {
+			throw new IOException("Negative data lengths are not allowed");
+		} else if (length > maxLength) {
+			throw new IOException("Message length " + length + " exceeds maximum of " + maxLength);
+		}
+		return length;
+	}
+
+}
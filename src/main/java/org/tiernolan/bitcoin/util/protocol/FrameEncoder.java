@@ -0,0 +1,63 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.tiernolan.bitcoin.util.crypt.Digest;
+import org.tiernolan.bitcoin.util.io.BufferPool;
+
+/**
+ * Encodes messages as frames in pooled buffers.<br>
+ * <br>
+ * The payload is written once, directly after space left for the header, and the header is filled in once the
+ * payload checksum is known.
+ */
+public class FrameEncoder {
+
+	private final int network;
+	private final BufferPool pool;
+
+	public FrameEncoder(int network, BufferPool pool) {
+		this.network = network;
+		this.pool = pool;
+	}
+
+	public BufferPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Encodes a message as a frame.  The buffer is taken from the pool and should be released to the pool once it
+	 * has been sent.
+	 *
+	 * @param version the protocol version used to encode the payload
+	 * @param message
+	 * @return a buffer with its position at zero and its limit at the end of the frame
+	 * @throws IOException
+	 */
+	public ByteBuffer encode(int version, Message message) throws IOException {
+		int length = message.getSerializedSize(version);
+		ByteBuffer buf = pool.acquire(FrameDecoder.HEADER_LENGTH + length);
+		try {
+			ByteBuffer frame = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			frame.position(FrameDecoder.HEADER_LENGTH);
+			Message.write(version, message, frame);
+			frame.position(FrameDecoder.HEADER_LENGTH);
+			byte[] check = Digest.doubleSHA256(frame);
+			frame.position(0);
+			frame.putInt(network);
+			message.writeCommand(frame);
+			frame.putInt(length);
+			frame.put(check, 0, 4);
+		} catch (IOException e) {
+			pool.release(buf);
+			throw e;
+		} catch (RuntimeException e) {
+			pool.release(buf);
+			throw e;
+		}
+		return buf;
+	}
+
+}
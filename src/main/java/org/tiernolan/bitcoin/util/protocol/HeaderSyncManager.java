@@ -0,0 +1,460 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.tiernolan.bitcoin.util.chain.BlockTree;
+import org.tiernolan.bitcoin.util.chain.HeaderVerifier;
+import org.tiernolan.bitcoin.util.chain.MisbehaveException;
+import org.tiernolan.bitcoin.util.protocol.message.GetHeaders;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+/**
+ * Downloads headers from several peers at once into a shared BlockTree.<br>
+ * <br>
+ * The first request is sent to every peer, and the first peer to reply with new headers becomes the lead.  When a
+ * batch arrives from the lead, the request for the following batch is sent before the batch is added to the tree, so
+ * the round trip overlaps with adding the headers.  A peer which does not reply within the stall timeout, or which
+ * sends invalid headers, is dropped and its request is sent to all remaining peers.<br>
+ * <br>
+ * The sync ends when every remaining peer has replied to the same request without any new headers.
+ */
+public class HeaderSyncManager {
+
+	public static final int DEFAULT_STALL_TIMEOUT = 10000;
+
+	private static final Hash NO_STOP = new Hash(new byte[32]);
+
+	private final Object lock = new Object();
+
+	private final BlockTree tree;
+	private final HeaderVerifier verifier;
+	private final Executor executor;
+	private final int stallTimeout;
+
+	private final List<Peer> peers = new ArrayList<Peer>();
+
+	private long round = 0;
+	private List<Hash> roundLocator;
+	private boolean racing;
+	private int racers;
+	private int emptyReplies;
+	private Peer lead;
+	private Hash frontier;
+
+	private boolean done;
+	private boolean added;
+	private int running = 0;
+	private IOException lastError;
+	private RuntimeException failure;
+
+	public HeaderSyncManager(BlockTree tree) {
+		this(tree, null, null, DEFAULT_STALL_TIMEOUT);
+	}
+
+	/**
+	 * Creates a header sync manager
+	 *
+	 * @param tree the tree to add headers to
+	 * @param verifier the verifier used to decode batches, or null to decode them without a verifier
+	 * @param executor the executor which runs one task per peer during a sync, or null to start a thread per peer
+	 * @param stallTimeout the time in milliseconds a peer has to reply before it is dropped
+	 */
+	public HeaderSyncManager(BlockTree tree, HeaderVerifier verifier, Executor executor, int stallTimeout) {
+		if (stallTimeout <= 0) {
+			throw new IllegalArgumentException("Stall timeout must be positive");
+		}
+		this.tree = tree;
+		this.verifier = verifier;
+		this.executor = executor == null ? new ThreadExecutor() : executor;
+		this.stallTimeout = stallTimeout;
+	}
+
+	/**
+	 * Adds a peer to download headers from.  The manager reads from the peer only while a sync is running.
+	 *
+	 * @param socket
+	 * @return false if the peer was already added
+	 */
+	public boolean addPeer(BitcoinSocket socket) {
+		synchronized (lock) {
+			if (running > 0) {
+				throw new IllegalStateException("Peers cannot be added while a sync is running");
+			}
+			for (Peer peer : peers) {
+				if (peer.socket == socket) {
+					return false;
+				}
+			}
+			return peers.add(new Peer(socket));
+		}
+	}
+
+	/**
+	 * Gets the peers which have not been dropped
+	 *
+	 * @return
+	 */
+	public List<BitcoinSocket> getPeers() {
+		synchronized (lock) {
+			List<BitcoinSocket> sockets = new ArrayList<BitcoinSocket>(peers.size());
+			for (Peer peer : peers) {
+				sockets.add(peer.socket);
+			}
+			return sockets;
+		}
+	}
+
+	/**
+	 * Gets the peer which supplied the most recent batch of headers
+	 *
+	 * @return the peer, or null if no batch has been received
+	 */
+	public BitcoinSocket getLead() {
+		synchronized (lock) {
+			return lead == null ? null : lead.socket;
+		}
+	}
+
+	/**
+	 * Gets the smoothed time a peer takes to reply to a request.  The latency is only reported.  The lead is the
+	 * first peer to reply with new headers in a round, not the peer with the lowest latency.
+	 *
+	 * @param socket
+	 * @return the time in milliseconds, or -1 if the peer has not replied or was dropped
+	 */
+	public long getLatency(BitcoinSocket socket) {
+		synchronized (lock) {
+			for (Peer peer : peers) {
+				if (peer.socket == socket) {
+					return peer.latency;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Downloads headers from the peers until none of them has any more to send
+	 *
+	 * @return true if any headers were added to the tree
+	 * @throws IOException if all peers were dropped before the sync completed
+	 * @throws RuntimeException if a worker failed with an unchecked exception, such as the tree's store being full
+	 */
+	public boolean sync() throws IOException {
+		List<Peer> workers;
+		synchronized (lock) {
+			if (running > 0) {
+				throw new IllegalStateException("A sync is already running");
+			} else if (peers.isEmpty()) {
+				throw new IOException("No peers to download headers from");
+			}
+			done = false;
+			added = false;
+			lead = null;
+			frontier = null;
+			lastError = null;
+			failure = null;
+			race(tree.getLocator(), null);
+			workers = new ArrayList<Peer>(peers);
+			running = workers.size();
+		}
+		for (Peer peer : workers) {
+			executor.execute(new Worker(peer));
+		}
+		synchronized (lock) {
+			try {
+				while (running > 0) {
+					lock.wait();
+				}
+			} catch (InterruptedException e) {
+				// Workers exit once their outstanding replies have been read
+				done = true;
+				lock.notifyAll();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for header sync");
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			if (!done) {
+				if (lastError != null) {
+					throw new IOException("All peers were dropped before the header sync completed", lastError);
+				}
+				throw new IOException("All peers were dropped before the header sync completed");
+			}
+			return added;
+		}
+	}
+
+	/**
+	 * Starts a new round by sending the locator to every peer
+	 *
+	 * @param locator
+	 * @param replied a peer which has already replied to the locator with an empty batch, or null
+	 */
+	private void race(List<Hash> locator, Peer replied) {
+		round++;
+		roundLocator = locator;
+		racing = true;
+		racers = 0;
+		emptyReplies = 0;
+		for (Peer peer : peers) {
+			if (peer == replied) {
+				peer.replied = round;
+				emptyReplies++;
+			} else {
+				peer.assigned = new Request(round, locator);
+			}
+			racers++;
+		}
+		if (emptyReplies >= racers) {
+			done = true;
+		}
+		lock.notifyAll();
+	}
+
+	private Request awaitRequest(Peer peer) {
+		synchronized (lock) {
+			try {
+				while (!done && !peer.dropped) {
+					Request request = peer.assigned;
+					peer.assigned = null;
+					if (request != null && request.round == round) {
+						return request;
+					}
+					lock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Handles a reply from a peer
+	 *
+	 * @param peer
+	 * @param request
+	 * @param headers
+	 * @return the request to pipeline to the peer, or null if the headers should not be added to the tree
+	 */
+	private Request accept(Peer peer, Request request, BlockHeader[] headers) {
+		synchronized (lock) {
+			long sample = System.currentTimeMillis() - request.sent;
+			peer.latency = peer.latency < 0 ? sample : (peer.latency * 3 + sample) >> 2;
+			if (done || request.round != round) {
+				return null;
+			}
+			peer.replied = round;
+			if (headers.length == 0 || tree.getHeight(headers[headers.length - 1]) >= 0) {
+				// A peer which is behind the tree replies with headers which are already known
+				if (!racing) {
+					// Check that no other peer has more headers before finishing
+					race(roundLocator, peer);
+				} else if (++emptyReplies >= racers) {
+					done = true;
+					lock.notifyAll();
+				}
+				return null;
+			}
+			lead = peer;
+			racing = false;
+			frontier = headers[headers.length - 1].getBlockHash();
+			round++;
+			roundLocator = getLocator();
+			return new Request(round, roundLocator);
+		}
+	}
+
+	private void drop(Peer peer, Request request, IOException e) {
+		synchronized (lock) {
+			if (peer.dropped) {
+				return;
+			}
+			peer.dropped = true;
+			peers.remove(peer);
+			lastError = e;
+			try {
+				peer.socket.close();
+			} catch (IOException ioe) {
+			}
+			if (done) {
+				return;
+			}
+			if (racing) {
+				if (peer.replied != round) {
+					racers--;
+					if (emptyReplies >= racers) {
+						done = emptyReplies > 0;
+					}
+				}
+			} else if (request != null && request.round == round) {
+				// The headers which were added from the lead are in the tree locator
+				frontier = null;
+				race(getLocator(), null);
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Ends the sync after an unchecked exception, so the other workers stop and sync() rethrows it
+	 *
+	 * @param e
+	 */
+	private void fail(RuntimeException e) {
+		synchronized (lock) {
+			if (failure == null) {
+				failure = e;
+			}
+			done = true;
+			lock.notifyAll();
+		}
+	}
+
+	private List<Hash> getLocator() {
+		List<Hash> treeLocator = tree.getLocator();
+		if (frontier == null) {
+			return treeLocator;
+		}
+		List<Hash> locator = new ArrayList<Hash>(treeLocator.size() + 1);
+		locator.add(frontier);
+		locator.addAll(treeLocator);
+		return locator;
+	}
+
+	private void send(Peer peer, Request request) throws IOException {
+		request.sent = System.currentTimeMillis();
+		peer.socket.getOutputStream().writeMessage(new GetHeaders(Version.VERSION, request.locator, NO_STOP));
+	}
+
+	private BlockHeader[] read(Peer peer, Request request) throws IOException {
+		BitcoinInputStream in = peer.socket.getInputStream();
+		long deadline = Math.max(request.sent, System.currentTimeMillis()) + stallTimeout;
+		while (in.getCommandId() != Message.HEADERS) {
+			in.skipMessage();
+			if (System.currentTimeMillis() > deadline) {
+				throw new SocketTimeoutException("Peer did not reply to getheaders");
+			}
+		}
+		if (verifier == null) {
+			return in.readHeaders().getBlockHeaders();
+		}
+		try {
+			return verifier.verify(in.getVersion(), in.readPayload());
+		} catch (MisbehaveException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private final Peer peer;
+
+		public Worker(Peer peer) {
+			this.peer = peer;
+		}
+
+		@Override
+		public void run() {
+			Request request = null;
+			int soTimeout = -1;
+			try {
+				soTimeout = peer.socket.getSoTimeout();
+				peer.socket.setSoTimeout(stallTimeout);
+				request = awaitRequest(peer);
+				boolean sent = false;
+				while (request != null) {
+					if (!sent) {
+						send(peer, request);
+					}
+					BlockHeader[] headers = read(peer, request);
+					Request next = accept(peer, request, headers);
+					if (next == null) {
+						request = awaitRequest(peer);
+						sent = false;
+						continue;
+					}
+					// Pipeline the next request before adding the batch to the tree
+					send(peer, next);
+					request = next;
+					sent = true;
+					try {
+						if (tree.addAll(headers)) {
+							synchronized (lock) {
+								added = true;
+							}
+						}
+					} catch (MisbehaveException e) {
+						throw new IOException(e);
+					}
+				}
+			} catch (IOException e) {
+				drop(peer, request, e);
+			} catch (RuntimeException e) {
+				fail(e);
+			} finally {
+				synchronized (lock) {
+					if (soTimeout >= 0 && !peer.dropped) {
+						try {
+							peer.socket.setSoTimeout(soTimeout);
+						} catch (IOException e) {
+						}
+					}
+					running--;
+					lock.notifyAll();
+				}
+			}
+		}
+
+	}
+
+	private static class Peer {
+
+		private final BitcoinSocket socket;
+
+		private long latency = -1;
+		private long replied = 0;
+		private Request assigned;
+		private boolean dropped;
+
+		public Peer(BitcoinSocket socket) {
+			this.socket = socket;
+		}
+
+	}
+
+	private static class Request {
+
+		private final long round;
+		private final List<Hash> locator;
+
+		private long sent;
+
+		public Request(long round, List<Hash> locator) {
+			this.round = round;
+			this.locator = locator;
+		}
+
+	}
+
+	private static class ThreadExecutor implements Executor {
+
+		@Override
+		public void execute(Runnable command) {
+			Thread t = new Thread(command, "Header Sync");
+			t.setDaemon(true);
+			t.start();
+		}
+
+	}
+
+}
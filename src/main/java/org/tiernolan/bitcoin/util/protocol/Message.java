@@ -1,14 +1,15 @@
 package org.tiernolan.bitcoin.util.protocol;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.bouncycastle.util.encoders.Hex;
 import org.tiernolan.bitcoin.util.crypt.Digest;
 import org.tiernolan.bitcoin.util.encoding.ByteArray;
+import org.tiernolan.bitcoin.util.io.ByteBufferOutputStream;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
 import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
 import org.tiernolan.bitcoin.util.protocol.types.Hash;
@@ -67,11 +68,43 @@ public abstract class Message implements MessageType {
 
 	private final static int mask;
 	private final static Hash[] commandArray;
+	private final static int[] indexArray;
+	private final static int commandCount;
+	
+	// The wire encoding of each command, as a little endian long and int, by dense index
+	private final static long[] commandLo;
+	private final static int[] commandHi;
+	private final static int[] commandIds;
+	private final static String[] commandNames;
+	
+	// Maps a mix of the encoded command to its dense index plus one
+	private final static int[] commandLookup;
+	private final static int commandMask;
 	
 	static {
 		commandArray = findMask();
 		mask = commandArray.length - 1;
 		map = null;
+		indexArray = new int[commandArray.length];
+		int count = 0;
+		for (int i = 0; i < commandArray.length; i++) {
+			indexArray[i] = commandArray[i] == null ? -1 : count++;
+		}
+		commandCount = count;
+		commandLo = new long[commandCount];
+		commandHi = new int[commandCount];
+		commandIds = new int[commandCount];
+		commandNames = new String[commandCount];
+		for (Map.Entry<Integer, String> e : nameMap.entrySet()) {
+			int i = getIndex(e.getKey());
+			byte[] data = getCommandHash(e.getValue()).getData();
+			commandLo[i] = getLELong(data, 0);
+			commandHi[i] = getLEInt(data, 8);
+			commandIds[i] = e.getKey();
+			commandNames[i] = e.getValue();
+		}
+		commandLookup = findCommandLookup();
+		commandMask = commandLookup.length - 1;
 	}
 	
 	public static int getId(Hash h) {
@@ -83,6 +116,87 @@ public abstract class Message implements MessageType {
 		return UNKNOWN;
 	}
 	
+	/**
+	 * Gets the number of known commands
+	 * 
+	 * @return
+	 */
+	public static int getCommandCount() {
+		return commandCount;
+	}
+	
+	/**
+	 * Maps a command id to a dense index, so that tables keyed by command can be sized by the number of commands
+	 * 
+	 * @param id
+	 * @return the index, from 0 to getCommandCount() - 1, or -1 if the id is not a known command
+	 */
+	public static int getIndex(int id) {
+		int i = id & mask;
+		Hash c = commandArray[i];
+		if (c == null || c.hashCode() != id) {
+			return -1;
+		}
+		return indexArray[i];
+	}
+	
+	/**
+	 * Gets the command id for the 12 byte command field of a frame header.  The field is compared as a long and an
+	 * int, so it is not hashed.
+	 * 
+	 * @param lo the first 8 bytes of the command, as a little endian long
+	 * @param hi the last 4 bytes of the command, as a little endian int
+	 * @return the command id, or UNKNOWN
+	 */
+	public static int getId(long lo, int hi) {
+		int i = commandLookup[mixCommand(lo, hi) & commandMask] - 1;
+		if (i >= 0 && commandLo[i] == lo && commandHi[i] == hi) {
+			return commandIds[i];
+		}
+		return UNKNOWN;
+	}
+	
+	/**
+	 * Gets the command id for the 12 byte command field at an absolute position in a buffer
+	 * 
+	 * @param le a little endian buffer
+	 * @param index
+	 * @return the command id, or UNKNOWN
+	 */
+	public static int getId(ByteBuffer le, int index) {
+		return getId(le.getLong(index), le.getInt(index + 8));
+	}
+	
+	/**
+	 * Gets the command id for the 12 byte command field at an offset in an array
+	 * 
+	 * @param data
+	 * @param offset
+	 * @return the command id, or UNKNOWN
+	 */
+	public static int getId(byte[] data, int offset) {
+		return getId(getLELong(data, offset), getLEInt(data, offset + 8));
+	}
+	
+	/**
+	 * Decodes a 12 byte command field as an ASCII string, without trailing zeros
+	 * 
+	 * @param lo
+	 * @param hi
+	 * @return
+	 */
+	static String getCommand(long lo, int hi) {
+		char[] chars = new char[12];
+		int length = 0;
+		for (int i = 0; i < 12; i++) {
+			chars[i] = (char) ((i < 8 ? lo >>> (i << 3) : hi >>> ((i - 8) << 3)) & 0xFF);
+			if (chars[i] != 0) {
+				length = i + 1;
+			}
+		}
+		return new String(chars, 0, length);
+	}
+	
 	public static String idToCommand(int id) {
 		return nameMap.get(id);
 	}
@@ -106,6 +220,39 @@ public abstract class Message implements MessageType {
 		}
 	}
 	
+	private static int[] findCommandLookup() {
+		int mask = 15;
+		loop1:
+		while (true) {
+			int[] lookup = new int[mask + 1];
+			for (int i = 0; i < commandCount; i++) {
+				int slot = mixCommand(commandLo[i], commandHi[i]) & mask;
+				if (lookup[slot] == 0) {
+					lookup[slot] = i + 1;
+				} else if (mask < 0xFFFF) {
+					mask = (mask << 1) + 1;
+					continue loop1;
+				} else {
+					throw new IllegalStateException("Unable to add all commands into lookup array of size " + lookup.length);
+				}
+			}
+			return lookup;
+		}
+	}
+	
+	private static int mixCommand(long lo, int hi) {
+		long h = (lo ^ (((long) hi) << 29)) * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 40);
+	}
+	
+	private static long getLELong(byte[] data, int offset) {
+		return (getLEInt(data, offset) & 0xFFFFFFFFL) | (((long) getLEInt(data, offset + 4)) << 32);
+	}
+	
+	private static int getLEInt(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+	}
+	
 	private static int add(String command) {
 		Hash h = getCommandHash(command);
 		map.put(h.hashCode(), h);
@@ -129,24 +276,75 @@ public abstract class Message implements MessageType {
 	}
 	
 	private final String command;
+	private final int commandId;
+	private final long lo;
+	private final int hi;
+	
+	/**
+	 * Creates a message for a known command, using its precomputed encoding
+	 * 
+	 * @param commandId
+	 */
+	protected Message(int commandId) {
+		int i = getIndex(commandId);
+		if (i < 0) {
+			throw new IllegalArgumentException("Unknown command id " + commandId);
+		}
+		this.command = commandNames[i];
+		this.commandId = commandId;
+		this.lo = commandLo[i];
+		this.hi = commandHi[i];
+	}
 	
 	protected Message(String command) {
+		byte[] data = getCommandHash(command).getData();
 		this.command = command;
+		this.lo = getLELong(data, 0);
+		this.hi = getLEInt(data, 8);
+		this.commandId = getId(lo, hi);
 	}
 	
 	public String getCommand() {
 		return command;
 	}
 	
+	public int getCommandId() {
+		return commandId;
+	}
+	
+	/**
+	 * Writes the 12 byte command field at the position of a buffer
+	 * 
+	 * @param le a little endian buffer
+	 */
+	public void writeCommand(ByteBuffer le) {
+		le.putLong(lo);
+		le.putInt(hi);
+	}
+	
 	public static Hash getHash(int version, MessageType messageType) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(80);
-		EndianDataOutputStream eos = new EndianDataOutputStream(bos);
-		
+		ByteBuffer buf = ByteBuffer.allocate(messageType.getSerializedSize(version));
+		write(version, messageType, buf);
+		buf.flip();
+		return new Hash(Digest.doubleSHA256(buf));
+	}
+	
+	/**
+	 * Writes a MessageType into a buffer, starting at the buffer's position
+	 * 
+	 * @param version
+	 * @param messageType
+	 * @param buf a buffer with at least getSerializedSize bytes remaining
+	 * @throws IOException
+	 */
+	public static void write(int version, MessageType messageType, ByteBuffer buf) throws IOException {
+		int start = buf.position();
+		EndianDataOutputStream eos = new EndianDataOutputStream(new ByteBufferOutputStream(buf));
 		messageType.write(version, eos);
-		
-		byte[] bytes = bos.toByteArray();
-		byte[] hash = Digest.doubleSHA256(bytes);
-		return new Hash(hash);
+		eos.flush();
+		if (buf.position() - start != messageType.getSerializedSize(version)) {
+			throw new IllegalStateException("Serialized size mismatch for " + messageType.getClass().getSimpleName());
+		}
 	}
 
 }
@@ -0,0 +1,24 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.IOException;
+
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
+
+/**
+ * Decodes the payload of a message
+ *
+ * @param <T> the message type
+ */
+public interface MessageDecoder<T extends Message> {
+
+	/**
+	 * Decodes a message payload
+	 *
+	 * @param version the protocol version
+	 * @param in a stream holding the payload
+	 * @return
+	 * @throws IOException
+	 */
+	public T decode(int version, EndianDataInputStream in) throws IOException;
+
+}
@@ -0,0 +1,71 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.IOException;
+
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
+import org.tiernolan.bitcoin.util.protocol.message.GetHeaders;
+import org.tiernolan.bitcoin.util.protocol.message.Headers;
+import org.tiernolan.bitcoin.util.protocol.message.Inv;
+import org.tiernolan.bitcoin.util.protocol.message.Ping;
+import org.tiernolan.bitcoin.util.protocol.message.Pong;
+import org.tiernolan.bitcoin.util.protocol.message.Verack;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+
+/**
+ * Decoders for the supported message types
+ */
+public final class MessageDecoders {
+
+	public static final MessageDecoder<Version> VERSION = new MessageDecoder<Version>() {
+		@Override
+		public Version decode(int version, EndianDataInputStream in) throws IOException {
+			return new Version(version, in);
+		}
+	};
+
+	public static final MessageDecoder<Verack> VERACK = new MessageDecoder<Verack>() {
+		@Override
+		public Verack decode(int version, EndianDataInputStream in) throws IOException {
+			return new Verack(version, in);
+		}
+	};
+
+	public static final MessageDecoder<Ping> PING = new MessageDecoder<Ping>() {
+		@Override
+		public Ping decode(int version, EndianDataInputStream in) throws IOException {
+			return new Ping(version, in);
+		}
+	};
+
+	public static final MessageDecoder<Pong> PONG = new MessageDecoder<Pong>() {
+		@Override
+		public Pong decode(int version, EndianDataInputStream in) throws IOException {
+			return new Pong(version, in);
+		}
+	};
+
+	public static final MessageDecoder<GetHeaders> GETHEADERS = new MessageDecoder<GetHeaders>() {
+		@Override
+		public GetHeaders decode(int version, EndianDataInputStream in) throws IOException {
+			return new GetHeaders(version, in);
+		}
+	};
+
+	public static final MessageDecoder<Headers> HEADERS = new MessageDecoder<Headers>() {
+		@Override
+		public Headers decode(int version, EndianDataInputStream in) throws IOException {
+			return new Headers(version, in);
+		}
+	};
+
+	public static final MessageDecoder<Inv> INV = new MessageDecoder<Inv>() {
+		@Override
+		public Inv decode(int version, EndianDataInputStream in) throws IOException {
+			return new Inv(version, in);
+		}
+	};
+
+	private MessageDecoders() {
+	}
+
+}
@@ -0,0 +1,234 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
+
+/**
+ * Routes messages to handlers registered by command id.<br>
+ * <br>
+ * The handler table is indexed by the perfect hash of the command, so routing a message does not compare strings.
+ * Messages are decoded on the reading thread.  If an executor is given, handlers run on the executor, in the order
+ * the messages were received.  The number of messages waiting for a handler is limited.  When the limit is reached,
+ * the reading thread waits, so a peer cannot get ahead of slow handlers by flooding messages.
+ */
+public class MessageDispatcher {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	private final AtomicReferenceArray<Entry<?>> entries = new AtomicReferenceArray<Entry<?>>(Message.getCommandCount());
+	private final Executor executor;
+	private final int capacity;
+
+	private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+	private boolean draining = false;
+
+	private final Runnable drainer = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public MessageDispatcher() {
+		this(null);
+	}
+
+	public MessageDispatcher(Executor executor) {
+		this(executor, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Creates a dispatcher
+	 *
+	 * @param executor the executor which runs handlers, or null to run them on the reading thread
+	 * @param capacity the maximum number of messages waiting for a handler to run on the executor
+	 */
+	public MessageDispatcher(Executor executor, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity must be positive");
+		}
+		this.executor = executor;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Registers a handler for a command, replacing any existing handler
+	 *
+	 * @param commandId the command id, as returned by Message.getId
+	 * @param decoder
+	 * @param handler
+	 */
+	public <T extends Message> void register(int commandId, MessageDecoder<T> decoder, MessageHandler<? super T> handler) {
+		entries.set(getIndex(commandId), new Entry<T>(decoder, handler));
+	}
+
+	/**
+	 * Removes the handler for a command
+	 *
+	 * @param commandId
+	 */
+	public void unregister(int commandId) {
+		entries.set(getIndex(commandId), null);
+	}
+
+	public boolean isRegistered(int commandId) {
+		int index = Message.getIndex(commandId);
+		return index >= 0 && entries.get(index) != null;
+	}
+
+	/**
+	 * Gets the number of messages waiting for a handler to run on the executor
+	 *
+	 * @return
+	 */
+	public int getQueuedCount() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Decodes and dispatches a frame
+	 *
+	 * @param version the protocol version
+	 * @param frame
+	 * @return true if a handler was registered for the frame
+	 * @throws IOException if the payload could not be decoded
+	 */
+	public boolean dispatch(int version, MessageFrame frame) throws IOException {
+		Entry<?> entry = getEntry(frame.getCommandId());
+		if (entry == null) {
+			return false;
+		}
+		entry.dispatch(version, frame.getInputStream());
+		return true;
+	}
+
+	/**
+	 * Reads the next message from a stream and dispatches it.  Messages without a handler are skipped.
+	 *
+	 * @param in
+	 * @return true if a handler was registered for the message
+	 * @throws IOException
+	 */
+	public boolean dispatch(BitcoinInputStream in) throws IOException {
+		Entry<?> entry = getEntry(in.getCommandId());
+		if (entry == null) {
+			in.skipMessage();
+			return false;
+		}
+		entry.dispatch(in.getVersion(), in.readFrame().getInputStream());
+		return true;
+	}
+
+	/**
+	 * Reads and dispatches messages until the stream fails or the thread is interrupted
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	public void dispatchAll(BitcoinInputStream in) throws IOException {
+		while (!Thread.currentThread().isInterrupted()) {
+			dispatch(in);
+		}
+	}
+
+	private Entry<?> getEntry(int commandId) {
+		int index = Message.getIndex(commandId);
+		if (index < 0) {
+			return null;
+		}
+		return entries.get(index);
+	}
+
+	private static int getIndex(int commandId) {
+		int index = Message.getIndex(commandId);
+		if (index < 0 || commandId == Message.UNKNOWN || commandId == Message.EOF) {
+			throw new IllegalArgumentException("Unknown command id " + commandId);
+		}
+		return index;
+	}
+
+	private void submit(Runnable task) throws IOException {
+		boolean start;
+		synchronized (queue) {
+			while (queue.size() >= capacity) {
+				try {
+					queue.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the handler queue");
+				}
+			}
+			queue.addLast(task);
+			start = !draining;
+			draining = true;
+		}
+		if (start) {
+			try {
+				executor.execute(drainer);
+			} catch (RejectedExecutionException e) {
+				// Nothing will drain the queue, so the queued messages cannot be handled
+				synchronized (queue) {
+					queue.clear();
+					draining = false;
+					queue.notifyAll();
+				}
+				throw new IOException("Handler executor rejected the message", e);
+			}
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			Runnable task;
+			synchronized (queue) {
+				task = queue.pollFirst();
+				if (task == null) {
+					draining = false;
+					return;
+				}
+				queue.notifyAll();
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Thread t = Thread.currentThread();
+				t.getUncaughtExceptionHandler().uncaughtException(t, e);
+			}
+		}
+	}
+
+	private class Entry<T extends Message> {
+
+		private final MessageDecoder<T> decoder;
+		private final MessageHandler<? super T> handler;
+
+		public Entry(MessageDecoder<T> decoder, MessageHandler<? super T> handler) {
+			this.decoder = decoder;
+			this.handler = handler;
+		}
+
+		public void dispatch(int version, EndianDataInputStream in) throws IOException {
+			final T message = decoder.decode(version, in);
+			if (executor == null) {
+				handler.handle(message);
+			} else {
+				submit(new Runnable() {
+					@Override
+					public void run() {
+						handler.handle(message);
+					}
+				});
+			}
+		}
+
+	}
+
+}
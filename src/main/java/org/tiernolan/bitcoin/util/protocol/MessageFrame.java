@@ -0,0 +1,95 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.tiernolan.bitcoin.util.encoding.StringCreator;
+import org.tiernolan.bitcoin.util.io.ByteBufferInputStream;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+/**
+ * A message which has been framed and checksummed, but not decoded.<br>
+ * <br>
+ * The payload is a slice of the buffer the frame was decoded from, so it is only valid until that buffer is reused.
+ */
+public class MessageFrame {
+
+	private final int commandId;
+	private final long lo;
+	private final int hi;
+	private final ByteBuffer payload;
+
+	public MessageFrame(int commandId, Hash command, ByteBuffer payload) {
+		this(commandId, command.getLELong(0), (int) (command.getLELong(4) >>> 32), payload);
+	}
+
+	/**
+	 * Creates a frame
+	 *
+	 * @param commandId
+	 * @param lo the first 8 bytes of the command field, as a little endian long
+	 * @param hi the last 4 bytes of the command field, as a little endian int
+	 * @param payload
+	 */
+	public MessageFrame(int commandId, long lo, int hi, ByteBuffer payload) {
+		this.commandId = commandId;
+		this.lo = lo;
+		this.hi = hi;
+		this.payload = payload;
+	}
+
+	public int getCommandId() {
+		return commandId;
+	}
+
+	public String getCommand() {
+		return Message.getCommand(lo, hi);
+	}
+
+	/**
+	 * Gets the length of the payload
+	 *
+	 * @return
+	 */
+	public int getLength() {
+		return payload.remaining();
+	}
+
+	/**
+	 * Gets a read only view of the payload
+	 *
+	 * @return
+	 */
+	public ByteBuffer getPayload() {
+		return payload.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Gets a stream which reads the payload without copying it
+	 *
+	 * @return
+	 */
+	public EndianDataInputStream getInputStream() {
+		return new EndianDataInputStream(new ByteBufferInputStream(payload));
+	}
+
+	/**
+	 * Copies the payload into a new array
+	 *
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		byte[] data = new byte[payload.remaining()];
+		payload.duplicate().get(data);
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		return new StringCreator()
+			.add("command", getCommand())
+			.add("length", getLength())
+			.toString();
+	}
+
+}
@@ -0,0 +1,17 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+/**
+ * Handles decoded messages routed by a MessageDispatcher
+ *
+ * @param <T> the message type
+ */
+public interface MessageHandler<T extends Message> {
+
+	/**
+	 * Handles a message
+	 *
+	 * @param message
+	 */
+	public void handle(T message);
+
+}
@@ -7,5 +7,13 @@ import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
 public interface MessageType {
 	
 	public void write(int version, EndianDataOutputStream out) throws IOException;
+	
+	/**
+	 * Gets the number of bytes written by the write method
+	 * 
+	 * @param version
+	 * @return
+	 */
+	public int getSerializedSize(int version);
 
 }
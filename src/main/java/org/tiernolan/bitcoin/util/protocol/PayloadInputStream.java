@@ -0,0 +1,126 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * An InputStream which reads the payload of a message directly from the connection, so the payload does not have to
+ * be buffered before it is decoded.<br>
+ * <br>
+ * The checksum is updated as bytes are read.  The read which reaches the end of the payload throws an IOException if
+ * the checksum does not match, so nothing decoded from the payload should be acted on until the payload has been
+ * read to the end.  Closing the stream skips and checks any unread bytes, it does not close the connection.
+ */
+public class PayloadInputStream extends InputStream {
+
+	private final InputStream in;
+	private final MessageDigest d;
+	private final byte[] checksum;
+
+	private int remaining;
+	private boolean checked = false;
+
+	PayloadInputStream(InputStream in, MessageDigest d, byte[] checksum, int length) throws IOException {
+		this.in = in;
+		this.d = d;
+		this.checksum = checksum;
+		this.remaining = length;
+		d.reset();
+		if (length == 0) {
+			check();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+		int b = in.read();
+		if (b == -1) {
+			throw new EOFException("End of stream reached before end of payload");
+		}
+		d.update((byte) b);
+		if (--remaining == 0) {
+			check();
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		} else if (remaining == 0) {
+			return -1;
+		}
+		int n = in.read(b, off, Math.min(len, remaining));
+		if (n == -1) {
+			throw new EOFException("End of stream reached before end of payload");
+		}
+		d.update(b, off, n);
+		remaining -= n;
+		if (remaining == 0) {
+			check();
+		}
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return Math.min(in.available(), remaining);
+	}
+
+	/**
+	 * Gets the number of payload bytes which have not been read
+	 *
+	 * @return
+	 */
+	public int getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * Skips and checks any unread bytes of the payload
+	 */
+	@Override
+	public void close() throws IOException {
+		if (remaining > 0) {
+			byte[] buf = new byte[Math.min(remaining, 4096)];
+			while (remaining > 0) {
+				read(buf, 0, Math.min(buf.length, remaining));
+			}
+		}
+	}
+
+	private void check() throws IOException {
+		if (checked) {
+			return;
+		}
+		checked = true;
+		checkDigest(d, checksum);
+	}
+
+	/**
+	 * Completes a double SHA-256 digest of a payload and compares it to the checksum from the message header
+	 *
+	 * @param d a SHA-256 digest which has been updated with the payload
+	 * @param checksum the 4 byte checksum
+	 * @throws IOException if the checksum does not match
+	 */
+	static void checkDigest(MessageDigest d, byte[] checksum) throws IOException {
+		byte[] first = d.digest();
+		d.update(first);
+		byte[] digest = d.digest();
+		for (int i = 0; i < 4; i++) {
+			if (digest[i] != checksum[i]) {
+				throw new IOException("Checksum error at position " + i + " " + Hex.toHexString(digest, 0, 4) + " " + Hex.toHexString(checksum));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,331 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import org.tiernolan.bitcoin.util.encoding.StringCreator;
+import org.tiernolan.bitcoin.util.protocol.message.Verack;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+
+/**
+ * A non-blocking connection to a peer, owned by one thread of a PeerEngine.<br>
+ * <br>
+ * The connection performs the same version handshake as BitcoinSocket.  An outbound connection sends its version
+ * when it connects, and replies to the peer's version with a verack.  An inbound connection replies to the peer's
+ * version with its own version, and replies to the peer's verack with a verack.<br>
+ * <br>
+ * Messages may be sent from any thread.  They are queued and written by the engine thread.
+ */
+public class PeerConnection {
+
+	public static enum State {
+		CONNECTING,
+		HANDSHAKE,
+		OPEN,
+		CLOSED
+	}
+
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+	// The user agent is at most 4096 bytes, so a version message always fits in the initial read buffer
+	private static final int MAX_HANDSHAKE_LENGTH = READ_BUFFER_SIZE - FrameDecoder.HEADER_LENGTH;
+
+	private final PeerEngine engine;
+	private final Executor loop;
+	private final SocketChannel channel;
+	private final boolean inbound;
+	private final InetSocketAddress remoteAddress;
+	private final long deadline;
+
+	private final ArrayDeque<ByteBuffer> sendQueue = new ArrayDeque<ByteBuffer>();
+	private long queuedBytes = 0;
+	private boolean writeScheduled = false;
+
+	private volatile State state;
+	private volatile int version = 0;
+	private volatile Version remoteVersion;
+
+	private SelectionKey key;
+	private ByteBuffer readBuffer;
+
+	PeerConnection(PeerEngine engine, Executor loop, SocketChannel channel, InetSocketAddress remoteAddress, boolean inbound, long deadline) {
+		this.engine = engine;
+		this.loop = loop;
+		this.channel = channel;
+		this.remoteAddress = remoteAddress;
+		this.inbound = inbound;
+		this.deadline = deadline;
+		this.state = inbound ? State.HANDSHAKE : State.CONNECTING;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isOpen() {
+		return state == State.OPEN;
+	}
+
+	public boolean isInbound() {
+		return inbound;
+	}
+
+	public InetSocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * Gets the protocol version agreed with the peer
+	 *
+	 * @return the version, or 0 if the peer's version message has not been received
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the version message sent by the peer
+	 *
+	 * @return the message, or null if it has not been received
+	 */
+	public Version getRemoteVersion() {
+		return remoteVersion;
+	}
+
+	/**
+	 * Gets the number of bytes which are queued to be sent
+	 *
+	 * @return
+	 */
+	public long getQueuedBytes() {
+		synchronized (sendQueue) {
+			return queuedBytes;
+		}
+	}
+
+	/**
+	 * Queues a message to be sent to the peer
+	 *
+	 * @param message
+	 * @throws IOException if the connection is closed or the send queue is full
+	 */
+	public void send(Message message) throws IOException {
+		if (state == State.CLOSED) {
+			throw new IOException("Connection is closed");
+		}
+		ByteBuffer frame = engine.getEncoder().encode(Version.VERSION, message);
+		boolean schedule;
+		synchronized (sendQueue) {
+			// closeNow may have drained the queue since the state was checked
+			if (state == State.CLOSED) {
+				engine.getEncoder().getPool().release(frame);
+				throw new IOException("Connection is closed");
+			}
+			if (queuedBytes + frame.remaining() > engine.getSendLimit()) {
+				engine.getEncoder().getPool().release(frame);
+				throw new IOException("Send queue limit exceeded");
+			}
+			sendQueue.addLast(frame);
+			queuedBytes += frame.remaining();
+			schedule = !writeScheduled;
+			writeScheduled = true;
+		}
+		if (schedule) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					enableWrite();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Closes the connection.  The listener is notified on the engine thread.
+	 */
+	public void close() {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeNow(null);
+			}
+		});
+	}
+
+	void register(SelectionKey key) {
+		this.key = key;
+	}
+
+	long getDeadline() {
+		return deadline;
+	}
+
+	void finishConnect() throws IOException {
+		if (!channel.finishConnect()) {
+			return;
+		}
+		state = State.HANDSHAKE;
+		key.interestOps(SelectionKey.OP_READ);
+		send(getLocalVersion());
+		enableWrite();
+	}
+
+	void read() throws IOException {
+		if (readBuffer == null) {
+			readBuffer = engine.getEncoder().getPool().acquire(READ_BUFFER_SIZE);
+			readBuffer.limit(readBuffer.capacity());
+		}
+		int n = channel.read(readBuffer);
+		if (n == -1) {
+			throw new EOFException("Connection closed by peer");
+		}
+		readBuffer.flip();
+		try {
+			MessageFrame frame;
+			while (state != State.CLOSED && (frame = engine.getDecoder().decode(readBuffer)) != null) {
+				handleFrame(frame);
+			}
+		} finally {
+			if (readBuffer != null) {
+				readBuffer.compact();
+			}
+		}
+		if (readBuffer == null) {
+			return;
+		}
+		if (readBuffer.position() == 0) {
+			// Idle connections do not hold a read buffer
+			releaseReadBuffer();
+		} else if (readBuffer.position() >= FrameDecoder.HEADER_LENGTH) {
+			ByteBuffer header = readBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int length = engine.getDecoder().getLength(header, 0);
+			if (state != State.OPEN && length > MAX_HANDSHAKE_LENGTH) {
+				throw new IOException("Message length " + length + " exceeds handshake maximum of " + MAX_HANDSHAKE_LENGTH);
+			}
+			if (readBuffer.hasRemaining()) {
+				return;
+			}
+			// A partial frame fills the buffer.  The buffer is doubled, rather than sized from the declared length,
+			// so a false length cannot force a large allocation.
+			int frameLength = FrameDecoder.HEADER_LENGTH + length;
+			ByteBuffer newBuffer = engine.getEncoder().getPool().acquire(Math.min(frameLength, readBuffer.capacity() << 1));
+			newBuffer.limit(newBuffer.capacity());
+			readBuffer.flip();
+			newBuffer.put(readBuffer);
+			releaseReadBuffer();
+			readBuffer = newBuffer;
+		}
+	}
+
+	void write() throws IOException {
+		synchronized (sendQueue) {
+			if (!sendQueue.isEmpty()) {
+				ByteBuffer[] frames = sendQueue.toArray(new ByteBuffer[sendQueue.size()]);
+				queuedBytes -= channel.write(frames);
+				while (!sendQueue.isEmpty() && !sendQueue.peekFirst().hasRemaining()) {
+					engine.getEncoder().getPool().release(sendQueue.pollFirst());
+				}
+			}
+			if (sendQueue.isEmpty()) {
+				writeScheduled = false;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	void closeNow(IOException cause) {
+		if (state == State.CLOSED) {
+			return;
+		}
+		state = State.CLOSED;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		releaseReadBuffer();
+		synchronized (sendQueue) {
+			while (!sendQueue.isEmpty()) {
+				engine.getEncoder().getPool().release(sendQueue.pollFirst());
+			}
+			queuedBytes = 0;
+		}
+		engine.removeConnection(this, cause);
+	}
+
+	private void enableWrite() {
+		if (state == State.CLOSED || state == State.CONNECTING || key == null || !key.isValid()) {
+			return;
+		}
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	private void handleFrame(MessageFrame frame) throws IOException {
+		if (state == State.OPEN) {
+			engine.getListener().onMessage(this, frame);
+			return;
+		}
+		int id = frame.getCommandId();
+		if (remoteVersion == null) {
+			if (id != Message.VERSION) {
+				throw new IOException("Expecting version message");
+			}
+			Version remote = new Version(0, frame.getInputStream());
+			if (remote.getNonce() == engine.getNonce()) {
+				throw new IOException("Connection to self");
+			}
+			version = Math.min(remote.getVersion(), Version.VERSION);
+			remoteVersion = remote;
+			if (inbound) {
+				send(getLocalVersion());
+			} else {
+				send(new Verack());
+			}
+		} else {
+			if (id != Message.VERACK) {
+				throw new IOException("Expecting verack message to complete handshake");
+			}
+			if (inbound) {
+				send(new Verack());
+			}
+			state = State.OPEN;
+			engine.getListener().onConnect(this);
+		}
+	}
+
+	private Version getLocalVersion() {
+		long timestamp = System.currentTimeMillis() / 1000;
+		InetSocketAddress local = engine.getLocalAddress();
+		InetAddress localAddress = local == null ? null : local.getAddress();
+		int localPort = local == null ? 0 : local.getPort();
+		return new Version(engine.getServices(), timestamp, remoteAddress.getAddress(), remoteAddress.getPort(), localAddress, localPort, engine.getNonce(), engine.getHeight(), engine.getRelay());
+	}
+
+	private void releaseReadBuffer() {
+		if (readBuffer != null) {
+			engine.getEncoder().getPool().release(readBuffer);
+			readBuffer = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return new StringCreator()
+			.add("remote", remoteAddress)
+			.add("inbound", inbound)
+			.add("state", state)
+			.add("version", version)
+			.toString();
+	}
+
+}
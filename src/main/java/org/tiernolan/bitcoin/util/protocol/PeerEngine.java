@@ -0,0 +1,441 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.tiernolan.bitcoin.util.io.BufferPool;
+
+/**
+ * A non-blocking engine which handles many peer connections on a small number of threads.<br>
+ * <br>
+ * Each thread runs a selector loop which owns a subset of the connections.  Connections perform the version handshake
+ * asynchronously and deliver messages to a PeerListener on the thread which owns them.  The wire format is the same as
+ * for BitcoinInputStream and BitcoinOutputStream, so the engine can talk to BitcoinSocket peers.
+ */
+public class PeerEngine {
+
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 30000;
+	public static final int DEFAULT_SEND_LIMIT = 16 * 1024 * 1024;
+
+	private static final int SELECT_TIMEOUT = 1000;
+
+	private final long services;
+	private volatile int height;
+	private final long nonce;
+	private final boolean relay;
+	private volatile InetSocketAddress localAddress;
+	private volatile int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+	private volatile int sendLimit = DEFAULT_SEND_LIMIT;
+
+	private final PeerListener listener;
+	private final FrameEncoder encoder;
+	private final FrameDecoder decoder;
+
+	private final Loop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final Set<PeerConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<PeerConnection, Boolean>());
+
+	private volatile boolean started = false;
+	private volatile boolean running = true;
+
+	public PeerEngine(int network, long services, int height, long nonce, boolean relay, PeerListener listener, int threads) throws IOException {
+		this(network, services, height, nonce, relay, listener, threads, BufferPool.getDefault());
+	}
+
+	public PeerEngine(int network, long services, int height, long nonce, boolean relay, PeerListener listener, int threads, BufferPool pool) throws IOException {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("At least one thread is required");
+		}
+		this.services = services;
+		this.height = height;
+		this.nonce = nonce;
+		this.relay = relay;
+		this.listener = listener;
+		this.encoder = new FrameEncoder(network, pool);
+		this.decoder = new FrameDecoder(network);
+		this.loops = new Loop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new Loop(Selector.open(), i);
+		}
+	}
+
+	public void setHeight(int height) {
+		this.height = height;
+	}
+
+	public void setLocalAddress(InetAddress addr, int port) {
+		this.localAddress = new InetSocketAddress(addr, port);
+	}
+
+	/**
+	 * Sets the time allowed for a connection to complete the version handshake
+	 *
+	 * @param timeout the timeout in milliseconds
+	 */
+	public void setHandshakeTimeout(int timeout) {
+		this.handshakeTimeout = timeout;
+	}
+
+	/**
+	 * Sets the maximum number of bytes which may be queued for sending to a single peer
+	 *
+	 * @param limit
+	 */
+	public void setSendLimit(int limit) {
+		this.sendLimit = limit;
+	}
+
+	/**
+	 * Starts the engine threads
+	 */
+	public synchronized void start() {
+		if (started) {
+			throw new IllegalStateException("Engine already started");
+		}
+		if (!running) {
+			throw new IllegalStateException("Engine is closed");
+		}
+		started = true;
+		for (Loop loop : loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Accepts inbound connections on a local address
+	 *
+	 * @param address
+	 * @return the address which the server socket is bound to
+	 * @throws IOException
+	 */
+	public InetSocketAddress listen(InetSocketAddress address) throws IOException {
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.configureBlocking(false);
+			server.socket().bind(address);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		final Loop loop = nextLoop();
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					server.register(loop.selector, SelectionKey.OP_ACCEPT);
+				} catch (IOException e) {
+					try {
+						server.close();
+					} catch (IOException e2) {
+					}
+				}
+			}
+		});
+		return (InetSocketAddress) server.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 * Opens an outbound connection to a peer.  The connection is not usable until the listener is notified that the
+	 * handshake has completed.
+	 *
+	 * @param address
+	 * @return the connection
+	 * @throws IOException
+	 */
+	public PeerConnection connect(InetSocketAddress address) throws IOException {
+		if (!running) {
+			throw new IOException("Engine is closed");
+		}
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.connect(address);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		Loop loop = nextLoop();
+		PeerConnection connection = new PeerConnection(this, loop, channel, address, false, System.currentTimeMillis() + handshakeTimeout);
+		connections.add(connection);
+		loop.register(connection, channel, SelectionKey.OP_CONNECT);
+		return connection;
+	}
+
+	/**
+	 * Gets the number of connections, including those which have not completed the handshake
+	 *
+	 * @return
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Gets the connections which have completed the handshake
+	 *
+	 * @return
+	 */
+	public List<PeerConnection> getOpenConnections() {
+		List<PeerConnection> open = new ArrayList<PeerConnection>(connections.size());
+		for (PeerConnection connection : connections) {
+			if (connection.isOpen()) {
+				open.add(connection);
+			}
+		}
+		return open;
+	}
+
+	/**
+	 * Closes all connections and server sockets and stops the engine threads
+	 */
+	public void close() {
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+		}
+		for (Loop loop : loops) {
+			if (started) {
+				loop.selector.wakeup();
+			} else {
+				loop.shutdown();
+			}
+		}
+		if (!started) {
+			return;
+		}
+		for (Loop loop : loops) {
+			if (loop.thread != Thread.currentThread()) {
+				try {
+					loop.thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	long getServices() {
+		return services;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	long getNonce() {
+		return nonce;
+	}
+
+	boolean getRelay() {
+		return relay;
+	}
+
+	InetSocketAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	int getSendLimit() {
+		return sendLimit;
+	}
+
+	PeerListener getListener() {
+		return listener;
+	}
+
+	FrameEncoder getEncoder() {
+		return encoder;
+	}
+
+	FrameDecoder getDecoder() {
+		return decoder;
+	}
+
+	void removeConnection(PeerConnection connection, IOException cause) {
+		if (connections.remove(connection)) {
+			listener.onDisconnect(connection, cause);
+		}
+	}
+
+	private Loop nextLoop() {
+		return loops[(nextLoop.getAndIncrement() & 0x7FFFFFFF) % loops.length];
+	}
+
+	private class Loop implements Executor, Runnable {
+
+		private final Selector selector;
+		private final Thread thread;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private long nextTimeoutCheck = 0;
+
+		public Loop(Selector selector, int index) {
+			this.selector = selector;
+			this.thread = new Thread(this, "Peer Engine " + index);
+			this.thread.setDaemon(true);
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void register(final PeerConnection connection, final SocketChannel channel, final int ops) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						connection.register(channel.register(selector, ops, connection));
+						if (channel.isConnected() && ops == SelectionKey.OP_CONNECT) {
+							connection.finishConnect();
+						}
+					} catch (IOException e) {
+						connection.closeNow(e);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					runTasks();
+					selector.select(SELECT_TIMEOUT);
+					Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+					while (itr.hasNext()) {
+						SelectionKey key = itr.next();
+						itr.remove();
+						if (key.attachment() instanceof PeerConnection) {
+							handle(key, (PeerConnection) key.attachment());
+						} else if (key.isValid() && key.isAcceptable()) {
+							accept((ServerSocketChannel) key.channel());
+						}
+					}
+					checkTimeouts();
+				}
+			} catch (IOException e) {
+				running = false;
+			} finally {
+				shutdown();
+			}
+		}
+
+		private void shutdown() {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof PeerConnection) {
+					((PeerConnection) key.attachment()).closeNow(null);
+				} else {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			// Connections which were never registered only exist in the task queue
+			runTasks();
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof PeerConnection) {
+					((PeerConnection) key.attachment()).closeNow(null);
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+
+		private void handle(SelectionKey key, PeerConnection connection) {
+			try {
+				if (key.isConnectable()) {
+					connection.finishConnect();
+				}
+				if (key.isValid() && key.isReadable()) {
+					connection.read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					connection.write();
+				}
+			} catch (CancelledKeyException e) {
+				connection.closeNow(null);
+			} catch (IOException e) {
+				connection.closeNow(e);
+			} catch (RuntimeException e) {
+				connection.closeNow(new IOException(e));
+			}
+		}
+
+		private void accept(ServerSocketChannel server) {
+			SocketChannel channel;
+			while (true) {
+				try {
+					channel = server.accept();
+				} catch (IOException e) {
+					return;
+				}
+				if (channel == null) {
+					return;
+				}
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+				} catch (IOException e) {
+					try {
+						channel.close();
+					} catch (IOException ioe) {
+					}
+					continue;
+				}
+				Loop loop = nextLoop();
+				InetSocketAddress remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+				PeerConnection connection = new PeerConnection(PeerEngine.this, loop, channel, remote, true, System.currentTimeMillis() + handshakeTimeout);
+				connections.add(connection);
+				loop.register(connection, channel, SelectionKey.OP_READ);
+			}
+		}
+
+		private void checkTimeouts() {
+			long now = System.currentTimeMillis();
+			if (now < nextTimeoutCheck) {
+				return;
+			}
+			nextTimeoutCheck = now + SELECT_TIMEOUT;
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof PeerConnection) {
+					PeerConnection connection = (PeerConnection) key.attachment();
+					if (!connection.isOpen() && now > connection.getDeadline()) {
+						connection.closeNow(new SocketTimeoutException("Handshake timed out"));
+					}
+				}
+			}
+		}
+
+	}
+
+}
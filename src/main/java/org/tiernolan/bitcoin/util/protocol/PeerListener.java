@@ -0,0 +1,36 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import java.io.IOException;
+
+/**
+ * Receives events from the connections of a PeerEngine.<br>
+ * <br>
+ * Events are delivered on the engine thread which owns the connection, so listeners should not block.
+ */
+public interface PeerListener {
+
+	/**
+	 * Called when the version handshake with a peer completes
+	 *
+	 * @param peer
+	 */
+	public void onConnect(PeerConnection peer);
+
+	/**
+	 * Called for each message received after the handshake.  The payload of the frame is only valid until this
+	 * method returns.
+	 *
+	 * @param peer
+	 * @param frame
+	 */
+	public void onMessage(PeerConnection peer, MessageFrame frame);
+
+	/**
+	 * Called when a connection is closed, including connections which failed before the handshake completed
+	 *
+	 * @param peer
+	 * @param cause the error which closed the connection, or null if it was closed locally
+	 */
+	public void onDisconnect(PeerConnection peer, IOException cause);
+
+}
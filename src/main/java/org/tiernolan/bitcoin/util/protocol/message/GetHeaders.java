@@ -2,6 +2,7 @@ package org.tiernolan.bitcoin.util.protocol.message;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.List;
 
 import org.tiernolan.bitcoin.util.protocol.Message;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
@@ -25,7 +26,7 @@ public class GetHeaders extends Message {
 	}
 	
 	public GetHeaders(int version, Hash[] locators, Hash stop) {
-		super("getheaders");
+		super(Message.GETHEADERS);
 		this.version = version;
 		if (locators == null) {
 			this.locators = new Hash[0];
@@ -44,12 +45,16 @@ public class GetHeaders extends Message {
 		
 	}
 	
+	public GetHeaders(int version, List<Hash> locators, Hash stop) {
+		this(version, locators.toArray(new Hash[locators.size()]), stop);
+	}
+	
 	public GetHeaders(int version, byte[] data) throws IOException {
 		this(version, new EndianDataInputStream(new ByteArrayInputStream(data)));
 	}
 	
 	public GetHeaders(int version, EndianDataInputStream in) throws IOException {
-		super("getheaders");
+		super(Message.GETHEADERS);
 		this.version = in.readLEInt();
 		locatorCount = new VarInt(version, in);
 		if (locatorCount.get() > Message.MAX_HEADERS) {
@@ -94,6 +99,15 @@ public class GetHeaders extends Message {
 		stop.write(version, out);
 		
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		int size = 4 + locatorCount.getSerializedSize(version);
+		for (int i = 0; i < locators.length; i++) {
+			size += locators[i].getSerializedSize(version);
+		}
+		return size + stop.getSerializedSize(version);
+	}
 	
 	
 
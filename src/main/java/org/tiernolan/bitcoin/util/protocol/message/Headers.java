@@ -7,25 +7,29 @@ import org.tiernolan.bitcoin.util.protocol.Message;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
 import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
-import org.tiernolan.bitcoin.util.protocol.types.Hash;
 import org.tiernolan.bitcoin.util.protocol.types.VarInt;
 
 public class Headers extends Message {
 	
+	private static final VarInt NO_TRANSACTIONS = new VarInt(0);
+	
 	private final VarInt headerCount;
 	private final BlockHeader[] headers;
 	
 	public Headers(int version) {
-		this(version, Message.GENESIS_MAINNET.getBlockHash());
-	}
-	
-	public Headers(int version, Hash start) {
-		this(version, new Hash[] {start}, null);
+		this(version, new BlockHeader[0]);
 	}
 	
-	public Headers(int version, Hash[] locators, Hash stop) {
-		super("headers");
-		throw new UnsupportedOperationException(""); // TODO	
+	public Headers(int version, BlockHeader[] headers) {
+		super(Message.HEADERS);
+		if (headers.length > Message.MAX_HEADERS) {
+			throw new IllegalArgumentException("Number of headers exceeds maximum allowed");
+		}
+		this.headers = new BlockHeader[headers.length];
+		for (int i = 0; i < headers.length; i++) {
+			this.headers[i] = headers[i];
+		}
+		this.headerCount = new VarInt(this.headers.length);
 	}
 	
 	public Headers(int version, byte[] data) throws IOException {
@@ -33,7 +37,7 @@ public class Headers extends Message {
 	}
 	
 	public Headers(int version, EndianDataInputStream in) throws IOException {
-		super("headers");
+		super(Message.HEADERS);
 		headerCount = new VarInt(version, in);
 		if (headerCount.get() < 0) {
 			throw new IOException("Negative header count");
@@ -57,14 +61,24 @@ public class Headers extends Message {
 
 	@Override
 	public void write(int version, EndianDataOutputStream out) throws IOException {
-		out.writeLEInt(version);
 		if (headerCount.get() != headers.length) {
-			throw new IllegalStateException("Locator count and locator count array length mismatch");
+			throw new IllegalStateException("Header count and header array length mismatch");
 		}
 		headerCount.write(version, out);
 		for (int i = 0; i < headers.length; i++) {
 			headers[i].write(version, out);
+			// Headers messages carry a transaction count after each header, which is always zero
+			NO_TRANSACTIONS.write(version, out);
+		}
+	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		int size = headerCount.getSerializedSize(version);
+		for (int i = 0; i < headers.length; i++) {
+			size += headers[i].getSerializedSize(version) + NO_TRANSACTIONS.getSerializedSize(version);
 		}
+		return size;
 	}
 	
 	
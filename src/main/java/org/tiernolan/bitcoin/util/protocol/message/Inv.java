@@ -15,7 +15,7 @@ public class Inv extends Message {
 	private final InvVector[] invs;
 
 	public Inv(InvVector[] invs) {
-		super("inv");
+		super(Message.INV);
 		int count = Math.min(invs.length, Message.MAX_INV_SZ);
 		this.invCount = new VarInt(count);
 		this.invs = new InvVector[count];
@@ -27,7 +27,7 @@ public class Inv extends Message {
 	}
 	
 	public Inv(int version, EndianDataInputStream in) throws IOException{
-		super("inv");
+		super(Message.INV);
 		this.invCount = new VarInt(version, in);
 		if (invCount.get() < 0 || invCount.get() > Message.MAX_INV_SZ) {
 			throw new IOException("Inv count out of range " + invCount.get());
@@ -48,6 +48,15 @@ public class Inv extends Message {
 			v.write(version, out);
 		}
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		int size = invCount.getSerializedSize(version);
+		for (InvVector v : invs) {
+			size += v.getSerializedSize(version);
+		}
+		return size;
+	}
 	
 	@Override
 	public boolean equals(Object o) {
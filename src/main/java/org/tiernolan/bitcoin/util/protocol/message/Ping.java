@@ -14,7 +14,7 @@ public class Ping extends Message {
 	private final long nonce;
 	
 	public Ping(long nonce) {
-		super("ping");
+		super(Message.PING);
 		this.nonce = nonce;
 	}
 	
@@ -23,7 +23,7 @@ public class Ping extends Message {
 	}
 	
 	public Ping(int version, EndianDataInputStream in) throws IOException{
-		super("ping");
+		super(Message.PING);
 		if (version > BIP31_VERSION) {
 			this.nonce = in.readLELong();
 		} else {
@@ -41,6 +41,11 @@ public class Ping extends Message {
 			out.writeLELong(nonce);
 		}
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return version > BIP31_VERSION ? 8 : 0;
+	}
 	
 	@Override
 	public boolean equals(Object o) {
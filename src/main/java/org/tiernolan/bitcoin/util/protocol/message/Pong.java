@@ -12,7 +12,7 @@ public class Pong extends Message {
 	private final long nonce;
 	
 	public Pong(long nonce) {
-		super("pong");
+		super(Message.PONG);
 		this.nonce = nonce;
 	}
 	
@@ -21,7 +21,7 @@ public class Pong extends Message {
 	}
 	
 	public Pong(int version, EndianDataInputStream in) throws IOException{
-		super("pong");
+		super(Message.PONG);
 		this.nonce = in.readLELong();
 	}
 	
@@ -33,6 +33,11 @@ public class Pong extends Message {
 	public void write(int version, EndianDataOutputStream out) throws IOException {
 		out.writeLELong(nonce);
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return 8;
+	}
 	
 	@Override
 	public boolean equals(Object o) {
@@ -10,7 +10,7 @@ import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
 public class Verack extends Message {
 
 	public Verack() {
-		super("verack");
+		super(Message.VERACK);
 	}
 	
 	public Verack(int version, byte[] data) throws IOException {
@@ -18,7 +18,7 @@ public class Verack extends Message {
 	}
 	
 	public Verack(int version, EndianDataInputStream in) throws IOException{
-		super("verack");
+		super(Message.VERACK);
 	}
 
 	@Override
@@ -30,4 +30,9 @@ public class Verack extends Message {
 		return o instanceof Verack;
 	}
 
+	@Override
+	public int getSerializedSize(int version) {
+		return 0;
+	}
+
 }
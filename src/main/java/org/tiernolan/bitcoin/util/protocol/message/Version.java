@@ -32,7 +32,7 @@ public class Version extends Message {
 	}
 	
 	public Version(int version, long services, long timestamp, InetAddress peerAddress, int peerPort, InetAddress localAddress, int localPort, long nonce, int height, boolean relay) {
-		super("version");
+		super(Message.VERSION);
 		this.version = version;
 		this.services = services;
 		this.timestamp = timestamp;
@@ -49,7 +49,7 @@ public class Version extends Message {
 	}
 	
 	public Version(int version, EndianDataInputStream in) throws IOException{
-		super("version");
+		super(Message.VERSION);
 		if (version != 0) {
 			throw new IOException("Only one version packet can be received");
 		}
@@ -131,6 +131,13 @@ public class Version extends Message {
 			throw new IOException("Unable to encode false relay before version 70001");
 		}
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		int size = 4 + 8 + 8 + peerAddress.getSerializedSize(version) + localAddress.getSerializedSize(version) + 8;
+		size += agent.getSerializedSize(version) + 4;
+		return version >= 70001 ? size + 1 : size;
+	}
 	
 	@Override
 	public boolean equals(Object o) {
@@ -3,7 +3,6 @@ package org.tiernolan.bitcoin.util.protocol.types;
 import java.io.IOException;
 import java.math.BigInteger;
 
-import org.tiernolan.bitcoin.util.encoding.ByteArray;
 import org.tiernolan.bitcoin.util.encoding.StringCreator;
 import org.tiernolan.bitcoin.util.protocol.Message;
 import org.tiernolan.bitcoin.util.protocol.MessageType;
@@ -24,6 +23,13 @@ public class BlockHeader implements MessageType {
 	
 	private final Hash blockHash;
 	
+	// 0 = not checked, 1 = sufficient, -1 = insufficient
+	private volatile int powCheck = 0;
+	
+	// Created when first used, since most headers are never used as map keys
+	private Hash256 blockHash256;
+	private Hash256 prev256;
+	
 	public BlockHeader(int version, Hash prev, Hash merkle, int timestamp, BigInteger target, int nonce, int txCount) {
 		this.version = version;
 		if (prev.getLength() != 32 || merkle.getLength() != 32) {
@@ -66,6 +72,11 @@ public class BlockHeader implements MessageType {
 		bits.write(version, out);
 		out.writeLEInt(nonce);
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return 4 + prev.getSerializedSize(version) + merkle.getSerializedSize(version) + 4 + bits.getSerializedSize(version) + 4;
+	}
 	
 	public int getVersion() {
 		return version;
@@ -103,10 +114,51 @@ public class BlockHeader implements MessageType {
 		return blockHash.copy();
 	}
 	
+	/**
+	 * Gets the block hash as a Hash256, for use as a map key
+	 * 
+	 * @return
+	 */
+	public Hash256 getBlockHash256() {
+		Hash256 h = blockHash256;
+		if (h == null) {
+			h = new Hash256(blockHash);
+			blockHash256 = h;
+		}
+		return h;
+	}
+	
+	/**
+	 * Gets the previous block hash as a Hash256, for use as a map key
+	 * 
+	 * @return
+	 */
+	public Hash256 getPrevious256() {
+		Hash256 h = prev256;
+		if (h == null) {
+			h = new Hash256(prev);
+			prev256 = h;
+		}
+		return h;
+	}
+	
+	/**
+	 * Checks that the block hash meets the target.  The result is cached, so headers which were checked by a
+	 * HeaderVerifier are not checked again when they are added to a BlockTree.
+	 * 
+	 * @return
+	 */
 	public boolean checkPOW() {
-		byte[] hash = blockHash.getReverseData();
-		byte[] target = bits.getTarget().toByteArray();
-		return ByteArray.compare(hash, target, 32) <= 0;
+		int check = powCheck;
+		if (check == 0) {
+			check = computePOW() ? 1 : -1;
+			powCheck = check;
+		}
+		return check > 0;
+	}
+	
+	private boolean computePOW() {
+		return bits.isMetBy(blockHash);
 	}
 
 	@Override
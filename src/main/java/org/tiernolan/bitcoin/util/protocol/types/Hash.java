@@ -2,6 +2,7 @@ package org.tiernolan.bitcoin.util.protocol.types;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.bouncycastle.util.Arrays;
 import org.bouncycastle.util.encoders.Hex;
@@ -25,6 +26,21 @@ public class Hash implements MessageType {
 		computeHashCode();
 	}
 	
+	/**
+	 * Creates a hash from bytes in a buffer.  The position of the buffer is not changed.
+	 * 
+	 * @param buf
+	 * @param index the absolute position of the first byte
+	 * @param length
+	 */
+	public Hash(ByteBuffer buf, int index, int length) {
+		this.data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = buf.get(index + i);
+		}
+		computeHashCode();
+	}
+	
 	protected Hash(int length) {
 		this.data = new byte[length];
 		computeHashCode();
@@ -45,9 +61,104 @@ public class Hash implements MessageType {
 		return d;
 	}
 	
+	/**
+	 * Copies the hash data into an array
+	 * 
+	 * @param dst
+	 * @param offset the offset of the first byte in the array
+	 */
+	public void getData(byte[] dst, int offset) {
+		System.arraycopy(data, 0, dst, offset, data.length);
+	}
+	
+	/**
+	 * Copies the hash data into an array, in reverse order
+	 * 
+	 * @param dst
+	 * @param offset the offset of the first byte in the array
+	 */
+	public void getReverseData(byte[] dst, int offset) {
+		int j = offset + data.length - 1;
+		for (int i = 0; i < data.length; i++) {
+			dst[j--] = data[i];
+		}
+	}
+	
+	/**
+	 * Checks if the hash matches the bytes at an offset in an array
+	 * 
+	 * @param b
+	 * @param offset
+	 * @return
+	 */
+	public boolean matches(byte[] b, int offset) {
+		if (offset < 0 || offset + data.length > b.length) {
+			return false;
+		}
+		for (int i = 0; i < data.length; i++) {
+			if (b[offset + i] != data[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks if the hash matches the bytes at an absolute position in a buffer
+	 * 
+	 * @param buf
+	 * @param index
+	 * @return
+	 */
+	public boolean matches(ByteBuffer buf, int index) {
+		if (index < 0 || index + data.length > buf.limit()) {
+			return false;
+		}
+		for (int i = 0; i < data.length; i++) {
+			if (buf.get(index + i) != data[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Compares the hash, read as a little endian unsigned number, with a big endian unsigned number of the same length
+	 * 
+	 * @param bigEndian
+	 * @return a negative value, zero or a positive value if the hash is less than, equal to or greater than the number
+	 */
+	public int compareLE(byte[] bigEndian) {
+		if (bigEndian.length != data.length) {
+			throw new IllegalArgumentException("Arrays must be the same length to compare");
+		}
+		int j = data.length - 1;
+		for (int i = 0; i < bigEndian.length; i++) {
+			int d = (data[j--] & 0xFF) - (bigEndian[i] & 0xFF);
+			if (d != 0) {
+				return d;
+			}
+		}
+		return 0;
+	}
+	
 	public int getLength() {
 		return data.length;
 	}
+
+	/**
+	 * Reads 8 bytes of the hash as a little endian long, without copying the hash data
+	 *
+	 * @param offset the offset of the first byte
+	 * @return
+	 */
+	public long getLELong(int offset) {
+		long value = 0;
+		for (int i = offset + 7; i >= offset; i--) {
+			value = (value << 8) | (data[i] & 0xFFL);
+		}
+		return value;
+	}
 	
 	@Override
 	public int hashCode() {
@@ -85,6 +196,11 @@ public class Hash implements MessageType {
 	public void write(int version, EndianDataOutputStream out) throws IOException {
 		out.write(data);
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return data.length;
+	}
 	
 	@Override
 	public String toString() {
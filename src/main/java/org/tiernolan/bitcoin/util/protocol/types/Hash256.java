@@ -0,0 +1,208 @@
+package org.tiernolan.bitcoin.util.protocol.types;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.tiernolan.bitcoin.util.protocol.MessageType;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
+
+/**
+ * An immutable 32 byte hash held as four longs.<br>
+ * <br>
+ * The words are little endian, so word zero holds the first 8 bytes of the serialized hash.  Equality and ordering
+ * compare whole words, and the hash code is taken directly from the hash bits.  Ordering treats the hash as a little
+ * endian unsigned number, which is how block hashes are compared with targets.
+ */
+public final class Hash256 implements MessageType, Comparable<Hash256> {
+
+	public static final int LENGTH = 32;
+
+	private final long w0;
+	private final long w1;
+	private final long w2;
+	private final long w3;
+
+	public Hash256(long w0, long w1, long w2, long w3) {
+		this.w0 = w0;
+		this.w1 = w1;
+		this.w2 = w2;
+		this.w3 = w3;
+	}
+
+	public Hash256(Hash hash) {
+		if (hash.getLength() != LENGTH) {
+			throw new IllegalArgumentException("Hash must be 32 bytes");
+		}
+		this.w0 = hash.getLELong(0);
+		this.w1 = hash.getLELong(8);
+		this.w2 = hash.getLELong(16);
+		this.w3 = hash.getLELong(24);
+	}
+
+	/**
+	 * Creates a hash from 32 bytes in an array
+	 *
+	 * @param data
+	 * @param offset the offset of the first byte
+	 */
+	public Hash256(byte[] data, int offset) {
+		this.w0 = getLELong(data, offset);
+		this.w1 = getLELong(data, offset + 8);
+		this.w2 = getLELong(data, offset + 16);
+		this.w3 = getLELong(data, offset + 24);
+	}
+
+	/**
+	 * Creates a hash from 32 bytes in a buffer.  The position of the buffer is not changed.
+	 *
+	 * @param buf
+	 * @param index the absolute position of the first byte
+	 */
+	public Hash256(ByteBuffer buf, int index) {
+		this.w0 = getLELong(buf, index);
+		this.w1 = getLELong(buf, index + 8);
+		this.w2 = getLELong(buf, index + 16);
+		this.w3 = getLELong(buf, index + 24);
+	}
+
+	public Hash256(int version, EndianDataInputStream in) throws IOException {
+		this.w0 = in.readLELong();
+		this.w1 = in.readLELong();
+		this.w2 = in.readLELong();
+		this.w3 = in.readLELong();
+	}
+
+	/**
+	 * Gets one 8 byte word of the hash
+	 *
+	 * @param word the word index, from 0 to 3
+	 * @return
+	 */
+	public long getWord(int word) {
+		switch (word) {
+			case 0: return w0;
+			case 1: return w1;
+			case 2: return w2;
+			case 3: return w3;
+			default: throw new IllegalArgumentException("Word index " + word + " is out of range");
+		}
+	}
+
+	/**
+	 * Copies the hash into an array
+	 *
+	 * @param dst
+	 * @param offset the offset of the first byte in the array
+	 */
+	public void getData(byte[] dst, int offset) {
+		putLELong(dst, offset, w0);
+		putLELong(dst, offset + 8, w1);
+		putLELong(dst, offset + 16, w2);
+		putLELong(dst, offset + 24, w3);
+	}
+
+	public byte[] getData() {
+		byte[] data = new byte[LENGTH];
+		getData(data, 0);
+		return data;
+	}
+
+	/**
+	 * Checks if the hash matches a byte array based hash
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public boolean matches(Hash hash) {
+		return hash.getLength() == LENGTH && hash.getLELong(0) == w0 && hash.getLELong(8) == w1 && hash.getLELong(16) == w2 && hash.getLELong(24) == w3;
+	}
+
+	public Hash toHash() {
+		return new Hash(getData());
+	}
+
+	@Override
+	public void write(int version, EndianDataOutputStream out) throws IOException {
+		out.writeLELong(w0);
+		out.writeLELong(w1);
+		out.writeLELong(w2);
+		out.writeLELong(w3);
+	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return LENGTH;
+	}
+
+	@Override
+	public int compareTo(Hash256 o) {
+		int c = compareUnsigned(w3, o.w3);
+		if (c != 0) {
+			return c;
+		}
+		c = compareUnsigned(w2, o.w2);
+		if (c != 0) {
+			return c;
+		}
+		c = compareUnsigned(w1, o.w1);
+		if (c != 0) {
+			return c;
+		}
+		return compareUnsigned(w0, o.w0);
+	}
+
+	@Override
+	public int hashCode() {
+		// Hash bits are uniformly distributed, so no mixing is needed
+		return (int) w0;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (!(o instanceof Hash256)) {
+			return false;
+		} else {
+			Hash256 other = (Hash256) o;
+			return other.w0 == w0 && other.w1 == w1 && other.w2 == w2 && other.w3 == w3;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Hex.toHexString(getData());
+	}
+
+	private static int compareUnsigned(long a, long b) {
+		a += Long.MIN_VALUE;
+		b += Long.MIN_VALUE;
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	private static long getLELong(byte[] data, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (data[offset + i] & 0xFFL);
+		}
+		return value;
+	}
+
+	private static long getLELong(ByteBuffer data, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (data.get(offset + i) & 0xFFL);
+		}
+		return value;
+	}
+
+	private static void putLELong(byte[] data, int offset, long value) {
+		for (int i = 0; i < 8; i++) {
+			data[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+}
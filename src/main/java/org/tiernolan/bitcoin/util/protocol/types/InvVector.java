@@ -31,6 +31,11 @@ public class InvVector implements MessageType {
 		out.writeLEInt(type);
 		hash.write(version, out);
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return 4 + hash.getSerializedSize(version);
+	}
 	
 	public int getType() {
 		return type;
@@ -72,6 +72,11 @@ public class NetAddress implements MessageType {
 		ip.write(version, out);
 		out.writeBEShort((short) port);
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return (hasTimestamp ? 4 : 0) + 8 + ip.getSerializedSize(version) + 2;
+	}
 	
 	public Integer getTimestamp() {
 		if (!hasTimestamp) {
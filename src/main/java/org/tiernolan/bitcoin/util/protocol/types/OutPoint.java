@@ -27,6 +27,11 @@ public class OutPoint implements MessageType {
 		this.prev.write(version, out);
 		out.writeLEInt(index);
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return prev.getSerializedSize(version) + 4;
+	}
 	
 	public Hash getPrevious() {
 		return prev.copy();
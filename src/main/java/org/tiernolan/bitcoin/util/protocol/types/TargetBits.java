@@ -3,6 +3,7 @@ package org.tiernolan.bitcoin.util.protocol.types;
 import java.io.IOException;
 import java.math.BigInteger;
 
+import org.tiernolan.bitcoin.util.encoding.ByteArray;
 import org.tiernolan.bitcoin.util.encoding.StringCreator;
 import org.tiernolan.bitcoin.util.protocol.MessageType;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
@@ -12,21 +13,29 @@ public class TargetBits implements MessageType {
 	
 	private final int bits;
 	private final BigInteger target;
+	private final byte[] targetData;
 	
 	public TargetBits(BigInteger difficulty) {
 		this.bits = targetToBits(difficulty);
 		this.target = bitsToTarget(bits);
+		this.targetData = toTargetData(target);
 	}
 	
 	public TargetBits(int version, EndianDataInputStream in) throws IOException {
 		this.bits = in.readLEInt();
 		this.target = bitsToTarget(bits);
+		this.targetData = toTargetData(target);
 	}
 	
 	@Override
 	public void write(int version, EndianDataOutputStream out) throws IOException {
 		out.writeLEInt(bits);
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return 4;
+	}
 	
 	public int getBits() {
 		return bits;
@@ -36,6 +45,21 @@ public class TargetBits implements MessageType {
 		return target;
 	}
 	
+	/**
+	 * Checks if a block hash is less than or equal to the target, without allocating
+	 * 
+	 * @param hash a 32 byte block hash
+	 * @return
+	 */
+	public boolean isMetBy(Hash hash) {
+		return hash.compareLE(targetData) <= 0;
+	}
+	
+	private static byte[] toTargetData(BigInteger target) {
+		byte[] data = target.toByteArray();
+		return data.length == 32 ? data : ByteArray.rightJustify(data, 32);
+	}
+	
 	@Override
 	public boolean equals(Object o) {
 		if (o == this) {
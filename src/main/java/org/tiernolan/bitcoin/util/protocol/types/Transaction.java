@@ -1,18 +1,27 @@
 package org.tiernolan.bitcoin.util.protocol.types;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
+import org.tiernolan.bitcoin.util.crypt.Digest;
 import org.tiernolan.bitcoin.util.encoding.StringCreator;
+import org.tiernolan.bitcoin.util.io.RecordingInputStream;
 import org.tiernolan.bitcoin.util.protocol.Message;
 import org.tiernolan.bitcoin.util.protocol.MessageType;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
 
+/**
+ * A transaction.<br>
+ * <br>
+ * The transaction hash and serialized size are computed once, when the transaction is created.  A decoded transaction
+ * records the bytes as they are read, and the hash is computed from those bytes, so the transaction is not encoded
+ * again.
+ */
 public class Transaction implements MessageType {
 
+	private static final int INITIAL_CAPACITY = 16;
+
 	private final int version;
 	private final VarInt inCount;
 	private final TxIn[] inArr;
@@ -21,6 +30,7 @@ public class Transaction implements MessageType {
 	private final int lockTime;
 	
 	private final Hash txHash;
+	private final int serializedSize;
 	
 	public Transaction(int version, TxIn[] in, TxOut[] out, int lockTime) {
 		this.version = version;
@@ -29,6 +39,7 @@ public class Transaction implements MessageType {
 		this.outCount = new VarInt(out.length);
 		this.outArr = out;
 		this.lockTime = lockTime;
+		this.serializedSize = computeSerializedSize(version);
 		try {
 			this.txHash = Message.getHash(version, this);
 		} catch (IOException e) {
@@ -37,34 +48,55 @@ public class Transaction implements MessageType {
 	}
 	
 	public Transaction(int version, EndianDataInputStream in) throws IOException {
-		this.version = in.readLEInt();
-		this.inCount = new VarInt(version, in);
+		RecordingInputStream record = new RecordingInputStream(in);
+		EndianDataInputStream rin = new EndianDataInputStream(record);
+		this.version = rin.readLEInt();
+		this.inCount = new VarInt(version, rin);
 		if (inCount.get() < 1 || inCount.get() > 1000000) {
 			throw new IOException("Input count " + inCount.get() + " out of range");
 		}
-		List<TxIn> inList = new ArrayList<TxIn>(5);
-		for (int i = 0; i < (int) inCount.get(); i++) {
-			inList.add(new TxIn(version, in));
+		// The arrays grow as entries are read, so a false count cannot force a large allocation
+		int count = (int) inCount.get();
+		TxIn[] inputs = new TxIn[Math.min(count, INITIAL_CAPACITY)];
+		for (int i = 0; i < count; i++) {
+			if (i == inputs.length) {
+				inputs = Arrays.copyOf(inputs, Math.min(count, i << 1));
+			}
+			inputs[i] = new TxIn(version, rin);
 		}
-		this.inArr = inList.toArray(new TxIn[0]);
+		this.inArr = inputs;
 		
-		this.outCount = new VarInt(version, in);
+		this.outCount = new VarInt(version, rin);
 		if (outCount.get() < 1 || outCount.get() > 1000000) {
-			throw new IOException("Output count " + inCount.get() + " out of range");
+			throw new IOException("Output count " + outCount.get() + " out of range");
 		}
-		List<TxOut> outList = new ArrayList<TxOut>(5);
-		for (int i = 0; i < (int) inCount.get(); i++) {
-			outList.add(new TxOut(version, in));
+		count = (int) outCount.get();
+		TxOut[] outputs = new TxOut[Math.min(count, INITIAL_CAPACITY)];
+		for (int i = 0; i < count; i++) {
+			if (i == outputs.length) {
+				outputs = Arrays.copyOf(outputs, Math.min(count, i << 1));
+			}
+			outputs[i] = new TxOut(version, rin);
 		}
-		this.outArr = outList.toArray(new TxOut[0]);
-		this.lockTime = in.readLEInt();
-		this.txHash = Message.getHash(version, this);
+		this.outArr = outputs;
+		this.lockTime = rin.readLEInt();
+		this.serializedSize = record.getCount();
+		this.txHash = new Hash(Digest.doubleSHA256(record.getRecord()));
 	}
 	
 	public Hash getTxHash() {
 		return txHash;
 	}
 	
+	/**
+	 * Gets the size of the transaction, as computed when it was created
+	 * 
+	 * @return
+	 */
+	public int getSerializedSize() {
+		return serializedSize;
+	}
+	
 	public int getVersion() {
 		return version;
 	}
@@ -114,7 +146,7 @@ public class Transaction implements MessageType {
 			in.write(version, out);
 		}
 		if (outCount.get() != outArr.length) {
-			throw new IllegalStateException("Input count and input array length mismatch");
+			throw new IllegalStateException("Output count and output array length mismatch");
 		}
 		this.outCount.write(version, out);
 		for (TxOut o : this.outArr) {
@@ -122,6 +154,23 @@ public class Transaction implements MessageType {
 		}
 		out.writeLEInt(lockTime);
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return serializedSize;
+	}
+	
+	private int computeSerializedSize(int version) {
+		int size = 4 + inCount.getSerializedSize(version);
+		for (TxIn in : this.inArr) {
+			size += in.getSerializedSize(version);
+		}
+		size += outCount.getSerializedSize(version);
+		for (TxOut o : this.outArr) {
+			size += o.getSerializedSize(version);
+		}
+		return size + 4;
+	}
 	
 	@Override
 	public int hashCode() {
@@ -11,49 +11,63 @@ import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
 
 public class TxIn implements MessageType {
 
-	private final long value;
-	private final VarInt pkLength;
-	private final byte[] pk;
+	private final OutPoint outPoint;
+	private final VarInt sigLength;
+	private final byte[] sig;
+	private final int sequence;
 	
-	public TxIn(long value, byte[] pk) {
-		this.pkLength = new VarInt(pk.length);
-		this.pk = new byte[pk.length];
-		System.arraycopy(pk, 0, this.pk, 0, pk.length);
-		this.value = value;
+	public TxIn(OutPoint outPoint, byte[] sig, int sequence) {
+		this.outPoint = outPoint;
+		this.sigLength = new VarInt(sig.length);
+		this.sig = new byte[sig.length];
+		System.arraycopy(sig, 0, this.sig, 0, sig.length);
+		this.sequence = sequence;
 	}
 	
 	public TxIn(int version, EndianDataInputStream in) throws IOException {
-		this.value = in.readLELong();
-		this.pkLength = new VarInt(version, in);
-		if (pkLength.get() < 0 || pkLength.get() > Message.MAX_SCRIPT_LENGTH) {
+		this.outPoint = new OutPoint(version, in);
+		this.sigLength = new VarInt(version, in);
+		if (sigLength.get() < 0 || sigLength.get() > Message.MAX_SCRIPT_LENGTH) {
 			throw new IOException("Sig script to long");
 		}
-		this.pk = new byte[(int) pkLength.get()];
+		this.sig = new byte[(int) sigLength.get()];
+		in.readFully(this.sig);
+		this.sequence = in.readLEInt();
 	}
 	
 	@Override
 	public void write(int version, EndianDataOutputStream out) throws IOException {
-		out.writeLELong(value);
-		this.pkLength.write(version, out);
-		if (pkLength.get() != pk.length) {
+		this.outPoint.write(version, out);
+		this.sigLength.write(version, out);
+		if (sigLength.get() != sig.length) {
 			throw new IllegalStateException("Sig length field and array length mismatch");
 		}
-		out.write(this.pk);
+		out.write(this.sig);
+		out.writeLEInt(sequence);
+	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return outPoint.getSerializedSize(version) + sigLength.getSerializedSize(version) + sig.length + 4;
 	}
 	
-	public byte[] getPubKeyScript() {
-		byte[] s = new byte[pk.length];
-		System.arraycopy(pk, 0, s, 0, pk.length);
+	public OutPoint getOutPoint() {
+		return outPoint;
+	}
+	
+	public byte[] getSigScript() {
+		byte[] s = new byte[sig.length];
+		System.arraycopy(sig, 0, s, 0, sig.length);
 		return s;
 	}
 	
-	public long getValue() {
-		return value;
+	public int getSequence() {
+		return sequence;
 	}
 	
 	@Override
 	public int hashCode() {
-		return ((int) (value + (value >> 32))) + Arrays.hashCode(pk);
+		return sequence + outPoint.hashCode() + Arrays.hashCode(sig);
 	}
 	
 	@Override
@@ -65,21 +79,25 @@ public class TxIn implements MessageType {
 		} else {
 			TxIn other = (TxIn) o;
 			
-			if (other.value != value) {
+			if (other.sequence != sequence) {
 				return false;
 			}
 			
-			return Arrays.areEqual(other.pk, pk);
+			if (!Arrays.areEqual(other.sig, sig)) {
+				return false;
+			}
 			
+			return outPoint.equals(other.outPoint);
 		}
 	}
-
+	
 	@Override
 	public String toString() {
 		return new StringCreator()
-			.add("scriptPubKey", pk)
-			.add("value", value)
+			.add("outPoint", outPoint)
+			.add("scriptSig", sig)
+			.add("sequence", sequence)
 			.toString();
 	}
-	
+
 }
\ No newline at end of file
@@ -11,57 +11,55 @@ import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
 
 public class TxOut implements MessageType {
 
-	private final OutPoint outPoint;
-	private final VarInt sigLength;
-	private final byte[] sig;
-	private final int sequence;
+	private final long value;
+	private final VarInt pkLength;
+	private final byte[] pk;
 	
-	public TxOut(OutPoint outPoint, byte[] sig, int sequence) {
-		this.outPoint = outPoint;
-		this.sigLength = new VarInt(sig.length);
-		this.sig = new byte[sig.length];
-		System.arraycopy(sig, 0, this.sig, 0, sig.length);
-		this.sequence = sequence;
+	public TxOut(long value, byte[] pk) {
+		this.pkLength = new VarInt(pk.length);
+		this.pk = new byte[pk.length];
+		System.arraycopy(pk, 0, this.pk, 0, pk.length);
+		this.value = value;
 	}
 	
 	public TxOut(int version, EndianDataInputStream in) throws IOException {
-		this.outPoint = new OutPoint(version, in);
-		this.sigLength = new VarInt(version, in);
-		if (sigLength.get() < 0 || sigLength.get() > Message.MAX_SCRIPT_LENGTH) {
-			throw new IOException("Sig script to long");
+		this.value = in.readLELong();
+		this.pkLength = new VarInt(version, in);
+		if (pkLength.get() < 0 || pkLength.get() > Message.MAX_SCRIPT_LENGTH) {
+			throw new IOException("Pub key script to long");
 		}
-		this.sig = new byte[(int) sigLength.get()];
-		this.sequence = in.readLEInt();
+		this.pk = new byte[(int) pkLength.get()];
+		in.readFully(this.pk);
 	}
 	
 	@Override
 	public void write(int version, EndianDataOutputStream out) throws IOException {
-		this.outPoint.write(version, out);
-		this.sigLength.write(version, out);
-		if (sigLength.get() != sig.length) {
-			throw new IllegalStateException("Sig length field and array length mismatch");
+		out.writeLELong(value);
+		this.pkLength.write(version, out);
+		if (pkLength.get() != pk.length) {
+			throw new IllegalStateException("Pub key length field and array length mismatch");
 		}
-		out.write(this.sig);
-		out.writeLEInt(sequence);
+		out.write(this.pk);
 	}
-	
-	public OutPoint getOutPoint() {
-		return outPoint;
+
+	@Override
+	public int getSerializedSize(int version) {
+		return 8 + pkLength.getSerializedSize(version) + pk.length;
 	}
 	
-	public byte[] getSigScript() {
-		byte[] s = new byte[sig.length];
-		System.arraycopy(sig, 0, s, 0, sig.length);
+	public byte[] getPubKeyScript() {
+		byte[] s = new byte[pk.length];
+		System.arraycopy(pk, 0, s, 0, pk.length);
 		return s;
 	}
 	
-	public int getSequence() {
-		return sequence;
+	public long getValue() {
+		return value;
 	}
 	
 	@Override
 	public int hashCode() {
-		return sequence + outPoint.hashCode() + Arrays.hashCode(sig);
+		return ((int) (value + (value >> 32))) + Arrays.hashCode(pk);
 	}
 	
 	@Override
@@ -73,25 +71,21 @@ public class TxOut implements MessageType {
 		} else {
 			TxOut other = (TxOut) o;
 			
-			if (other.sequence != sequence) {
+			if (other.value != value) {
 				return false;
 			}
 			
-			if (!Arrays.areEqual(other.sig, sig)) {
-				return false;
-			}
+			return Arrays.areEqual(other.pk, pk);
 			
-			return outPoint.equals(other.outPoint);
 		}
 	}
-	
+
 	@Override
 	public String toString() {
 		return new StringCreator()
-			.add("outPoint", outPoint)
-			.add("scriptSig", sig)
-			.add("sequence", sequence)
+			.add("scriptPubKey", pk)
+			.add("value", value)
 			.toString();
 	}
-
+	
 }
\ No newline at end of file
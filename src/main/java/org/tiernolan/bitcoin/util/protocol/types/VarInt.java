@@ -54,6 +54,18 @@ public class VarInt implements MessageType {
 			out.writeByte((byte) value);
 		}
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		if ((value & 0xFFFFFFFF00000000L) != 0) {
+			return 9;
+		} else if ((value & 0xFFFFFFFFFFFF0000L) != 0) {
+			return 5;
+		} else if (value >= 0xFD) {
+			return 3;
+		}
+		return 1;
+	}
 	
 	@Override
 	public boolean equals(Object o) {
@@ -46,6 +46,11 @@ public class VarString implements MessageType {
 			out.writeByte((byte) string[i]);
 		}
 	}
+
+	@Override
+	public int getSerializedSize(int version) {
+		return length.getSerializedSize(version) + string.length;
+	}
 	
 	@Override
 	public boolean equals(Object o) {
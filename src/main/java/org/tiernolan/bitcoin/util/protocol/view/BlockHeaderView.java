@@ -0,0 +1,113 @@
+package org.tiernolan.bitcoin.util.protocol.view;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.tiernolan.bitcoin.util.crypt.Digest;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+import org.tiernolan.bitcoin.util.protocol.types.TargetBits;
+
+/**
+ * A view of an 80 byte block header
+ */
+public class BlockHeaderView extends MessageView {
+
+	public static final int LENGTH = 80;
+
+	private static final int PREVIOUS_OFFSET = 4;
+	private static final int MERKLE_OFFSET = 36;
+	private static final int TIMESTAMP_OFFSET = 68;
+	private static final int BITS_OFFSET = 72;
+	private static final int NONCE_OFFSET = 76;
+
+	/**
+	 * Creates a view of the header at the position of a buffer
+	 *
+	 * @param buf
+	 * @throws IOException if the buffer holds less than 80 bytes
+	 */
+	public BlockHeaderView(ByteBuffer buf) throws IOException {
+		this(littleEndian(buf), buf.position());
+		checkRemaining(this.buf, offset, LENGTH);
+	}
+
+	BlockHeaderView(ByteBuffer le, int offset) {
+		super(le, offset);
+	}
+
+	/**
+	 * Moves the view to another header in the same buffer
+	 *
+	 * @param offset
+	 */
+	void moveTo(int offset) {
+		this.offset = offset;
+	}
+
+	@Override
+	public int getLength() {
+		return LENGTH;
+	}
+
+	public int getVersion() {
+		return buf.getInt(offset);
+	}
+
+	public Hash getPrevious() {
+		return readHash(offset + PREVIOUS_OFFSET);
+	}
+
+	/**
+	 * Checks if the previous block hash of the header matches a hash, without copying it
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public boolean isPrevious(Hash hash) {
+		return matchesHash(offset + PREVIOUS_OFFSET, hash);
+	}
+
+	public Hash getMerkle() {
+		return readHash(offset + MERKLE_OFFSET);
+	}
+
+	public int getTimestamp() {
+		return buf.getInt(offset + TIMESTAMP_OFFSET);
+	}
+
+	/**
+	 * Gets the compact encoding of the target
+	 *
+	 * @return
+	 */
+	public int getBits() {
+		return buf.getInt(offset + BITS_OFFSET);
+	}
+
+	public int getNonce() {
+		return buf.getInt(offset + NONCE_OFFSET);
+	}
+
+	/**
+	 * Computes the block hash.  The hash is not cached.
+	 *
+	 * @return
+	 */
+	public Hash getBlockHash() {
+		ByteBuffer header = buf.duplicate();
+		header.limit(offset + LENGTH);
+		header.position(offset);
+		return new Hash(Digest.doubleSHA256(header));
+	}
+
+	/**
+	 * Decodes the header
+	 *
+	 * @return
+	 */
+	public BlockHeader toBlockHeader() {
+		return new BlockHeader(getVersion(), getPrevious(), getMerkle(), getTimestamp(), TargetBits.bitsToTarget(getBits()), getNonce(), 0);
+	}
+
+}
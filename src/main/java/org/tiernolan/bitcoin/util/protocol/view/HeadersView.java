@@ -0,0 +1,136 @@
+package org.tiernolan.bitcoin.util.protocol.view;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.tiernolan.bitcoin.util.protocol.Message;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+/**
+ * A view of the payload of a headers message.<br>
+ * <br>
+ * Fields of each header can be read by index without decoding the header.  Iterating over the view returns the same
+ * BlockHeaderView for every header, moved to the next header on each step.
+ */
+public class HeadersView extends MessageView implements Iterable<BlockHeaderView> {
+
+	private final int[] offsets;
+	private final int length;
+
+	/**
+	 * Creates a view of the headers payload at the position of a buffer
+	 *
+	 * @param payload
+	 * @throws IOException if the layout of the payload is invalid
+	 */
+	public HeadersView(ByteBuffer payload) throws IOException {
+		super(littleEndian(payload), payload.position());
+		long count = getVarInt(buf, offset);
+		if (count > Message.MAX_HEADERS || count < 0) {
+			throw new IOException("Number of headers exceeds maximum allowed");
+		}
+		this.offsets = new int[(int) count];
+		int pos = offset + getVarIntLength(buf.get(offset));
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = pos;
+			pos += BlockHeaderView.LENGTH;
+			// Each header is followed by a transaction count
+			checkRemaining(buf, pos, 1);
+			pos += getVarIntLength(buf.get(pos));
+			checkRemaining(buf, pos, 0);
+		}
+		this.length = pos - offset;
+	}
+
+	@Override
+	public int getLength() {
+		return length;
+	}
+
+	public int size() {
+		return offsets.length;
+	}
+
+	/**
+	 * Gets a view of a header
+	 *
+	 * @param index
+	 * @return
+	 */
+	public BlockHeaderView get(int index) {
+		return new BlockHeaderView(buf, offsets[index]);
+	}
+
+	public int getVersion(int index) {
+		return buf.getInt(offsets[index]);
+	}
+
+	public Hash getPrevious(int index) {
+		return get(index).getPrevious();
+	}
+
+	/**
+	 * Checks if the previous block hash of a header matches a hash, without copying it
+	 *
+	 * @param index
+	 * @param hash
+	 * @return
+	 */
+	public boolean isPrevious(int index, Hash hash) {
+		return matchesHash(offsets[index] + 4, hash);
+	}
+
+	public int getTimestamp(int index) {
+		return buf.getInt(offsets[index] + 68);
+	}
+
+	public int getBits(int index) {
+		return buf.getInt(offsets[index] + 72);
+	}
+
+	/**
+	 * Decodes all the headers
+	 *
+	 * @return
+	 */
+	public BlockHeader[] toBlockHeaders() {
+		BlockHeader[] headers = new BlockHeader[offsets.length];
+		for (int i = 0; i < headers.length; i++) {
+			headers[i] = get(i).toBlockHeader();
+		}
+		return headers;
+	}
+
+	@Override
+	public Iterator<BlockHeaderView> iterator() {
+		return new Iterator<BlockHeaderView>() {
+
+			private final BlockHeaderView view = new BlockHeaderView(buf, offset);
+			private int index = 0;
+
+			@Override
+			public boolean hasNext() {
+				return index < offsets.length;
+			}
+
+			@Override
+			public BlockHeaderView next() {
+				if (index >= offsets.length) {
+					throw new NoSuchElementException();
+				}
+				view.moveTo(offsets[index++]);
+				return view;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,82 @@
+package org.tiernolan.bitcoin.util.protocol.view;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.tiernolan.bitcoin.util.protocol.Message;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+import org.tiernolan.bitcoin.util.protocol.types.InvVector;
+
+/**
+ * A view of the payload of an inv, getdata or notfound message
+ */
+public class InvView extends MessageView {
+
+	private static final int ENTRY_LENGTH = 36;
+
+	private final int start;
+	private final int count;
+
+	/**
+	 * Creates a view of the inventory payload at the position of a buffer
+	 *
+	 * @param payload
+	 * @throws IOException if the layout of the payload is invalid
+	 */
+	public InvView(ByteBuffer payload) throws IOException {
+		super(littleEndian(payload), payload.position());
+		long count = getVarInt(buf, offset);
+		if (count < 0 || count > Message.MAX_INV_SZ) {
+			throw new IOException("Inv count out of range " + count);
+		}
+		this.count = (int) count;
+		this.start = offset + getVarIntLength(buf.get(offset));
+		checkRemaining(buf, start, this.count * ENTRY_LENGTH);
+	}
+
+	@Override
+	public int getLength() {
+		return start - offset + count * ENTRY_LENGTH;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int getType(int index) {
+		return buf.getInt(getOffset(index));
+	}
+
+	public Hash getHash(int index) {
+		return readHash(getOffset(index) + 4);
+	}
+
+	/**
+	 * Checks if the hash of an entry matches a hash, without copying it
+	 *
+	 * @param index
+	 * @param hash
+	 * @return
+	 */
+	public boolean hashEquals(int index, Hash hash) {
+		return matchesHash(getOffset(index) + 4, hash);
+	}
+
+	/**
+	 * Decodes an entry
+	 *
+	 * @param index
+	 * @return
+	 */
+	public InvVector getInvVector(int index) {
+		return new InvVector(getType(index), getHash(index));
+	}
+
+	private int getOffset(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Index " + index + " out of range");
+		}
+		return start + index * ENTRY_LENGTH;
+	}
+
+}
@@ -0,0 +1,146 @@
+package org.tiernolan.bitcoin.util.protocol.view;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+/**
+ * A read-only view of a serialized structure in a ByteBuffer.<br>
+ * <br>
+ * Views check the layout of the structure when they are created, but only decode fields when they are accessed.  The
+ * buffer must not be modified while the view is in use.
+ */
+public abstract class MessageView {
+
+	protected final ByteBuffer buf;
+	protected int offset;
+
+	/**
+	 * Creates a view
+	 *
+	 * @param buf a little endian buffer, which is shared with the view
+	 * @param offset the absolute position of the structure in the buffer
+	 */
+	protected MessageView(ByteBuffer buf, int offset) {
+		this.buf = buf;
+		this.offset = offset;
+	}
+
+	/**
+	 * Gets the number of bytes in the serialized structure
+	 *
+	 * @return
+	 */
+	public abstract int getLength();
+
+	/**
+	 * Gets the serialized structure
+	 *
+	 * @return a read-only buffer holding the structure
+	 */
+	public ByteBuffer getBytes() {
+		ByteBuffer bytes = buf.asReadOnlyBuffer();
+		bytes.limit(offset + getLength());
+		bytes.position(offset);
+		return bytes.slice();
+	}
+
+	/**
+	 * Copies a 32 byte hash from the buffer
+	 *
+	 * @param pos
+	 * @return
+	 */
+	protected Hash readHash(int pos) {
+		return new Hash(buf, pos, 32);
+	}
+
+	/**
+	 * Compares a 32 byte hash in the buffer with a hash, without copying either
+	 *
+	 * @param pos
+	 * @param hash
+	 * @return
+	 */
+	protected boolean matchesHash(int pos, Hash hash) {
+		if (hash.getLength() != 32) {
+			return false;
+		}
+		for (int i = 0; i < 32; i += 8) {
+			if (buf.getLong(pos + i) != hash.getLELong(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a little endian view of a buffer, starting at its position
+	 *
+	 * @param buf
+	 * @return
+	 */
+	protected static ByteBuffer littleEndian(ByteBuffer buf) {
+		return buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Reads a variable length integer
+	 *
+	 * @param buf a little endian buffer
+	 * @param pos
+	 * @return
+	 * @throws IOException if the buffer ends before the integer
+	 */
+	protected static long getVarInt(ByteBuffer buf, int pos) throws IOException {
+		checkRemaining(buf, pos, 1);
+		int a = buf.get(pos) & 0xFF;
+		if (a < 0xFD) {
+			return a;
+		}
+		checkRemaining(buf, pos, getVarIntLength(a));
+		if (a == 0xFD) {
+			return buf.getShort(pos + 1) & 0xFFFF;
+		} else if (a == 0xFE) {
+			return buf.getInt(pos + 1) & 0xFFFFFFFFL;
+		} else {
+			return buf.getLong(pos + 1);
+		}
+	}
+
+	/**
+	 * Gets the serialized length of a variable length integer from its first byte
+	 *
+	 * @param first
+	 * @return
+	 */
+	protected static int getVarIntLength(int first) {
+		first &= 0xFF;
+		if (first < 0xFD) {
+			return 1;
+		} else if (first == 0xFD) {
+			return 3;
+		} else if (first == 0xFE) {
+			return 5;
+		} else {
+			return 9;
+		}
+	}
+
+	/**
+	 * Checks that a buffer holds a number of bytes after a position
+	 *
+	 * @param buf
+	 * @param pos
+	 * @param length
+	 * @throws IOException
+	 */
+	protected static void checkRemaining(ByteBuffer buf, int pos, long length) throws IOException {
+		if (length < 0 || pos + length > buf.limit()) {
+			throw new IOException("Buffer ends before the end of the structure");
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package org.tiernolan.bitcoin.util.protocol.view;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.tiernolan.bitcoin.util.crypt.Digest;
+import org.tiernolan.bitcoin.util.protocol.Message;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+/**
+ * A view of a serialized transaction.<br>
+ * <br>
+ * Each input is an outpoint, a signature script and a sequence number.  Each output is a value and a public key
+ * script.  Scripts are only copied when they are requested.
+ */
+public class TransactionView extends MessageView {
+
+	private static final int MAX_COUNT = 1000000;
+
+	// An outpoint, an empty script and a sequence number
+	private static final int MIN_INPUT_LENGTH = 36 + 1 + 4;
+	// A value and an empty script
+	private static final int MIN_OUTPUT_LENGTH = 8 + 1;
+
+	private final int[] inputs;
+	private final int[] outputs;
+	private final int lockTimeOffset;
+
+	/**
+	 * Creates a view of the transaction at the position of a buffer
+	 *
+	 * @param buf
+	 * @throws IOException if the layout of the transaction is invalid
+	 */
+	public TransactionView(ByteBuffer buf) throws IOException {
+		super(littleEndian(buf), buf.position());
+		int pos = offset + 4;
+		long inCount = getVarInt(this.buf, pos);
+		if (inCount < 1 || inCount > MAX_COUNT) {
+			throw new IOException("Input count " + inCount + " out of range");
+		}
+		pos += getVarIntLength(this.buf.get(pos));
+		if (inCount > (this.buf.limit() - pos) / MIN_INPUT_LENGTH) {
+			throw new IOException("Input count " + inCount + " exceeds the remaining data");
+		}
+		this.inputs = new int[(int) inCount];
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = pos;
+			pos += 36;
+			pos = skipScript(pos);
+			pos += 4;
+		}
+		long outCount = getVarInt(this.buf, pos);
+		if (outCount < 1 || outCount > MAX_COUNT) {
+			throw new IOException("Output count " + outCount + " out of range");
+		}
+		pos += getVarIntLength(this.buf.get(pos));
+		if (outCount > (this.buf.limit() - pos) / MIN_OUTPUT_LENGTH) {
+			throw new IOException("Output count " + outCount + " exceeds the remaining data");
+		}
+		this.outputs = new int[(int) outCount];
+		for (int i = 0; i < outputs.length; i++) {
+			outputs[i] = pos;
+			pos += 8;
+			pos = skipScript(pos);
+		}
+		checkRemaining(this.buf, pos, 4);
+		this.lockTimeOffset = pos;
+	}
+
+	@Override
+	public int getLength() {
+		return lockTimeOffset + 4 - offset;
+	}
+
+	public int getVersion() {
+		return buf.getInt(offset);
+	}
+
+	public int getInputCount() {
+		return inputs.length;
+	}
+
+	public int getOutputCount() {
+		return outputs.length;
+	}
+
+	public int getLockTime() {
+		return buf.getInt(lockTimeOffset);
+	}
+
+	/**
+	 * Gets the hash of the transaction which holds the output spent by an input
+	 *
+	 * @param index
+	 * @return
+	 */
+	public Hash getPreviousTxHash(int index) {
+		return readHash(inputs[index]);
+	}
+
+	/**
+	 * Checks if an input spends an output of a transaction, without copying the hash
+	 *
+	 * @param index
+	 * @param hash
+	 * @return
+	 */
+	public boolean isPreviousTxHash(int index, Hash hash) {
+		return matchesHash(inputs[index], hash);
+	}
+
+	/**
+	 * Gets the index of the output spent by an input
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int getPreviousIndex(int index) {
+		return buf.getInt(inputs[index] + 32);
+	}
+
+	public byte[] getSigScript(int index) {
+		return getScript(inputs[index] + 36);
+	}
+
+	public int getSequence(int index) {
+		int pos = inputs[index] + 36;
+		return buf.getInt(pos + getScriptLength(pos));
+	}
+
+	public long getValue(int index) {
+		return buf.getLong(outputs[index]);
+	}
+
+	public byte[] getPubKeyScript(int index) {
+		return getScript(outputs[index] + 8);
+	}
+
+	/**
+	 * Computes the transaction hash.  The hash is not cached.
+	 *
+	 * @return
+	 */
+	public Hash getTxHash() {
+		return new Hash(Digest.doubleSHA256(getBytes()));
+	}
+
+	/**
+	 * Gets the serialized length of a script, including its length prefix
+	 *
+	 * @param pos
+	 * @return
+	 */
+	private int getScriptLength(int pos) {
+		int prefix = getVarIntLength(buf.get(pos));
+		try {
+			return prefix + (int) getVarInt(buf, pos);
+		} catch (IOException e) {
+			throw new IllegalStateException("Script lengths are checked when the view is created", e);
+		}
+	}
+
+	private byte[] getScript(int pos) {
+		int prefix = getVarIntLength(buf.get(pos));
+		byte[] script = new byte[getScriptLength(pos) - prefix];
+		for (int i = 0; i < script.length; i++) {
+			script[i] = buf.get(pos + prefix + i);
+		}
+		return script;
+	}
+
+	private int skipScript(int pos) throws IOException {
+		long length = getVarInt(buf, pos);
+		if (length < 0 || length > Message.MAX_SCRIPT_LENGTH) {
+			throw new IOException("Script length " + length + " out of range");
+		}
+		pos += getVarIntLength(buf.get(pos));
+		checkRemaining(buf, pos, length);
+		return pos + (int) length;
+	}
+
+}
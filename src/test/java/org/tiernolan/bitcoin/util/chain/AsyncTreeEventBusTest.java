@@ -0,0 +1,255 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.chain.AsyncTreeEventBus.Backpressure;
+import org.tiernolan.bitcoin.util.protocol.Message;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+public class AsyncTreeEventBusTest {
+	
+	@Test
+	public void testTreeEvents() throws MisbehaveException, InterruptedException {
+		
+		Random r = new Random();
+		
+		BlockHeader genesis = getHeader(getRandomHash(r), r);
+		
+		BlockTree tree = new BlockTree(genesis, null, false);
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		
+		AsyncTreeEventBus bus = new AsyncTreeEventBus(executor, 16, Backpressure.BLOCK);
+		
+		final List<TreeEvent> events = Collections.synchronizedList(new ArrayList<TreeEvent>());
+		
+		bus.addMonitor(new TreeEventMonitor() {
+			@Override
+			public void handle(TreeEvent event) {
+				events.add(event);
+			}
+		});
+		
+		assertTrue("Unable to add event monitor", tree.addTreeEventMonitor(bus));
+		
+		BlockHeader[] main = getChain(genesis, 20, r);
+		assertTrue("Unable to add main chain", tree.addAll(main));
+		
+		BlockHeader[] fork = getChain(main[9], 15, r);
+		assertTrue("Unable to add fork", tree.addAll(fork));
+		
+		executor.shutdown();
+		assertTrue("Executor did not terminate", executor.awaitTermination(10, TimeUnit.SECONDS));
+		
+		assertEquals("Unexpected event count", 2, events.size());
+		
+		assertEquals("Unexpected connected headers", Arrays.asList(main), events.get(0).getConnected());
+		assertTrue("Extension reported as reorg", !events.get(0).isReorg());
+		
+		List<BlockHeader> disconnected = new ArrayList<BlockHeader>();
+		for (int i = main.length - 1; i >= 10; i--) {
+			disconnected.add(main[i]);
+		}
+		assertEquals("Unexpected disconnected headers", disconnected, events.get(1).getDisconnected());
+		assertEquals("Unexpected connected headers", Arrays.asList(fork), events.get(1).getConnected());
+		
+	}
+	
+	@Test
+	public void testDropOldest() {
+		
+		Random r = new Random();
+		
+		ManualExecutor executor = new ManualExecutor();
+		
+		AsyncTreeEventBus bus = new AsyncTreeEventBus(executor, 2, Backpressure.DROP_OLDEST);
+		
+		final List<TreeEvent> events = new ArrayList<TreeEvent>();
+		
+		bus.addMonitor(new TreeEventMonitor() {
+			@Override
+			public void handle(TreeEvent event) {
+				events.add(event);
+			}
+		});
+		
+		BlockHeader[] chain = getChain(getHeader(getRandomHash(r), r), 5, r);
+		
+		TreeEvent[] posted = new TreeEvent[chain.length];
+		for (int i = 0; i < chain.length; i++) {
+			posted[i] = connect(chain[i]);
+			bus.handle(posted[i]);
+		}
+		
+		assertEquals("Unexpected dropped count", 3, bus.getDropped());
+		
+		executor.runAll();
+		
+		assertEquals("Unexpected event count", 2, events.size());
+		assertTrue("Unexpected event", events.get(0) == posted[3]);
+		assertTrue("Unexpected event", events.get(1) == posted[4]);
+		assertEquals("Events still pending", 0, bus.getPending());
+		
+	}
+	
+	@Test
+	public void testCoalesce() {
+		
+		Random r = new Random();
+		
+		ManualExecutor executor = new ManualExecutor();
+		
+		AsyncTreeEventBus bus = new AsyncTreeEventBus(executor, 1, Backpressure.COALESCE);
+		
+		final List<TreeEvent> events = new ArrayList<TreeEvent>();
+		
+		bus.addMonitor(new TreeEventMonitor() {
+			@Override
+			public void handle(TreeEvent event) {
+				events.add(event);
+			}
+		});
+		
+		BlockHeader genesis = getHeader(getRandomHash(r), r);
+		BlockHeader[] main = getChain(genesis, 4, r);
+		BlockHeader[] fork = getChain(main[0], 5, r);
+		
+		bus.handle(new TreeEvent(new LinkedList<BlockHeader>(), Arrays.asList(main[0], main[1])));
+		bus.handle(new TreeEvent(new LinkedList<BlockHeader>(), Arrays.asList(main[2], main[3])));
+		bus.handle(new TreeEvent(Arrays.asList(main[3], main[2], main[1]), Arrays.asList(fork)));
+		
+		assertEquals("Unexpected coalesced count", 2, bus.getCoalesced());
+		
+		executor.runAll();
+		
+		assertEquals("Unexpected event count", 1, events.size());
+		
+		List<BlockHeader> connected = new ArrayList<BlockHeader>();
+		connected.add(main[0]);
+		connected.addAll(Arrays.asList(fork));
+		
+		assertTrue("Cancelled headers reported as disconnected", events.get(0).getDisconnected().isEmpty());
+		assertEquals("Unexpected connected headers", connected, events.get(0).getConnected());
+		
+	}
+	
+	@Test
+	public void testFailures() {
+		
+		Random r = new Random();
+		
+		ManualExecutor executor = new ManualExecutor();
+		
+		AsyncTreeEventBus bus = new AsyncTreeEventBus(executor, 4, Backpressure.BLOCK);
+		
+		final List<TreeEvent> events = new ArrayList<TreeEvent>();
+		
+		bus.addMonitor(new TreeEventMonitor() {
+			@Override
+			public void handle(TreeEvent event) {
+				throw new IllegalStateException("Monitor failure");
+			}
+		});
+		
+		bus.addMonitor(new TreeEventMonitor() {
+			@Override
+			public void handle(TreeEvent event) {
+				events.add(event);
+			}
+		});
+		
+		BlockHeader[] chain = getChain(getHeader(getRandomHash(r), r), 3, r);
+		
+		final AtomicInteger failures = new AtomicInteger();
+		Thread t = Thread.currentThread();
+		UncaughtExceptionHandler handler = t.getUncaughtExceptionHandler();
+		t.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread t, Throwable e) {
+				failures.incrementAndGet();
+			}
+		});
+		try {
+			executor.reject = true;
+			bus.handle(connect(chain[0]));
+			assertEquals("Rejected event not dropped", 1, bus.getDropped());
+			assertEquals("Rejected event still pending", 0, bus.getPending());
+			
+			executor.reject = false;
+			bus.handle(connect(chain[1]));
+			bus.handle(connect(chain[2]));
+			executor.runAll();
+		} finally {
+			t.setUncaughtExceptionHandler(handler);
+		}
+		
+		assertEquals("Failures not reported", 2, failures.get());
+		assertEquals("Events lost after a monitor failure", 2, events.size());
+		assertEquals("Events still pending", 0, bus.getPending());
+		
+	}
+	
+	private static TreeEvent connect(BlockHeader header) {
+		return new TreeEvent(new LinkedList<BlockHeader>(), Collections.singletonList(header));
+	}
+	
+	private static BlockHeader[] getChain(BlockHeader start, int length, Random r) {
+		BlockHeader[] headers = new BlockHeader[length];
+		BlockHeader prev = start;
+		for (int i = 0; i < length; i++) {
+			headers[i] = getHeader(prev.getBlockHash(), r);
+			prev = headers[i];
+		}
+		return headers;
+	}
+	
+	private static BlockHeader getHeader(Hash previous, Random r) {
+		return new BlockHeader(1, previous, getRandomHash(r), 0, Message.MIN_POW, 0, 0);
+	}
+	
+	private static Hash getRandomHash(Random r) {
+		byte[] data = new byte[32];
+		r.nextBytes(data);
+		return new Hash(data);
+	}
+	
+	private static class ManualExecutor implements Executor {
+		
+		private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+		
+		private boolean reject = false;
+
+		@Override
+		public void execute(Runnable command) {
+			if (reject) {
+				throw new RejectedExecutionException();
+			}
+			tasks.add(command);
+		}
+		
+		public void runAll() {
+			while (!tasks.isEmpty()) {
+				tasks.removeFirst().run();
+			}
+		}
+		
+	}
+
+}
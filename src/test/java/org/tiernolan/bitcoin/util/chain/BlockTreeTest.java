@@ -5,13 +5,18 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.Message;
 import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
 import org.tiernolan.bitcoin.util.protocol.types.Hash;
+import org.tiernolan.bitcoin.util.protocol.types.TargetBits;
 
 public class BlockTreeTest {
 	
@@ -61,6 +66,35 @@ public class BlockTreeTest {
 		
 	}
 	
+	@Test
+	public void testWorkOverflow() throws MisbehaveException {
+		
+		Random r = new Random();
+		
+		// A target of one is 2^255 work per block, so the chain work saturates
+		BlockHeader genesis = new BlockHeader(1, getRandomHash(r), getRandomHash(r), 0, BigInteger.ONE, 0, 0);
+		
+		BlockTree tree = new BlockTree(genesis, null, false);
+		
+		BlockHeader[] headers = new BlockHeader[5];
+		BlockHeader prev = genesis;
+		for (int i = 0; i < headers.length; i++) {
+			headers[i] = new BlockHeader(1, prev.getBlockHash(), getRandomHash(r), 0, BigInteger.ONE, 0, 0);
+			prev = headers[i];
+		}
+		
+		assertTrue("Unable to add first link", tree.add(headers[0]));
+		
+		assertTrue("Unable to add links", tree.addAll(Arrays.copyOfRange(headers, 1, headers.length)));
+		
+		for (int i = 0; i < headers.length; i++) {
+			assertEquals("Height mismatch", i + 1, tree.getHeight(headers[i]));
+		}
+		
+		assertTrue("Main chain not extended", tree.getHeight() > 0);
+		
+	}
+	
 	@Test
 	public void testRandomAdd() throws MisbehaveException {
 		Random r = new Random();
@@ -276,12 +310,433 @@ public class BlockTreeTest {
 		}
 	}
 	
+	@Test
+	public void testBatch() throws MisbehaveException {
+		
+		Random r = new Random();
+		
+		BlockHeader genesis = getHeader(r);
+		
+		BlockTree tree = new BlockTree(genesis, null, false);
+		
+		BlockHeader[] main = new BlockHeader[20];
+		BlockHeader[] fork = new BlockHeader[20];
+		
+		main[0] = getHeader(genesis.getBlockHash(), r);
+		
+		for (int i = 1; i < main.length; i++) {
+			main[i] = getHeader(main[i - 1].getBlockHash(), r);
+		}
+		
+		fork[0] = getHeader(main[10].getBlockHash(), r);
+		
+		for (int i = 1; i < fork.length; i++) {
+			fork[i] = getHeader(fork[i - 1].getBlockHash(), r);
+		}
+		
+		final LinkedList<BlockHeader> addedList = new LinkedList<BlockHeader>();
+		final LinkedList<BlockHeader> removeList = new LinkedList<BlockHeader>();
+		
+		tree.addTreeMonitor(new TreeMonitor() {
+			@Override
+			public void handle(BlockHeader header, boolean removed) {
+				if (removed) {
+					removeList.add(header);
+				} else {
+					addedList.add(header);
+				}
+			}
+		});
+		
+		assertTrue("Unable to add main batch", tree.addAll(main));
+		
+		for (int i = 0; i < main.length; i++) {
+			assertTrue("Tree monitor not called for batch header", addedList.removeFirst() == main[i]);
+		}
+		
+		assertTrue("Header added to removed list when adding to main chain", removeList.isEmpty());
+		
+		BlockHeader[] broken = new BlockHeader[] {fork[0], fork[2]};
+		
+		boolean thrown = false;
+		try {
+			tree.addAll(broken);
+		} catch (MisbehaveException e) {
+			thrown = true;
+		}
+		
+		assertTrue("Unconnected batch accepted", thrown);
+		assertEquals("Header from unconnected batch added to tree", -1, tree.getHeight(fork[0]));
+		
+		assertTrue("Unable to add fork batch", tree.addAll(fork));
+		
+		for (int i = main.length - 1; i > 10; i--) {
+			assertTrue("Removed main chain headers not added to removed list", removeList.removeFirst() == main[i]);
+		}
+		
+		for (int i = 0; i < fork.length; i++) {
+			assertTrue("Added new main chain headers not added to added list", addedList.removeFirst() == fork[i]);
+		}
+		
+		assertTrue("Remove list not empty", removeList.isEmpty());
+		assertTrue("Added list not empty", addedList.isEmpty());
+		
+		for (int i = 11; i < 11 + fork.length; i++) {
+			assertEquals("Unexpected main chain header (after fork replacement)", fork[i - 11], tree.getHeader(i + 1));
+		}
+		
+		assertFalse("Duplicate batch reported as added", tree.addAll(fork));
+		
+	}
+	
+	@Test
+	public void testSharedLocator() throws MisbehaveException {
+		
+		Random r = new Random();
+		
+		BlockHeader genesis = getHeader(r);
+		
+		BlockTree tree = new BlockTree(genesis, null, false);
+		
+		BlockHeader[] main = getChain(genesis, 1000, r);
+		assertTrue("Unable to add main chain", tree.addAll(main));
+		
+		List<Hash> locator = tree.getLocator();
+		
+		assertTrue("Locator not shared", locator == tree.getLocator());
+		assertEquals("Locator does not match array locator", locator, Arrays.asList(tree.getBlockLocator()));
+		assertEquals("Locator does not start at tip", main[999].getBlockHash(), locator.get(0));
+		assertEquals("Locator does not end at genesis", genesis.getBlockHash(), locator.get(locator.size() - 1));
+		
+		try {
+			locator.clear();
+			assertTrue("Shared locator modified", false);
+		} catch (UnsupportedOperationException e) {
+		}
+		
+		assertTrue("Unable to add header", tree.add(getHeader(main[999].getBlockHash(), r)));
+		
+		List<Hash> next = tree.getLocator();
+		
+		assertFalse("Locator not rebuilt for new tip", locator == next);
+		assertEquals("Locator does not follow tip", main[999].getBlockHash(), next.get(1));
+		
+	}
+	
+	@Test
+	public void testConcurrentReaders() throws MisbehaveException, InterruptedException {
+		
+		final Random r = new Random();
+		
+		BlockHeader genesis = getHeader(r);
+		
+		final BlockTree tree = new BlockTree(genesis, null, false);
+		
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<String> error = new AtomicReference<String>();
+		
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				while (!done.get()) {
+					MainChain main = tree.getMainChain();
+					int length = main.getLength();
+					BlockHeader tip = main.getHeader(length - 1);
+					if (main.getHeader(length) != null) {
+						error.set("Header found beyond the end of the snapshot");
+					}
+					if (length > 1 && !main.getHeader(length - 2).getBlockHash().equals(tip.getPrevious())) {
+						error.set("Snapshot is not a chain");
+					}
+					if (tree.getHeight(tip) != length - 1) {
+						error.set("Snapshot tip has incorrect height");
+					}
+				}
+			}
+		});
+		
+		reader.start();
+		
+		try {
+			BlockHeader[] main = new BlockHeader[2000];
+			main[0] = getHeader(genesis.getBlockHash(), r);
+			for (int i = 1; i < main.length; i++) {
+				main[i] = getHeader(main[i - 1].getBlockHash(), r);
+			}
+			
+			for (int i = 0; i < main.length; i++) {
+				assertTrue("Unable to add main header", tree.add(main[i]));
+				if (i == 1500) {
+					BlockHeader prev = main[1400];
+					for (int j = 0; j < 150; j++) {
+						prev = getHeader(prev.getBlockHash(), r);
+						assertTrue("Unable to add fork header", tree.add(prev));
+					}
+					assertTrue("Fork did not replace main chain", tree.isOnMain(prev));
+				}
+			}
+			
+			for (int i = 0; i < main.length; i++) {
+				assertEquals("Unexpected main chain header", main[i], tree.getHeader(i + 1));
+			}
+		} finally {
+			done.set(true);
+			reader.join();
+		}
+		
+		assertTrue(error.get(), error.get() == null);
+		
+	}
+	
+	@Test
+	public void testAncestor() throws MisbehaveException {
+		
+		Random r = new Random();
+		
+		BlockHeader genesis = getHeader(r);
+		
+		BlockTree tree = new BlockTree(genesis, null, false);
+		
+		BlockHeader[] main = new BlockHeader[3000];
+		BlockHeader prev = genesis;
+		for (int i = 0; i < main.length; i++) {
+			main[i] = getHeader(prev.getBlockHash(), r);
+			prev = main[i];
+		}
+		assertTrue("Unable to add main chain", tree.addAll(main));
+		
+		BlockHeader[] fork = new BlockHeader[1500];
+		prev = main[999];
+		for (int i = 0; i < fork.length; i++) {
+			fork[i] = getHeader(prev.getBlockHash(), r);
+			prev = fork[i];
+		}
+		assertTrue("Unable to add fork", tree.addAll(fork));
+		
+		BlockHeader forkTip = fork[fork.length - 1];
+		
+		for (int i = 0; i < 200; i++) {
+			int height = r.nextInt(2501);
+			BlockHeader expected = height == 0 ? genesis : (height <= 1000 ? main[height - 1] : fork[height - 1001]);
+			assertEquals("Unexpected fork ancestor", expected, tree.getAncestor(forkTip, height));
+			
+			height = r.nextInt(3001);
+			expected = height == 0 ? genesis : main[height - 1];
+			assertEquals("Unexpected main ancestor", expected, tree.getAncestor(main[main.length - 1], height));
+		}
+		
+		assertTrue("Ancestor found above header", tree.getAncestor(forkTip, 2501) == null);
+		
+		assertEquals("Unexpected fork point", main[999], tree.findFork(forkTip, main[main.length - 1]));
+		assertEquals("Unexpected fork point", main[999], tree.findFork(main[2000], fork[0]));
+		assertEquals("Unexpected fork point for ancestor", main[500], tree.findFork(main[500], forkTip));
+		assertEquals("Unexpected fork point for same header", forkTip, tree.findFork(forkTip, forkTip));
+		
+		Hash[] locator = tree.getBlockLocator(forkTip);
+		assertEquals("Locator does not start at tip", forkTip.getBlockHash(), locator[0]);
+		assertEquals("Locator does not end at genesis", genesis.getBlockHash(), locator[locator.length - 1]);
+		for (int i = 0; i < 10; i++) {
+			assertEquals("Unexpected dense locator entry", fork[fork.length - 1 - i].getBlockHash(), locator[i]);
+		}
+		assertTrue("Locator is not sparse", locator.length < 30);
+		
+	}
+	
+	@Test
+	public void testRetarget() throws MisbehaveException {
+		checkRetarget(BlockTree.NO_PRUNING);
+	}
+	
+	@Test
+	public void testPrunedRetarget() throws MisbehaveException {
+		checkRetarget(100);
+	}
+	
+	@Test
+	public void testCheckpoint() throws MisbehaveException {
+		
+		Random r = new Random();
+		
+		BlockHeader genesis = getHeader(r);
+		
+		BlockHeader[] main = getChain(genesis, 3000, r);
+		
+		BlockHeader[] window = new BlockHeader[485];
+		System.arraycopy(main, 2015, window, 0, window.length);
+		
+		ChainWork work = ChainWork.ZERO;
+		for (int i = 0; i < 2500; i++) {
+			work = work.add(ChainWork.fromTarget(main[i].getTarget()));
+		}
+		
+		try {
+			new Checkpoint(main[2499].getBlockHash(), 2500, work, new BlockHeader[] {main[2499]});
+			assertTrue("Checkpoint without retarget period start accepted", false);
+		} catch (IllegalArgumentException e) {
+		}
+		
+		Checkpoint checkpoint = new Checkpoint(main[2499].getBlockHash(), 2500, work, window);
+		
+		BlockTree tree = new BlockTree(checkpoint, null, false, BlockTree.NO_PRUNING);
+		
+		assertEquals("Unexpected main chain length", 2501, tree.getHeight());
+		assertEquals("Unexpected base height", 2016, tree.getMainChain().getBase());
+		assertEquals("Unexpected checkpoint header", main[2499], tree.getHeader(2500));
+		assertEquals("Unexpected base header", main[2015], tree.getHeader(2016));
+		assertTrue("Header found below checkpoint headers", tree.getHeader(2015) == null);
+		assertEquals("Unexpected checkpoint header height", 2500, tree.getHeight(main[2499]));
+		
+		BlockHeader[] rest = new BlockHeader[500];
+		System.arraycopy(main, 2500, rest, 0, rest.length);
+		assertTrue("Unable to add headers after checkpoint", tree.addAll(rest));
+		
+		assertEquals("Unexpected main chain length", 3001, tree.getHeight());
+		assertEquals("Unexpected tip", main[2999], tree.getMainChain().getTip());
+		assertEquals("Unexpected ancestor", main[2099], tree.getAncestor(main[2999], 2100));
+		
+		Hash[] locator = tree.getBlockLocator();
+		assertEquals("Locator does not end at base", main[2015].getBlockHash(), locator[locator.length - 1]);
+		
+		assertTrue("Header below checkpoint not added to orphans", tree.add(main[100]));
+		assertFalse("Header below checkpoint added to main chain", tree.isOnMain(main[100]));
+		
+	}
+	
+	@Test
+	public void testPrune() throws MisbehaveException {
+		
+		Random r = new Random();
+		
+		BlockHeader genesis = getHeader(r);
+		
+		BlockTree tree = new BlockTree(genesis, null, false, 1500);
+		
+		BlockHeader[] main = getChain(genesis, 5000, r);
+		BlockHeader[] oldFork = getChain(main[999], 50, r);
+		
+		for (int i = 0; i < main.length; i += 500) {
+			BlockHeader[] batch = new BlockHeader[500];
+			System.arraycopy(main, i, batch, 0, batch.length);
+			assertTrue("Unable to add batch", tree.addAll(batch));
+			if (i == 1000) {
+				assertTrue("Unable to add fork", tree.addAll(oldFork));
+			}
+		}
+		
+		MainChain chain = tree.getMainChain();
+		
+		assertEquals("Unexpected pruned height", 3072, chain.getPrunedHeight());
+		assertEquals("Unexpected main chain length", 5001, chain.getLength());
+		
+		assertTrue("Pruned header returned", tree.getHeader(100) == null);
+		assertEquals("Unexpected pruned hash", main[99].getBlockHash(), chain.getHash(100));
+		assertEquals("Unexpected pruned header height", 100, tree.getHeight(main[99]));
+		assertTrue("Pruned header not on main chain", tree.isOnMain(main[99]));
+		assertEquals("Unexpected pruned header confirms", 4901, tree.getConfirms(main[99]));
+		assertEquals("Unexpected unpruned header", main[3999], tree.getHeader(4000));
+		
+		assertEquals("Pruned fork has a height", -1, tree.getHeight(oldFork[10]));
+		assertFalse("Pruned fork on main chain", tree.isOnMain(oldFork[10]));
+		
+		Hash[] locator = tree.getBlockLocator();
+		assertEquals("Locator does not end at genesis", genesis.getBlockHash(), locator[locator.length - 1]);
+		
+		BlockHeader[] fork = getChain(main[4499], 600, r);
+		assertTrue("Unable to add fork", tree.addAll(fork));
+		
+		BlockHeader forkTip = fork[fork.length - 1];
+		
+		assertEquals("Fork did not replace main chain", forkTip, tree.getMainChain().getTip());
+		assertEquals("Unexpected fork ancestor", main[3999], tree.getAncestor(forkTip, 4000));
+		assertEquals("Unexpected fork point", main[4499], tree.findFork(forkTip, main[4999]));
+		
+		Hash[] forkLocator = tree.getBlockLocator(main[4999]);
+		assertEquals("Fork locator does not end at genesis", genesis.getBlockHash(), forkLocator[forkLocator.length - 1]);
+		
+		assertTrue("Header on pruned fork not added to orphans", tree.add(getHeader(main[1999].getBlockHash(), r)));
+		assertEquals("Unexpected main chain length", 5101, tree.getHeight());
+		
+	}
+	
+	private void checkRetarget(int pruneDepth) throws MisbehaveException {
+		
+		Random r = new Random();
+		
+		BigInteger target = BigInteger.ONE.shiftLeft(254);
+		BigInteger maxPOW = BigInteger.ONE.shiftLeft(255);
+		
+		BlockHeader genesis = mine(getRandomHash(r), 0, target, r);
+		
+		BlockTree tree = new BlockTree(genesis, maxPOW, true, pruneDepth);
+		
+		int interval = Message.RETARGET_INTERVAL;
+		
+		BlockHeader[] main = new BlockHeader[interval - 1];
+		BlockHeader prev = genesis;
+		for (int i = 0; i < main.length; i++) {
+			main[i] = mine(prev.getBlockHash(), (i + 1) * 300, target, r);
+			prev = main[i];
+		}
+		assertTrue("Unable to add main chain", tree.addAll(main));
+		
+		BlockHeader[] fork = new BlockHeader[interval - 1 - 2000];
+		prev = main[1999];
+		for (int i = 0; i < fork.length; i++) {
+			fork[i] = mine(prev.getBlockHash(), (2001 + i) * 600, target, r);
+			prev = fork[i];
+		}
+		assertTrue("Unable to add fork", tree.addAll(fork));
+		
+		BigInteger mainTarget = getRetarget(target, main[main.length - 1].getTimestamp());
+		BigInteger forkTarget = getRetarget(target, fork[fork.length - 1].getTimestamp());
+		
+		assertFalse("Branches have the same retarget", new TargetBits(mainTarget).equals(new TargetBits(forkTarget)));
+		
+		for (int i = 0; i < 2; i++) {
+			assertTrue("Unable to add main retarget header", tree.add(mine(main[main.length - 1].getBlockHash(), interval * 300 + i, mainTarget, r)));
+			assertTrue("Unable to add fork retarget header", tree.add(mine(fork[fork.length - 1].getBlockHash(), interval * 600 + i, forkTarget, r)));
+		}
+		
+		try {
+			tree.add(mine(fork[fork.length - 1].getBlockHash(), interval * 600 + 2, mainTarget, r));
+			assertTrue("Incorrect retarget accepted", false);
+		} catch (MisbehaveException e) {
+			assertEquals("Unexpected severity", MisbehaveException.CRITICAL, e.getSeverity());
+		}
+		
+	}
+	
+	private static BlockHeader[] getChain(BlockHeader start, int length, Random r) {
+		BlockHeader[] headers = new BlockHeader[length];
+		BlockHeader prev = start;
+		for (int i = 0; i < length; i++) {
+			headers[i] = getHeader(prev.getBlockHash(), r);
+			prev = headers[i];
+		}
+		return headers;
+	}
+	
+	private static BigInteger getRetarget(BigInteger target, int timespan) {
+		timespan = Math.max(timespan, Message.RETARGET_TIMESPAN / 4);
+		timespan = Math.min(timespan, Message.RETARGET_TIMESPAN * 4);
+		return target.multiply(BigInteger.valueOf(timespan)).divide(BigInteger.valueOf(Message.RETARGET_TIMESPAN));
+	}
+	
+	private static BlockHeader mine(Hash previous, int timestamp, BigInteger target, Random r) {
+		Hash merkle = getRandomHash(r);
+		int nonce = 0;
+		BlockHeader header;
+		do {
+			header = new BlockHeader(1, previous, merkle, timestamp, target, nonce++, 0);
+		} while (!header.checkPOW());
+		return header;
+	}
+	
 	private static BlockHeader getHeader(Random r) {
 		return getHeader(getRandomHash(r), r);
 	}
 	
 	private static BlockHeader getHeader(Hash previous, Random r) {
-		return new BlockHeader(1, previous, getRandomHash(r), 0, BigInteger.ONE, 0, 0);
+		return new BlockHeader(1, previous, getRandomHash(r), 0, Message.MIN_POW, 0, 0);
 	}
 	
 	private static Hash getRandomHash(Random r) {
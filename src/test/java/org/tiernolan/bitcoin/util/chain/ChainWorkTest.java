@@ -0,0 +1,81 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.types.TargetBits;
+
+public class ChainWorkTest {
+	
+	private static final BigInteger TWO_256 = BigInteger.ONE.shiftLeft(256);
+	
+	@Test
+	public void testFromBits() {
+		
+		Random r = new Random();
+		
+		int[] vectors = new int[] {0x1d00FFFF, 0x1b0404cb, 0x207FFFFF, 0x2100FFFF, 0x03123456, 0x02123456, 0x01123456};
+		
+		for (int bits : vectors) {
+			checkBits(bits);
+		}
+		
+		for (int i = 0; i < 1000; i++) {
+			int size = 1 + r.nextInt(33);
+			int mantissa = 1 + r.nextInt(0x007FFFFF);
+			checkBits((size << 24) | mantissa);
+		}
+		
+		assertEquals("Negative target has work", ChainWork.ZERO, ChainWork.fromBits(0x1d80FFFF));
+		assertEquals("Zero target has work", ChainWork.ZERO, ChainWork.fromBits(0x1d000000));
+		assertEquals("Overflowing target has work", ChainWork.ZERO, ChainWork.fromBits(0x227FFFFF));
+	}
+	
+	@Test
+	public void testAddSubtract() {
+		
+		Random r = new Random();
+		
+		for (int i = 0; i < 1000; i++) {
+			BigInteger a = new BigInteger(255, r);
+			BigInteger b = new BigInteger(r.nextInt(256), r);
+			
+			ChainWork wa = ChainWork.valueOf(a);
+			ChainWork wb = ChainWork.valueOf(b);
+			
+			assertEquals("Conversion mismatch", a, wa.toBigInteger());
+			assertEquals("Addition mismatch", a.add(b), wa.add(wb).toBigInteger());
+			assertEquals("Comparison mismatch", a.compareTo(b), wa.compareTo(wb));
+			if (a.compareTo(b) >= 0) {
+				assertEquals("Subtraction mismatch", a.subtract(b), wa.subtract(wb).toBigInteger());
+			} else {
+				assertEquals("Subtraction mismatch", b.subtract(a), wb.subtract(wa).toBigInteger());
+			}
+		}
+	}
+	
+	@Test
+	public void testOverflow() {
+		ChainWork max = ChainWork.valueOf(TWO_256.subtract(BigInteger.ONE));
+		assertEquals("Maximum mismatch", ChainWork.MAX, max);
+		assertEquals("Sum did not saturate", ChainWork.MAX, max.add(ChainWork.valueOf(BigInteger.ONE)));
+		ChainWork half = ChainWork.valueOf(BigInteger.ONE.shiftLeft(255));
+		assertEquals("Sum did not saturate", ChainWork.MAX, half.add(half).add(half));
+	}
+	
+	private static void checkBits(int bits) {
+		BigInteger target = TargetBits.bitsToTarget(bits);
+		if (target.signum() <= 0 || target.bitLength() > 256) {
+			return;
+		}
+		BigInteger expected = TWO_256.divide(target.add(BigInteger.ONE));
+		ChainWork work = ChainWork.fromBits(bits);
+		assertEquals("Work mismatch for bits " + Integer.toHexString(bits), expected, work.toBigInteger());
+		assertTrue("Cached work mismatch", work == ChainWork.fromBits(bits));
+	}
+
+}
@@ -0,0 +1,89 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+public class HashIndexTest {
+
+	@Test
+	public void testAddGet() {
+
+		Random r = new Random();
+
+		HashIndex index = new HashIndex(16);
+
+		byte[][] keys = new byte[50000][32];
+
+		for (int i = 0; i < keys.length; i++) {
+			r.nextBytes(keys[i]);
+			assertEquals("Unexpected node id", i, index.add(new Hash(keys[i])));
+		}
+
+		assertEquals("Index size mismatch", keys.length, index.size());
+
+		byte[] padded = new byte[40];
+
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals("Hash lookup failed", i, index.get(new Hash(keys[i])));
+
+			System.arraycopy(keys[i], 0, padded, 5, 32);
+			assertEquals("Array lookup failed", i, index.get(padded, 5));
+
+			ByteBuffer buf = ByteBuffer.wrap(padded);
+			buf.position(5);
+			assertEquals("Buffer lookup failed", i, index.get(buf));
+			assertEquals("Buffer position changed by lookup", 5, buf.position());
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			byte[] key = new byte[32];
+			r.nextBytes(key);
+			assertEquals("Missing key found in index", -1, index.get(key, 0));
+		}
+	}
+
+	@Test
+	public void testDuplicate() {
+
+		Random r = new Random();
+
+		HashIndex index = new HashIndex();
+
+		byte[] key = new byte[32];
+		r.nextBytes(key);
+
+		assertEquals("Unable to add key", 0, index.add(key, 0));
+		assertEquals("Duplicate key added", -1, index.add(new Hash(key)));
+		assertEquals("Duplicate key changed size", 1, index.size());
+	}
+
+	@Test
+	public void testGetHash() {
+
+		Random r = new Random();
+
+		HashIndex index = new HashIndex();
+
+		byte[][] keys = new byte[100][32];
+
+		for (int i = 0; i < keys.length; i++) {
+			r.nextBytes(keys[i]);
+			index.add(keys[i], 0);
+		}
+
+		for (int i = 0; i < keys.length; i++) {
+			byte[] out = new byte[32];
+			index.getHash(i, out, 0);
+			assertTrue("Hash readback error", Arrays.equals(keys[i], out));
+			assertEquals("Word readback error", new Hash(keys[i]).getLELong(8), index.getWord(i, 1));
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+import org.tiernolan.bitcoin.util.protocol.types.VarInt;
+
+public class HeaderVerifierTest {
+	
+	private static final BigInteger EASY_TARGET = BigInteger.ONE.shiftLeft(255);
+	
+	@Test
+	public void testVerify() throws IOException, MisbehaveException {
+		
+		Random r = new Random();
+		
+		BlockHeader[] headers = getChain(r, 1000, EASY_TARGET);
+		
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			HeaderVerifier verifier = new HeaderVerifier(pool, true);
+			
+			BlockHeader[] decoded = verifier.verify(1, getPayload(headers));
+			
+			assertEquals("Header count mismatch", headers.length, decoded.length);
+			
+			for (int i = 0; i < headers.length; i++) {
+				assertEquals("Header mismatch", headers[i], decoded[i]);
+				assertTrue("Proof of work not cached", decoded[i].checkPOW());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	public void testInsufficientPOW() throws IOException {
+		
+		Random r = new Random();
+		
+		BlockHeader[] headers = getChain(r, 200, EASY_TARGET);
+		headers[150] = new BlockHeader(1, headers[149].getBlockHash(), getRandomHash(r), 0, BigInteger.ONE, 0, 0);
+		
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			new HeaderVerifier(pool, true).verify(1, getPayload(headers));
+			fail("Insufficient proof of work not detected");
+		} catch (MisbehaveException e) {
+			assertEquals("Unexpected severity", MisbehaveException.CRITICAL, e.getSeverity());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	public void testDisconnected() throws IOException {
+		
+		Random r = new Random();
+		
+		BlockHeader[] headers = getChain(r, 200, EASY_TARGET);
+		headers[100] = headers[99];
+		
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			new HeaderVerifier(pool, false).verify(1, getPayload(headers));
+			fail("Disconnected batch not detected");
+		} catch (MisbehaveException e) {
+			assertEquals("Unexpected severity", MisbehaveException.WARN, e.getSeverity());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testTruncated() throws IOException, MisbehaveException {
+		
+		Random r = new Random();
+		
+		byte[] payload = getPayload(getChain(r, 10, EASY_TARGET));
+		byte[] truncated = new byte[payload.length - 20];
+		System.arraycopy(payload, 0, truncated, 0, truncated.length);
+		
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			new HeaderVerifier(pool, false).verify(1, truncated);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private static BlockHeader[] getChain(Random r, int length, BigInteger target) {
+		BlockHeader[] headers = new BlockHeader[length];
+		Hash previous = getRandomHash(r);
+		for (int i = 0; i < length; i++) {
+			Hash merkle = getRandomHash(r);
+			int nonce = 0;
+			BlockHeader header;
+			do {
+				header = new BlockHeader(1, previous, merkle, 0, target, nonce++, 0);
+			} while (!header.checkPOW());
+			headers[i] = header;
+			previous = header.getBlockHash();
+		}
+		return headers;
+	}
+	
+	private static byte[] getPayload(BlockHeader[] headers) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		EndianDataOutputStream eos = new EndianDataOutputStream(bos);
+		new VarInt(headers.length).write(1, eos);
+		for (BlockHeader header : headers) {
+			header.write(1, eos);
+			new VarInt(0).write(1, eos);
+		}
+		eos.flush();
+		return bos.toByteArray();
+	}
+	
+	private static Hash getRandomHash(Random r) {
+		byte[] data = new byte[32];
+		r.nextBytes(data);
+		return new Hash(data);
+	}
+
+}
@@ -0,0 +1,151 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tiernolan.bitcoin.util.protocol.Message;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+public class MappedHeaderStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testAppend() throws IOException {
+
+		Random r = new Random();
+
+		File dir = folder.newFolder();
+
+		BlockHeader[] headers = new BlockHeader[10000];
+
+		MappedHeaderStore store = new MappedHeaderStore(dir);
+
+		try {
+			for (int i = 0; i < headers.length; i++) {
+				headers[i] = getHeader(r);
+				assertEquals("Unexpected record index", i, store.append(headers[i]));
+			}
+		} finally {
+			store.close();
+		}
+
+		store = new MappedHeaderStore(dir);
+
+		try {
+			assertEquals("Header count not restored", headers.length, store.size());
+			for (int i = 0; i < headers.length; i++) {
+				BlockHeader h = store.get(i);
+				assertEquals("Header readback error", headers[i], h);
+				assertEquals("Header target readback error", headers[i].getTarget(), h.getTarget());
+				assertEquals("Timestamp readback error", headers[i].getTimestamp(), store.getTimestamp(i));
+				assertEquals("Bits readback error", headers[i].getTarget().getBits(), store.getBits(i));
+			}
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testRestart() throws IOException, MisbehaveException {
+
+		Random r = new Random();
+
+		File dir = folder.newFolder();
+
+		BlockHeader genesis = getHeader(r);
+
+		BlockHeader[] main = new BlockHeader[20];
+		BlockHeader[] fork = new BlockHeader[20];
+
+		main[0] = getHeader(genesis.getBlockHash(), r);
+
+		for (int i = 1; i < main.length; i++) {
+			main[i] = getHeader(main[i - 1].getBlockHash(), r);
+		}
+
+		fork[0] = getHeader(main[10].getBlockHash(), r);
+
+		for (int i = 1; i < fork.length; i++) {
+			fork[i] = getHeader(fork[i - 1].getBlockHash(), r);
+		}
+
+		MappedHeaderStore store = new MappedHeaderStore(dir);
+
+		try {
+			BlockTree tree = new BlockTree(store, genesis, null, false);
+
+			for (int i = 0; i < main.length; i++) {
+				assertTrue("Unable to add main header", tree.add(main[i]));
+			}
+
+			for (int i = 0; i < fork.length; i++) {
+				assertTrue("Unable to add fork header", tree.add(fork[i]));
+			}
+
+			assertEquals("Height index length mismatch", tree.getHeight(), store.getMainLength());
+		} finally {
+			store.close();
+		}
+
+		store = new MappedHeaderStore(dir);
+
+		try {
+			BlockTree tree = new BlockTree(store, genesis, null, false);
+
+			assertEquals("Main chain length not restored", 32, tree.getHeight());
+
+			for (int i = 0; i < 11; i++) {
+				assertEquals("Unexpected main chain header", main[i], tree.getHeader(i + 1));
+			}
+
+			for (int i = 11; i < 11 + fork.length; i++) {
+				assertEquals("Unexpected main chain header (after restart)", fork[i - 11], tree.getHeader(i + 1));
+			}
+
+			for (int i = 11; i < main.length; i++) {
+				assertEquals("Replaced header not restored to tree", i + 1, tree.getHeight(main[i]));
+			}
+
+			assertFalse("Replaced header restored to main chain", tree.isOnMain(main[15]));
+
+			for (int h = 0; h < tree.getHeight(); h++) {
+				assertEquals("Height index mismatch", tree.getHeader(h), store.get(store.getMainRecord(h)));
+			}
+
+			BlockHeader next = getHeader(fork[fork.length - 1].getBlockHash(), r);
+
+			assertTrue("Unable to add header after restart", tree.add(next));
+
+			assertEquals("Header added after restart not on main chain", next, tree.getHeader(32));
+		} finally {
+			store.close();
+		}
+
+	}
+
+	private static BlockHeader getHeader(Random r) {
+		return getHeader(getRandomHash(r), r);
+	}
+
+	private static BlockHeader getHeader(Hash previous, Random r) {
+		return new BlockHeader(r.nextInt(), previous, getRandomHash(r), r.nextInt(), Message.MIN_POW, r.nextInt(), 0);
+	}
+
+	private static Hash getRandomHash(Random r) {
+		byte[] data = new byte[32];
+		r.nextBytes(data);
+		return new Hash(data);
+	}
+
+}
@@ -0,0 +1,153 @@
+package org.tiernolan.bitcoin.util.chain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.Message;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+public class OrphanPoolTest {
+	
+	@Test
+	public void testResolve() {
+		
+		Random r = new Random();
+		
+		OrphanPool pool = new OrphanPool();
+		
+		Hash parent = getRandomHash(r);
+		
+		BlockHeader a = getHeader(parent, r);
+		BlockHeader b = getHeader(parent, r);
+		BlockHeader a1 = getHeader(a.getBlockHash(), r);
+		BlockHeader a2 = getHeader(a.getBlockHash(), r);
+		BlockHeader b1 = getHeader(b.getBlockHash(), r);
+		BlockHeader b11 = getHeader(b1.getBlockHash(), r);
+		BlockHeader other = getHeader(getRandomHash(r), r);
+		
+		BlockHeader[] headers = new BlockHeader[] {b11, a2, a1, b1, b, a, other};
+		
+		for (BlockHeader header : headers) {
+			assertTrue("Unable to add orphan", pool.add(header, 0));
+		}
+		assertFalse("Duplicate orphan added", pool.add(a, 0));
+		
+		assertEquals("Unexpected pool size", headers.length, pool.size());
+		
+		List<BlockHeader> resolved = pool.resolve(parent);
+		
+		assertEquals("Unexpected resolved count", 6, resolved.size());
+		
+		Set<Hash> seen = new HashSet<Hash>();
+		seen.add(parent);
+		for (BlockHeader header : resolved) {
+			assertTrue("Orphan resolved before its parent", seen.contains(header.getPrevious()));
+			seen.add(header.getBlockHash());
+		}
+		
+		assertEquals("Unexpected pool size after resolve", 1, pool.size());
+		assertTrue("Unrelated orphan removed", pool.contains(other.getBlockHash()));
+		assertTrue("Resolved parent returned orphans twice", pool.resolve(parent).isEmpty());
+		
+	}
+	
+	@Test
+	public void testEviction() {
+		
+		Random r = new Random();
+		
+		OrphanPool pool = new OrphanPool(10, 1000);
+		
+		BlockHeader[] headers = new BlockHeader[15];
+		for (int i = 0; i < headers.length; i++) {
+			headers[i] = getHeader(getRandomHash(r), r);
+		}
+		
+		for (int i = 0; i < 10; i++) {
+			pool.add(headers[i], i);
+		}
+		
+		// Marks the first orphan as recently used
+		assertFalse("Duplicate orphan added", pool.add(headers[0], 10));
+		
+		for (int i = 10; i < headers.length; i++) {
+			pool.add(headers[i], i);
+		}
+		
+		assertEquals("Pool exceeds maximum size", 10, pool.size());
+		assertTrue("Recently used orphan evicted", pool.contains(headers[0].getBlockHash()));
+		for (int i = 1; i < 6; i++) {
+			assertFalse("Least recently used orphan not evicted", pool.contains(headers[i].getBlockHash()));
+		}
+		
+		assertEquals("Unexpected expired count", 4, pool.expire(1010));
+		assertEquals("Unexpected pool size after expiry", 6, pool.size());
+		assertTrue("Recently used orphan expired", pool.contains(headers[0].getBlockHash()));
+		
+		assertTrue("Evicted orphan resolved", pool.resolve(headers[1].getPrevious()).isEmpty());
+		
+	}
+	
+	@Test
+	public void testTreeOrphans() throws MisbehaveException {
+		
+		Random r = new Random();
+		
+		BlockHeader genesis = getHeader(getRandomHash(r), r);
+		
+		BlockTree tree = new BlockTree(genesis, null, false);
+		
+		BlockHeader first = getHeader(genesis.getBlockHash(), r);
+		
+		BlockHeader[] branchA = new BlockHeader[5];
+		BlockHeader[] branchB = new BlockHeader[8];
+		
+		BlockHeader prev = first;
+		for (int i = 0; i < branchA.length; i++) {
+			branchA[i] = getHeader(prev.getBlockHash(), r);
+			prev = branchA[i];
+		}
+		prev = first;
+		for (int i = 0; i < branchB.length; i++) {
+			branchB[i] = getHeader(prev.getBlockHash(), r);
+			prev = branchB[i];
+		}
+		
+		for (int i = branchA.length - 1; i >= 0; i--) {
+			assertTrue("Unable to add orphan", tree.add(branchA[i]));
+		}
+		for (int i = branchB.length - 1; i >= 0; i--) {
+			assertTrue("Unable to add orphan", tree.add(branchB[i]));
+		}
+		
+		assertEquals("Orphans added to main chain", 1, tree.getHeight());
+		
+		assertTrue("Unable to add connecting header", tree.add(first));
+		
+		assertEquals("Orphan subtree not resolved", 10, tree.getHeight());
+		assertEquals("Unexpected tip", branchB[branchB.length - 1], tree.getMainChain().getTip());
+		for (BlockHeader header : branchA) {
+			assertTrue("Orphan branch not resolved", tree.getHeight(header) > 0);
+		}
+		
+	}
+	
+	private static BlockHeader getHeader(Hash previous, Random r) {
+		return new BlockHeader(1, previous, getRandomHash(r), 0, Message.MIN_POW, 0, 0);
+	}
+	
+	private static Hash getRandomHash(Random r) {
+		byte[] data = new byte[32];
+		r.nextBytes(data);
+		return new Hash(data);
+	}
+
+}
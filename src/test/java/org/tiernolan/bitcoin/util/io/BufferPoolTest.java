@@ -0,0 +1,87 @@
+package org.tiernolan.bitcoin.util.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.BitcoinInputStream;
+import org.tiernolan.bitcoin.util.protocol.BitcoinOutputStream;
+import org.tiernolan.bitcoin.util.protocol.Message;
+import org.tiernolan.bitcoin.util.protocol.message.Ping;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testSizeClasses() {
+		BufferPool pool = new BufferPool(1, 2);
+
+		ByteBuffer small = pool.acquire(10);
+		assertEquals("Smallest size class mismatch", 256, small.capacity());
+		assertEquals("Limit not set to requested size", 10, small.limit());
+
+		ByteBuffer medium = pool.acquire(1000);
+		assertEquals("Size not rounded to power of two", 1024, medium.capacity());
+
+		ByteBuffer large = pool.acquire((1 << BufferPool.MAX_CLASS_BITS) + 1);
+		assertEquals("Oversized buffer not allocated exactly", (1 << BufferPool.MAX_CLASS_BITS) + 1, large.capacity());
+
+		assertEquals("Miss count mismatch", 3, pool.getMisses());
+		assertEquals("Outstanding bytes mismatch", 256 + 1024 + large.capacity(), pool.getBytesOutstanding());
+
+		pool.release(small);
+		pool.release(medium);
+		pool.release(large);
+		assertEquals("Outstanding bytes not cleared", 0, pool.getBytesOutstanding());
+		assertEquals("Oversized buffer was pooled", 256 + 1024, pool.getBytesPooled());
+
+		assertTrue("Pooled buffer not reused", medium == pool.acquire(600));
+		assertEquals("Hit count mismatch", 1, pool.getHits());
+		assertEquals("Pooled bytes mismatch", 256, pool.getBytesPooled());
+	}
+
+	@Test
+	public void testPoolLimit() {
+		BufferPool pool = new BufferPool(1, 2);
+		ByteBuffer[] buffers = new ByteBuffer[3];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = pool.acquire(100);
+		}
+		for (int i = 0; i < buffers.length; i++) {
+			pool.release(buffers[i]);
+		}
+		assertEquals("Pool held more buffers than its limit", 2 * 256, pool.getBytesPooled());
+	}
+
+	@Test
+	public void testStreams() throws IOException {
+		BufferPool pool = new BufferPool(1, 4);
+		Random r = new Random(1);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		BitcoinOutputStream cos = new BitcoinOutputStream(Message.MAGIC_MAINNET, bos, pool);
+		Ping[] pings = new Ping[10];
+		for (int i = 0; i < pings.length; i++) {
+			pings[i] = new Ping(r.nextLong());
+			cos.writeMessage(pings[i]);
+		}
+
+		BitcoinInputStream cis = new BitcoinInputStream(Message.MAGIC_MAINNET, new ByteArrayInputStream(bos.toByteArray()), 1, pool);
+		cis.setVersion(Version.VERSION);
+		for (int i = 0; i < pings.length; i++) {
+			assertEquals("Message id mismatch, ping message expected", Message.PING, cis.getCommandId());
+			assertEquals("Ping message readback error", pings[i].getNonce(), cis.readPing().getNonce());
+		}
+
+		assertEquals("Buffers were not released", 0, pool.getBytesOutstanding());
+		assertEquals("Buffers were not reused", 1, pool.getMisses());
+		assertEquals("Hit count mismatch", 2 * pings.length - 1, pool.getHits());
+	}
+
+}
@@ -9,6 +9,9 @@ import java.io.IOException;
 import java.util.Random;
 
 import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
+import org.tiernolan.bitcoin.util.protocol.message.Ping;
+import org.tiernolan.bitcoin.util.protocol.message.Verack;
 import org.tiernolan.bitcoin.util.protocol.message.Version;
 
 public class BitcoinInputStreamTest {
@@ -46,6 +49,54 @@ public class BitcoinInputStreamTest {
 		
 	}
 	
+	@Test
+	public void testStreamingPayload() throws IOException {
+		
+		Random r = new Random();
+		
+		Ping ping = new Ping(r.nextLong());
+		
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		BitcoinOutputStream cos = new BitcoinOutputStream(Message.MAGIC_MAINNET, bos);
+		cos.writeMessage(ping);
+		cos.writeMessage(ping);
+		cos.writeMessage(new Verack());
+		
+		byte[] serialized = bos.toByteArray();
+		
+		BitcoinInputStream cis = new BitcoinInputStream(Message.MAGIC_MAINNET, new ByteArrayInputStream(serialized));
+		cis.setVersion(Version.VERSION);
+		
+		assertEquals("Message id mismatch, ping message expected", Message.PING, cis.getCommandId());
+		PayloadInputStream payload = cis.openPayload();
+		Ping ping2 = new Ping(Version.VERSION, new EndianDataInputStream(payload));
+		assertEquals("Ping message readback error", ping.getNonce(), ping2.getNonce());
+		assertEquals("Payload not fully read", 0, payload.getRemaining());
+		
+		// The unread payload is skipped when the next message is read
+		assertEquals("Message id mismatch, ping message expected", Message.PING, cis.getCommandId());
+		cis.openPayload().read();
+		assertEquals("Message id mismatch, verack message expected", Message.VERACK, cis.getCommandId());
+		
+		serialized[serialized.length - 24 - 1]++;
+		
+		cis = new BitcoinInputStream(Message.MAGIC_MAINNET, new ByteArrayInputStream(serialized));
+		cis.setVersion(Version.VERSION);
+		cis.skipMessage();
+		
+		boolean thrown = false;
+		payload = cis.openPayload();
+		try {
+			for (int i = 0; i < 8; i++) {
+				payload.read();
+			}
+		} catch (IOException e) {
+			thrown = true;
+		}
+		assertTrue("No exception thrown for checksum error in streamed payload", thrown);
+		
+	}
+	
 	private void checkChecksum(byte[] message, int p) throws IOException {
 		byte[] copy = new byte[message.length];
 		System.arraycopy(message, 0, copy, 0, message.length);
@@ -0,0 +1,111 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.message.Ping;
+import org.tiernolan.bitcoin.util.protocol.message.Pong;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+
+public class BitcoinServerTest {
+
+	@Test
+	public void testManyPeers() throws IOException, InterruptedException {
+		int peers = 50;
+		Random r = new Random(1);
+		BitcoinServerSocket serverSocket = new BitcoinServerSocket(0, Message.MAGIC_MAINNET, 0L, 0, r.nextLong(), false);
+		BitcoinServer server = new BitcoinServer(serverSocket, new EchoHandler());
+		final AtomicReference<Throwable> exceptionThrown = new AtomicReference<Throwable>(null);
+		try {
+			server.start();
+			Thread[] clients = new Thread[peers];
+			for (int i = 0; i < peers; i++) {
+				clients[i] = new Client(serverSocket.getLocalPort(), r.nextLong(), exceptionThrown);
+				clients[i].start();
+			}
+			for (Thread client : clients) {
+				client.join(10000);
+			}
+			assertNull("Client failed", exceptionThrown.get());
+		} finally {
+			server.close();
+		}
+		assertEquals("Connections not closed", 0, server.getConnectionCount());
+	}
+
+	@Test
+	public void testSlowHandshake() throws IOException, InterruptedException {
+		Random r = new Random(2);
+		BitcoinServerSocket serverSocket = new BitcoinServerSocket(0, Message.MAGIC_MAINNET, 0L, 0, r.nextLong(), false);
+		BitcoinServer server = new BitcoinServer(serverSocket, new EchoHandler(), null, 1, 500);
+		final AtomicReference<Throwable> exceptionThrown = new AtomicReference<Throwable>(null);
+		Socket silent = null;
+		try {
+			server.start();
+			// Holds the only handshake slot until it times out
+			silent = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+			Thread client = new Client(serverSocket.getLocalPort(), r.nextLong(), exceptionThrown);
+			client.start();
+			client.join(10000);
+			assertNull("Client failed", exceptionThrown.get());
+		} finally {
+			if (silent != null) {
+				silent.close();
+			}
+			server.close();
+		}
+	}
+
+	private static class EchoHandler implements BitcoinServer.PeerHandler {
+
+		@Override
+		public void handle(BitcoinSocket socket) throws IOException {
+			BitcoinInputStream in = socket.getInputStream();
+			in.setVersion(Version.VERSION);
+			while (in.getCommandId() == Message.PING) {
+				socket.getOutputStream().writeMessage(new Pong(in.readPing().getNonce()));
+			}
+		}
+
+	}
+
+	private static class Client extends Thread {
+
+		private final int port;
+		private final long nonce;
+		private final AtomicReference<Throwable> exceptionThrown;
+
+		public Client(int port, long nonce, AtomicReference<Throwable> exceptionThrown) {
+			this.port = port;
+			this.nonce = nonce;
+			this.exceptionThrown = exceptionThrown;
+		}
+
+		@Override
+		public void run() {
+			try {
+				BitcoinSocket s = new BitcoinSocket("localhost", port, Message.MAGIC_MAINNET, 0L, 0, nonce);
+				try {
+					s.setSoTimeout(5000);
+					s.getOutputStream().writeMessage(new Ping(nonce));
+					BitcoinInputStream in = s.getInputStream();
+					in.setVersion(Version.VERSION);
+					assertEquals("Pong nonce mismatch", nonce, in.readPong().getNonce());
+				} finally {
+					s.close();
+				}
+			} catch (Throwable t) {
+				exceptionThrown.set(t);
+			}
+		}
+
+	}
+
+}
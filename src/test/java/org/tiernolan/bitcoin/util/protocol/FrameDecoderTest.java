@@ -0,0 +1,114 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.message.Headers;
+import org.tiernolan.bitcoin.util.protocol.message.Ping;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+public class FrameDecoderTest {
+
+	@Test
+	public void testDecode() throws IOException {
+		Random r = new Random(1);
+
+		Ping ping = new Ping(r.nextLong());
+		Headers headers = new Headers(Version.VERSION, getHeaders(100, r));
+
+		byte[] garbage = new byte[7];
+		r.nextBytes(garbage);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(garbage);
+		BitcoinOutputStream cos = new BitcoinOutputStream(Message.MAGIC_MAINNET, bos);
+		cos.writeMessage(ping);
+		cos.writeMessage(headers);
+		byte[] serialized = bos.toByteArray();
+
+		FrameDecoder decoder = new FrameDecoder(Message.MAGIC_MAINNET);
+
+		ByteBuffer partial = ByteBuffer.wrap(serialized, 0, serialized.length - 1);
+		MessageFrame first = decoder.decode(partial);
+		assertEquals("Message id mismatch, ping message expected", Message.PING, first.getCommandId());
+		assertEquals("Ping message readback error", ping.getNonce(), new Ping(Version.VERSION, first.getInputStream()).getNonce());
+		assertNull("Frame decoded from incomplete buffer", decoder.decode(partial));
+
+		ByteBuffer buf = ByteBuffer.wrap(serialized);
+		decoder.decode(buf);
+		MessageFrame second = decoder.decode(buf);
+		assertEquals("Message id mismatch, headers message expected", Message.HEADERS, second.getCommandId());
+		assertEquals("Buffer not moved to end of frame", serialized.length, buf.position());
+
+		BlockHeader[] expected = headers.getBlockHeaders();
+		BlockHeader[] decoded = new Headers(Version.VERSION, second.getInputStream()).getBlockHeaders();
+		assertEquals("Header count mismatch", expected.length, decoded.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("Header readback error", expected[i], decoded[i]);
+		}
+
+		serialized[serialized.length - 1]++;
+		assertEquals("Payload was copied", serialized[serialized.length - 1], second.getPayload().get(second.getLength() - 1));
+		boolean thrown = false;
+		try {
+			ByteBuffer corrupt = ByteBuffer.wrap(serialized);
+			decoder.decode(corrupt);
+			decoder.decode(corrupt);
+		} catch (IOException e) {
+			thrown = true;
+		}
+		assertTrue("No exception thrown for checksum error", thrown);
+	}
+
+	@Test
+	public void testReadFrame() throws IOException {
+		Random r = new Random(2);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		BitcoinOutputStream cos = new BitcoinOutputStream(Message.MAGIC_MAINNET, bos);
+		Headers[] messages = new Headers[] {
+				new Headers(Version.VERSION, getHeaders(1, r)),
+				new Headers(Version.VERSION, getHeaders(Message.MAX_HEADERS, r)),
+				new Headers(Version.VERSION, getHeaders(10, r))
+		};
+		for (Headers message : messages) {
+			cos.writeMessage(message);
+		}
+
+		BitcoinInputStream cis = new BitcoinInputStream(Message.MAGIC_MAINNET, new ByteArrayInputStream(bos.toByteArray()));
+
+		for (Headers message : messages) {
+			assertEquals("Message id mismatch, headers message expected", Message.HEADERS, cis.getCommandId());
+			MessageFrame frame = cis.readFrame();
+			BlockHeader[] expected = message.getBlockHeaders();
+			BlockHeader[] decoded = new Headers(Version.VERSION, frame.getInputStream()).getBlockHeaders();
+			assertEquals("Header count mismatch", expected.length, decoded.length);
+			assertEquals("Last header mismatch", expected[expected.length - 1], decoded[decoded.length - 1]);
+		}
+	}
+
+	private static BlockHeader[] getHeaders(int count, Random r) {
+		BlockHeader[] headers = new BlockHeader[count];
+		for (int i = 0; i < count; i++) {
+			headers[i] = new BlockHeader(1, getRandomHash(r), getRandomHash(r), r.nextInt(), Message.MIN_POW, r.nextInt(), 0);
+		}
+		return headers;
+	}
+
+	private static Hash getRandomHash(Random r) {
+		byte[] data = new byte[32];
+		r.nextBytes(data);
+		return new Hash(data);
+	}
+
+}
@@ -0,0 +1,248 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.chain.BlockTree;
+import org.tiernolan.bitcoin.util.chain.HeaderVerifier;
+import org.tiernolan.bitcoin.util.protocol.message.GetHeaders;
+import org.tiernolan.bitcoin.util.protocol.message.Headers;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+public class HeaderSyncManagerTest {
+
+	private static final int LENGTH = 4500;
+
+	@Test
+	public void testSync() throws IOException, InterruptedException {
+		Random r = new Random(1);
+		BlockHeader[] chain = getChain(LENGTH, r);
+
+		Peer fast = new Peer(chain, 0, false, r);
+		Peer slow = new Peer(chain, 100, false, r);
+		Peer partial = new Peer(getPrefix(chain, 2500), 0, false, r);
+
+		try {
+			BlockTree tree = new BlockTree(chain[0], Message.MIN_POW, false);
+			HeaderSyncManager manager = new HeaderSyncManager(tree, null, null, 2000);
+			manager.addPeer(fast.connect(r));
+			manager.addPeer(slow.connect(r));
+			manager.addPeer(partial.connect(r));
+
+			assertTrue("Headers were not added", manager.sync());
+			assertEquals("Tree was not fully synced", LENGTH, tree.getHeight());
+			assertEquals("Tip mismatch", chain[LENGTH - 1], tree.getMainChain().getTip());
+			assertEquals("Peer was dropped", 3, manager.getPeers().size());
+			assertTrue("Fast peer was not the lead", fast.client == manager.getLead());
+			assertTrue("Slow peer latency was not measured", manager.getLatency(slow.client) >= 100);
+
+			assertFalse("Headers were added by second sync", manager.sync());
+			assertEquals("Tree height changed", LENGTH, tree.getHeight());
+		} finally {
+			fast.close();
+			slow.close();
+			partial.close();
+		}
+	}
+
+	@Test
+	public void testStall() throws IOException, InterruptedException {
+		Random r = new Random(2);
+		BlockHeader[] chain = getChain(LENGTH, r);
+
+		Peer stalling = new Peer(chain, 0, true, r);
+		Peer good = new Peer(chain, 0, false, r);
+
+		try {
+			BlockTree tree = new BlockTree(chain[0], Message.MIN_POW, false);
+			HeaderSyncManager manager = new HeaderSyncManager(tree, null, null, 500);
+			manager.addPeer(stalling.connect(r));
+			manager.addPeer(good.connect(r));
+
+			assertTrue("Headers were not added", manager.sync());
+			assertEquals("Tree was not fully synced", LENGTH, tree.getHeight());
+			assertEquals("Stalling peer was not dropped", 1, manager.getPeers().size());
+			assertTrue("Stalling peer was not closed", stalling.client.isClosed());
+			assertTrue("Good peer was dropped", good.client == manager.getPeers().get(0));
+		} finally {
+			stalling.close();
+			good.close();
+		}
+	}
+
+	@Test
+	public void testInvalidPeer() throws IOException, InterruptedException {
+		Random r = new Random(3);
+		BlockHeader[] chain = getChain(LENGTH, r);
+		BlockHeader[] invalid = chain.clone();
+		invalid[10] = new BlockHeader(1, getRandomHash(r), getRandomHash(r), 0, Message.MIN_POW, 0, 0);
+
+		Peer bad = new Peer(invalid, 0, false, r);
+		Peer good = new Peer(chain, 50, false, r);
+
+		try {
+			BlockTree tree = new BlockTree(chain[0], Message.MIN_POW, false);
+			HeaderSyncManager manager = new HeaderSyncManager(tree, new HeaderVerifier(false), null, 2000);
+			manager.addPeer(bad.connect(r));
+			manager.addPeer(good.connect(r));
+
+			manager.sync();
+			assertEquals("Tree was not fully synced", LENGTH, tree.getHeight());
+			assertEquals("Invalid peer was not dropped", 1, manager.getPeers().size());
+			assertTrue("Invalid peer was not closed", bad.client.isClosed());
+		} finally {
+			bad.close();
+			good.close();
+		}
+	}
+
+	@Test
+	public void testWorkerFailure() throws IOException, InterruptedException {
+		Random r = new Random(4);
+		BlockHeader[] chain = getChain(LENGTH, r);
+
+		Peer good = new Peer(chain, 0, false, r);
+
+		try {
+			BlockTree tree = new BlockTree(chain[0], Message.MIN_POW, false);
+			HeaderVerifier failing = new HeaderVerifier(false) {
+				@Override
+				public BlockHeader[] verify(int version, byte[] payload) {
+					throw new IllegalStateException("Store full");
+				}
+			};
+			HeaderSyncManager manager = new HeaderSyncManager(tree, failing, null, 2000);
+			manager.addPeer(good.connect(r));
+
+			try {
+				manager.sync();
+				fail("Worker failure was not rethrown");
+			} catch (IllegalStateException e) {
+				assertEquals("Failure mismatch", "Store full", e.getMessage());
+			}
+			assertEquals("Tree was changed", 1, tree.getHeight());
+		} finally {
+			good.close();
+		}
+	}
+
+	private static BlockHeader[] getChain(int length, Random r) {
+		BlockHeader[] headers = new BlockHeader[length];
+		Hash prev = getRandomHash(r);
+		for (int i = 0; i < length; i++) {
+			headers[i] = new BlockHeader(1, prev, getRandomHash(r), i * Message.RETARGET_SPACING, Message.MIN_POW, 0, 0);
+			prev = headers[i].getBlockHash();
+		}
+		return headers;
+	}
+
+	private static BlockHeader[] getPrefix(BlockHeader[] chain, int length) {
+		BlockHeader[] prefix = new BlockHeader[length];
+		System.arraycopy(chain, 0, prefix, 0, length);
+		return prefix;
+	}
+
+	private static Hash getRandomHash(Random r) {
+		byte[] data = new byte[32];
+		r.nextBytes(data);
+		return new Hash(data);
+	}
+
+	/**
+	 * An in-process peer which serves a fixed chain of headers
+	 */
+	private static class Peer implements Runnable {
+
+		private final BlockHeader[] chain;
+		private final HashMap<Hash, Integer> heights = new HashMap<Hash, Integer>();
+		private final int delay;
+		private final boolean stall;
+		private final BitcoinServerSocket server;
+		private final Thread thread;
+
+		private volatile BitcoinSocket client;
+
+		public Peer(BlockHeader[] chain, int delay, boolean stall, Random r) throws IOException {
+			this.chain = chain;
+			for (int i = 0; i < chain.length; i++) {
+				heights.put(chain[i].getBlockHash(), i);
+			}
+			this.delay = delay;
+			this.stall = stall;
+			this.server = new BitcoinServerSocket(0, Message.MAGIC_MAINNET, 0L, chain.length - 1, r.nextLong(), false);
+			this.server.setSoTimeout(2000);
+			this.thread = new Thread(this);
+			this.thread.start();
+		}
+
+		public BitcoinSocket connect(Random r) throws IOException {
+			client = new BitcoinSocket("localhost", server.getLocalPort(), Message.MAGIC_MAINNET, 0L, 0, r.nextLong());
+			return client;
+		}
+
+		@Override
+		public void run() {
+			BitcoinSocket s = null;
+			try {
+				s = server.accept();
+				BitcoinInputStream in = s.getInputStream();
+				BitcoinOutputStream out = s.getOutputStream();
+				while (true) {
+					if (in.getCommandId() != Message.GETHEADERS) {
+						in.skipMessage();
+						continue;
+					}
+					GetHeaders getHeaders = in.readGetHeaders();
+					if (stall) {
+						continue;
+					}
+					if (delay > 0) {
+						Thread.sleep(delay);
+					}
+					int start = chain.length;
+					for (Hash locator : getHeaders.getLocators()) {
+						Integer height = heights.get(locator);
+						if (height != null) {
+							start = height + 1;
+							break;
+						}
+					}
+					int end = Math.min(chain.length, start + Message.MAX_HEADERS);
+					BlockHeader[] reply = new BlockHeader[Math.max(0, end - start)];
+					for (int i = 0; i < reply.length; i++) {
+						reply[i] = chain[start + i];
+					}
+					out.writeMessage(new Headers(Version.VERSION, reply));
+				}
+			} catch (IOException e) {
+			} catch (InterruptedException e) {
+			} finally {
+				if (s != null) {
+					try {
+						s.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+
+		public void close() throws IOException, InterruptedException {
+			if (client != null) {
+				client.close();
+			}
+			server.close();
+			thread.join(2000);
+		}
+
+	}
+
+}
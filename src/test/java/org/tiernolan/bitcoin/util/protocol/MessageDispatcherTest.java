@@ -0,0 +1,238 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
+import org.tiernolan.bitcoin.util.protocol.message.Ping;
+import org.tiernolan.bitcoin.util.protocol.message.Pong;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+public class MessageDispatcherTest {
+
+	@Test
+	public void testCommandIndex() {
+		assertTrue("Command count too small", Message.getCommandCount() > 20);
+		assertEquals("Unknown id mapped to an index", -1, Message.getIndex(Message.PING + 1));
+		boolean[] used = new boolean[Message.getCommandCount()];
+		int[] ids = new int[] {Message.VERSION, Message.VERACK, Message.PING, Message.PONG, Message.HEADERS, Message.INV, Message.UNKNOWN};
+		for (int id : ids) {
+			int index = Message.getIndex(id);
+			assertTrue("Index out of range", index >= 0 && index < used.length);
+			assertFalse("Index reused", used[index]);
+			used[index] = true;
+		}
+	}
+
+	@Test
+	public void testCommandEncoding() {
+		String[] commands = new String[] {"version", "verack", "ping", "pong", "getheaders", "headers", "inv", "getaddr", "notacommand", "a"};
+		for (String command : commands) {
+			Message message = new EmptyMessage(command);
+			ByteBuffer buf = ByteBuffer.allocate(14).order(ByteOrder.LITTLE_ENDIAN);
+			buf.position(2);
+			message.writeCommand(buf);
+			byte[] data = buf.array();
+			for (int i = 0; i < 12; i++) {
+				byte expected = i < command.length() ? (byte) command.charAt(i) : 0;
+				assertEquals("Command encoding mismatch", expected, data[i + 2]);
+			}
+			int id = Message.getId(new Hash(Arrays.copyOfRange(data, 2, 14)));
+			assertEquals("Array lookup mismatch", id, Message.getId(data, 2));
+			assertEquals("Buffer lookup mismatch", id, Message.getId(buf, 2));
+			assertEquals("Message id mismatch", id, message.getCommandId());
+			assertEquals("Frame command mismatch", command, new MessageFrame(id, buf.getLong(2), buf.getInt(10), null).getCommand());
+		}
+		assertEquals("Ping id mismatch", Message.PING, new Ping(1).getCommandId());
+		assertEquals("Unknown command decoded", Message.UNKNOWN, new EmptyMessage("notacommand").getCommandId());
+	}
+
+	@Test
+	public void testDispatch() throws IOException {
+		BitcoinInputStream in = getStream(20);
+		final List<Long> nonces = new ArrayList<Long>();
+		MessageDispatcher dispatcher = new MessageDispatcher();
+		dispatcher.register(Message.PING, MessageDecoders.PING, new MessageHandler<Ping>() {
+			@Override
+			public void handle(Ping message) {
+				nonces.add(message.getNonce());
+			}
+		});
+		dispatcher.register(Message.PONG, MessageDecoders.PONG, new MessageHandler<Message>() {
+			@Override
+			public void handle(Message message) {
+				nonces.add(-((Pong) message).getNonce());
+			}
+		});
+		assertTrue("Ping not registered", dispatcher.isRegistered(Message.PING));
+		assertFalse("Inv registered", dispatcher.isRegistered(Message.INV));
+
+		try {
+			dispatcher.dispatchAll(in);
+		} catch (EOFException e) {
+		}
+		assertEquals("Handled message count", 40, nonces.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals("Ping nonce mismatch", Long.valueOf(i), nonces.get(2 * i));
+			assertEquals("Pong nonce mismatch", Long.valueOf(-i), nonces.get(2 * i + 1));
+		}
+	}
+
+	@Test
+	public void testExecutor() throws IOException, InterruptedException {
+		int count = 500;
+		BitcoinInputStream in = getStream(count);
+		final List<Long> nonces = Collections.synchronizedList(new ArrayList<Long>());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			MessageDispatcher dispatcher = new MessageDispatcher(executor);
+			dispatcher.register(Message.PING, MessageDecoders.PING, new MessageHandler<Ping>() {
+				@Override
+				public void handle(Ping message) {
+					nonces.add(message.getNonce());
+				}
+			});
+			try {
+				dispatcher.dispatchAll(in);
+			} catch (EOFException e) {
+			}
+		} finally {
+			executor.shutdown();
+			assertTrue("Handlers did not complete", executor.awaitTermination(5, TimeUnit.SECONDS));
+		}
+		assertEquals("Handled message count", count, nonces.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals("Messages handled out of order", Long.valueOf(i), nonces.get(i));
+		}
+	}
+
+	@Test
+	public void testQueueCapacity() throws IOException, InterruptedException {
+		int count = 100;
+		final int capacity = 4;
+		BitcoinInputStream in = getStream(count);
+		final List<Long> nonces = Collections.synchronizedList(new ArrayList<Long>());
+		final AtomicInteger maxQueued = new AtomicInteger();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final MessageDispatcher dispatcher = new MessageDispatcher(executor, capacity);
+			dispatcher.register(Message.PING, MessageDecoders.PING, new MessageHandler<Ping>() {
+				@Override
+				public void handle(Ping message) {
+					int queued = dispatcher.getQueuedCount();
+					if (queued > maxQueued.get()) {
+						maxQueued.set(queued);
+					}
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					nonces.add(message.getNonce());
+				}
+			});
+			try {
+				dispatcher.dispatchAll(in);
+			} catch (EOFException e) {
+			}
+		} finally {
+			executor.shutdown();
+			assertTrue("Handlers did not complete", executor.awaitTermination(5, TimeUnit.SECONDS));
+		}
+		assertTrue("Queue capacity exceeded", maxQueued.get() <= capacity);
+		assertEquals("Handled message count", count, nonces.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals("Messages handled out of order", Long.valueOf(i), nonces.get(i));
+		}
+	}
+
+	@Test
+	public void testRejectedExecution() throws IOException {
+		BitcoinInputStream in = getStream(10);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		MessageDispatcher dispatcher = new MessageDispatcher(executor, 2);
+		dispatcher.register(Message.PING, MessageDecoders.PING, new MessageHandler<Ping>() {
+			@Override
+			public void handle(Ping message) {
+			}
+		});
+		for (int i = 0; i < 5; i++) {
+			try {
+				dispatcher.dispatch(in);
+				fail("Rejected message was dispatched");
+			} catch (EOFException e) {
+				throw e;
+			} catch (IOException e) {
+			}
+			assertEquals("Rejected message left in queue", 0, dispatcher.getQueuedCount());
+			// Skip the unknown, pong and getaddr messages
+			for (int j = 0; j < 3; j++) {
+				assertFalse("Unexpected handler", dispatcher.dispatch(in));
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRegisterUnknown() {
+		new MessageDispatcher().register(Message.UNKNOWN, MessageDecoders.PING, new MessageHandler<Ping>() {
+			@Override
+			public void handle(Ping message) {
+			}
+		});
+	}
+
+	/**
+	 * Creates a stream holding ping, unknown, pong and getaddr messages
+	 */
+	private static BitcoinInputStream getStream(int count) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		BitcoinOutputStream cos = new BitcoinOutputStream(Message.MAGIC_MAINNET, bos);
+		for (int i = 0; i < count; i++) {
+			cos.writeMessage(new Ping(i));
+			cos.writeMessage(new EmptyMessage("notacommand"));
+			cos.writeMessage(new Pong(i));
+			cos.writeMessage(new EmptyMessage("getaddr"));
+		}
+		BitcoinInputStream in = new BitcoinInputStream(Message.MAGIC_MAINNET, new ByteArrayInputStream(bos.toByteArray()));
+		in.setVersion(Version.VERSION);
+		return in;
+	}
+
+	private static class EmptyMessage extends Message {
+
+		public EmptyMessage(String command) {
+			super(command);
+		}
+
+		@Override
+		public void write(int version, EndianDataOutputStream out) throws IOException {
+		}
+
+		@Override
+		public int getSerializedSize(int version) {
+			return 0;
+		}
+
+	}
+
+}
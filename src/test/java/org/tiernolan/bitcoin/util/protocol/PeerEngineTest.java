@@ -0,0 +1,306 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.message.Headers;
+import org.tiernolan.bitcoin.util.protocol.message.Ping;
+import org.tiernolan.bitcoin.util.protocol.message.Pong;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+
+public class PeerEngineTest {
+
+	@Test
+	public void testBlockingClient() throws IOException, InterruptedException {
+		Random r = new Random(1);
+		PeerEngine engine = new PeerEngine(Message.MAGIC_MAINNET, 0L, 10, r.nextLong(), false, new EchoListener(), 1);
+		try {
+			engine.start();
+			InetSocketAddress address = engine.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+			BitcoinSocket s = new BitcoinSocket("localhost", address.getPort(), Message.MAGIC_MAINNET, 0L, 0, r.nextLong());
+			try {
+				s.setSoTimeout(5000);
+				long nonce = r.nextLong();
+				s.getOutputStream().writeMessage(new Ping(nonce));
+				BitcoinInputStream in = s.getInputStream();
+				in.setVersion(Version.VERSION);
+				assertEquals("Unexpected reply", Message.PONG, in.getCommandId());
+				assertEquals("Nonce mismatch", nonce, in.readPong().getNonce());
+				assertEquals("Connection not counted", 1, engine.getConnectionCount());
+			} finally {
+				s.close();
+			}
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void testServerSocketPeer() throws IOException, InterruptedException {
+		Random r = new Random(2);
+		final BitcoinServerSocket server = new BitcoinServerSocket(0, Message.MAGIC_MAINNET, 0L, 20, r.nextLong(), false);
+		server.setSoTimeout(5000);
+		Thread serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BitcoinSocket s = server.accept();
+					try {
+						BitcoinInputStream in = s.getInputStream();
+						in.setVersion(Version.VERSION);
+						if (in.getCommandId() == Message.PING) {
+							s.getOutputStream().writeMessage(new Pong(in.readPing().getNonce()));
+						}
+						in.getCommandId();
+					} finally {
+						s.close();
+					}
+				} catch (IOException e) {
+				}
+			}
+		});
+		serverThread.start();
+
+		PingListener listener = new PingListener(1);
+		PeerEngine engine = new PeerEngine(Message.MAGIC_MAINNET, 0L, 0, r.nextLong(), false, listener, 1);
+		try {
+			engine.start();
+			PeerConnection connection = engine.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+			assertTrue("Ping was not answered", listener.pongs.await(5, TimeUnit.SECONDS));
+			assertEquals("Nonce mismatch", 0, listener.mismatches.get());
+			assertTrue("Connection not open", connection.isOpen());
+			assertEquals("Remote height not received", 20, connection.getRemoteVersion().getHeight());
+			assertEquals("Version not negotiated", Version.VERSION, connection.getVersion());
+		} finally {
+			engine.close();
+			server.close();
+			serverThread.join(5000);
+		}
+	}
+
+	@Test
+	public void testManyPeers() throws IOException, InterruptedException {
+		int peers = 200;
+		Random r = new Random(3);
+		PeerEngine server = new PeerEngine(Message.MAGIC_MAINNET, 0L, 0, r.nextLong(), false, new EchoListener(), 2);
+		PingListener listener = new PingListener(peers);
+		PeerEngine client = new PeerEngine(Message.MAGIC_MAINNET, 0L, 0, r.nextLong(), false, listener, 2);
+		try {
+			server.start();
+			client.start();
+			InetSocketAddress address = server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			for (int i = 0; i < peers; i++) {
+				client.connect(address);
+			}
+			assertTrue("Pings were not answered", listener.pongs.await(20, TimeUnit.SECONDS));
+			assertEquals("Nonce mismatch", 0, listener.mismatches.get());
+			assertEquals("Client connections dropped", peers, client.getOpenConnections().size());
+			assertEquals("Server connections dropped", peers, server.getOpenConnections().size());
+		} finally {
+			client.close();
+			server.close();
+		}
+		assertEquals("Client connections not closed", 0, client.getConnectionCount());
+		assertEquals("Server connections not closed", 0, server.getConnectionCount());
+	}
+
+	@Test
+	public void testLargeMessage() throws IOException, InterruptedException {
+		Random r = new Random(4);
+		final BlockHeader[] headers = new BlockHeader[Message.MAX_HEADERS];
+		for (int i = 0; i < headers.length; i++) {
+			headers[i] = new BlockHeader(1, getRandomHash(r), getRandomHash(r), i, Message.MIN_POW, 0, 0);
+		}
+		final Headers message = new Headers(Version.VERSION, headers);
+
+		final CountDownLatch received = new CountDownLatch(1);
+		final AtomicReference<Headers> reply = new AtomicReference<Headers>();
+		PeerEngine server = new PeerEngine(Message.MAGIC_MAINNET, 0L, 0, r.nextLong(), false, new EchoListener() {
+			@Override
+			public void onConnect(PeerConnection peer) {
+				try {
+					peer.send(message);
+				} catch (IOException e) {
+					peer.close();
+				}
+			}
+		}, 1);
+		PeerEngine client = new PeerEngine(Message.MAGIC_MAINNET, 0L, 0, r.nextLong(), false, new EchoListener() {
+			@Override
+			public void onMessage(PeerConnection peer, MessageFrame frame) {
+				if (frame.getCommandId() == Message.HEADERS) {
+					try {
+						reply.set(new Headers(peer.getVersion(), frame.getInputStream()));
+					} catch (IOException e) {
+					}
+					received.countDown();
+				}
+			}
+		}, 1);
+		try {
+			server.start();
+			client.start();
+			InetSocketAddress address = server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			client.connect(address);
+			assertTrue("Headers were not received", received.await(5, TimeUnit.SECONDS));
+			assertNotNull("Headers could not be decoded", reply.get());
+			assertArrayEquals("Headers mismatch", headers, reply.get().getBlockHeaders());
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testSelfConnect() throws IOException, InterruptedException {
+		Random r = new Random(5);
+		final CountDownLatch disconnected = new CountDownLatch(2);
+		final AtomicInteger connected = new AtomicInteger();
+		PeerEngine engine = new PeerEngine(Message.MAGIC_MAINNET, 0L, 0, r.nextLong(), false, new EchoListener() {
+			@Override
+			public void onConnect(PeerConnection peer) {
+				connected.incrementAndGet();
+			}
+			@Override
+			public void onDisconnect(PeerConnection peer, IOException cause) {
+				disconnected.countDown();
+			}
+		}, 1);
+		try {
+			engine.start();
+			InetSocketAddress address = engine.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			engine.connect(address);
+			assertTrue("Connection to self was not closed", disconnected.await(5, TimeUnit.SECONDS));
+			assertEquals("Connection to self completed handshake", 0, connected.get());
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void testHandshakeLengthLimit() throws IOException, InterruptedException {
+		Random r = new Random(6);
+		final CountDownLatch disconnected = new CountDownLatch(1);
+		final AtomicReference<IOException> cause = new AtomicReference<IOException>();
+		PeerEngine engine = new PeerEngine(Message.MAGIC_MAINNET, 0L, 0, r.nextLong(), false, new EchoListener() {
+			@Override
+			public void onDisconnect(PeerConnection peer, IOException e) {
+				cause.set(e);
+				disconnected.countDown();
+			}
+		}, 1);
+		try {
+			engine.start();
+			InetSocketAddress address = engine.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			Socket s = new Socket(address.getAddress(), address.getPort());
+			try {
+				// A version header which declares the maximum length
+				ByteBuffer header = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(Message.MAGIC_MAINNET);
+				header.put("version".getBytes("US-ASCII"));
+				header.position(16);
+				header.putInt(FrameDecoder.MAX_LENGTH);
+				s.getOutputStream().write(header.array());
+				s.getOutputStream().flush();
+				assertTrue("Oversized handshake message was accepted", disconnected.await(5, TimeUnit.SECONDS));
+				assertNotNull("Disconnect cause not reported", cause.get());
+			} finally {
+				s.close();
+			}
+		} finally {
+			engine.close();
+		}
+	}
+
+	private static Hash getRandomHash(Random r) {
+		byte[] data = new byte[32];
+		r.nextBytes(data);
+		return new Hash(data);
+	}
+
+	/**
+	 * Replies to pings with pongs
+	 */
+	private static class EchoListener implements PeerListener {
+
+		@Override
+		public void onConnect(PeerConnection peer) {
+		}
+
+		@Override
+		public void onMessage(PeerConnection peer, MessageFrame frame) {
+			if (frame.getCommandId() == Message.PING) {
+				try {
+					peer.send(new Pong(new Ping(peer.getVersion(), frame.getInputStream()).getNonce()));
+				} catch (IOException e) {
+					peer.close();
+				}
+			}
+		}
+
+		@Override
+		public void onDisconnect(PeerConnection peer, IOException cause) {
+		}
+
+	}
+
+	/**
+	 * Sends a ping when each connection opens and counts the matching pongs
+	 */
+	private static class PingListener implements PeerListener {
+
+		private final CountDownLatch pongs;
+		private final AtomicInteger mismatches = new AtomicInteger();
+
+		public PingListener(int count) {
+			this.pongs = new CountDownLatch(count);
+		}
+
+		@Override
+		public void onConnect(PeerConnection peer) {
+			try {
+				peer.send(new Ping(peer.hashCode()));
+			} catch (IOException e) {
+				peer.close();
+			}
+		}
+
+		@Override
+		public void onMessage(PeerConnection peer, MessageFrame frame) {
+			if (frame.getCommandId() == Message.PONG) {
+				try {
+					if (new Pong(peer.getVersion(), frame.getInputStream()).getNonce() != peer.hashCode()) {
+						mismatches.incrementAndGet();
+					}
+				} catch (IOException e) {
+					mismatches.incrementAndGet();
+				}
+				pongs.countDown();
+			}
+		}
+
+		@Override
+		public void onDisconnect(PeerConnection peer, IOException cause) {
+		}
+
+	}
+
+}
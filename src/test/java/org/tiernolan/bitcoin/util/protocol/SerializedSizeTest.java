@@ -0,0 +1,82 @@
+package org.tiernolan.bitcoin.util.protocol;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Random;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
+import org.tiernolan.bitcoin.util.protocol.message.GetHeaders;
+import org.tiernolan.bitcoin.util.protocol.message.Headers;
+import org.tiernolan.bitcoin.util.protocol.message.Inv;
+import org.tiernolan.bitcoin.util.protocol.message.Ping;
+import org.tiernolan.bitcoin.util.protocol.message.Pong;
+import org.tiernolan.bitcoin.util.protocol.message.Verack;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+import org.tiernolan.bitcoin.util.protocol.types.InvVector;
+import org.tiernolan.bitcoin.util.protocol.types.NetAddress;
+import org.tiernolan.bitcoin.util.protocol.types.OutPoint;
+import org.tiernolan.bitcoin.util.protocol.types.Transaction;
+import org.tiernolan.bitcoin.util.protocol.types.TxIn;
+import org.tiernolan.bitcoin.util.protocol.types.TxOut;
+import org.tiernolan.bitcoin.util.protocol.types.VarInt;
+import org.tiernolan.bitcoin.util.protocol.types.VarString;
+
+public class SerializedSizeTest {
+
+	@Test
+	public void testSizes() throws IOException {
+		Random r = new Random(1);
+
+		long[] values = new long[] {0, 0xFC, 0xFD, 0xFFFF, 0x10000, 0xFFFFFFFFL, 0x100000000L, -1};
+		for (long value : values) {
+			checkSize(new VarInt(value));
+		}
+		checkSize(new VarString(""));
+		checkSize(new VarString("/Satoshi:0.8.6/"));
+		checkSize(getRandomHash(r));
+		checkSize(new NetAddress(InetAddress.getLoopbackAddress(), 8333, 1L));
+		checkSize(new NetAddress(InetAddress.getLoopbackAddress(), 8333, 1L, 12345));
+		checkSize(new InvVector(1, getRandomHash(r)));
+		checkSize(new OutPoint(getRandomHash(r), 3));
+
+		BlockHeader header = new BlockHeader(1, getRandomHash(r), getRandomHash(r), 0, Message.MIN_POW, 0, 0);
+		checkSize(header);
+
+		byte[] script = new byte[300];
+		r.nextBytes(script);
+		TxIn[] in = new TxIn[] {new TxIn(new OutPoint(getRandomHash(r), 0), script, -1)};
+		TxOut[] out = new TxOut[] {new TxOut(50, script), new TxOut(25, new byte[0])};
+		checkSize(in[0]);
+		checkSize(out[0]);
+		checkSize(new Transaction(1, in, out, 0));
+
+		checkSize(new Version(1L, 1000L, InetAddress.getLoopbackAddress(), 8333, null, 0, r.nextLong(), 100, true));
+		checkSize(new Verack());
+		checkSize(new Ping(r.nextLong()));
+		checkSize(new Pong(r.nextLong()));
+		checkSize(new Inv(new InvVector[] {new InvVector(1, getRandomHash(r)), new InvVector(2, getRandomHash(r))}));
+		checkSize(new GetHeaders(Version.VERSION, new Hash[] {getRandomHash(r), getRandomHash(r)}, null));
+		checkSize(new Headers(Version.VERSION, new BlockHeader[] {header, header}));
+	}
+
+	private static void checkSize(MessageType messageType) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		EndianDataOutputStream eos = new EndianDataOutputStream(bos);
+		messageType.write(Version.VERSION, eos);
+		eos.flush();
+		assertEquals("Serialized size mismatch for " + messageType.getClass().getSimpleName(), bos.size(), messageType.getSerializedSize(Version.VERSION));
+	}
+
+	private static Hash getRandomHash(Random r) {
+		byte[] data = new byte[32];
+		r.nextBytes(data);
+		return new Hash(data);
+	}
+
+}
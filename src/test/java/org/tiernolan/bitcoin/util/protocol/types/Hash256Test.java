@@ -0,0 +1,87 @@
+package org.tiernolan.bitcoin.util.protocol.types;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
+
+public class Hash256Test {
+
+	@Test
+	public void encodeTest() throws IOException {
+
+		Random r = new Random();
+
+		for (int i = 0; i < 20; i++) {
+			byte[] input = new byte[32];
+			r.nextBytes(input);
+
+			Hash hash = new Hash(input);
+			Hash256 h = new Hash256(hash);
+
+			assertArrayEquals("Data mismatch", input, h.getData());
+			assertEquals("Hash conversion error", hash, h.toHash());
+			assertTrue("Hash match error", h.matches(hash));
+			assertEquals("Array constructor error", h, new Hash256(input, 0));
+
+			ByteBuffer buf = ByteBuffer.allocate(36);
+			buf.position(4);
+			buf.put(input);
+			assertEquals("Buffer constructor error", h, new Hash256(buf, 4));
+
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			EndianDataOutputStream eos = new EndianDataOutputStream(bos);
+			h.write(0, eos);
+			eos.flush();
+			assertArrayEquals("Encoding error", input, bos.toByteArray());
+
+			EndianDataInputStream eis = new EndianDataInputStream(new ByteArrayInputStream(input));
+			assertEquals("Decoding error", h, new Hash256(0, eis));
+		}
+	}
+
+	@Test
+	public void compareTest() {
+
+		Random r = new Random();
+
+		HashMap<Hash256, Integer> map = new HashMap<Hash256, Integer>();
+		Hash256 previous = null;
+		for (int i = 0; i < 200; i++) {
+			byte[] data = new byte[32];
+			r.nextBytes(data);
+			if (previous != null && (i & 3) == 0) {
+				// Differ only in the first byte, so the low word decides the order
+				previous.getData(data, 0);
+				data[0]++;
+			}
+			Hash256 h = new Hash256(data, 0);
+			map.put(h, i);
+			if (previous != null) {
+				BigInteger a = new BigInteger(1, h.toHash().getReverseData());
+				BigInteger b = new BigInteger(1, previous.toHash().getReverseData());
+				assertEquals("Comparison error", a.compareTo(b), Integer.signum(h.compareTo(previous)));
+				assertFalse("Different hashes equal", h.equals(previous));
+			}
+			previous = h;
+		}
+		for (Hash256 h : map.keySet()) {
+			assertEquals("Equal hash mismatch", h, new Hash256(h.getData(), 0));
+			assertEquals("Map lookup error", map.get(h), map.get(new Hash256(h.getData(), 0)));
+			assertEquals("Self comparison error", 0, h.compareTo(new Hash256(h.getData(), 0)));
+		}
+	}
+
+}
@@ -1,14 +1,19 @@
 package org.tiernolan.bitcoin.util.protocol.types;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.Test;
+import org.tiernolan.bitcoin.util.encoding.ByteArray;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
 import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
 
@@ -59,4 +64,69 @@ public class HashTest {
 		}
 	}
 
+	@Test
+	public void zeroCopyTest() {
+		
+		Random r = new Random();
+		
+		for (int i = 0; i < 20; i++) {
+			byte[] input = new byte[32];
+			r.nextBytes(input);
+			
+			Hash h = new Hash(input);
+			
+			byte[] buf = new byte[40];
+			h.getData(buf, 5);
+			assertTrue("Data copy error", h.matches(buf, 5));
+			assertFalse("Matched at wrong offset", h.matches(buf, 4));
+			assertFalse("Matched past end of array", h.matches(buf, 10));
+			
+			h.getReverseData(buf, 8);
+			for (int j = 0; j < 32; j++) {
+				assertEquals("Reverse copy error", input[31 - j], buf[8 + j]);
+			}
+			
+			ByteBuffer bb = ByteBuffer.allocate(40);
+			bb.position(3);
+			bb.put(input);
+			Hash h2 = new Hash(bb, 3, 32);
+			assertEquals("Buffer constructor error", h, h2);
+			assertEquals("Buffer position changed", 35, bb.position());
+			assertTrue("Buffer match error", h.matches(bb, 3));
+			assertFalse("Buffer matched at wrong offset", h.matches(bb, 2));
+			
+			byte[] other = new byte[32];
+			r.nextBytes(other);
+			if (i == 0) {
+				other = h.getReverseData();
+			}
+			BigInteger a = new BigInteger(1, h.getReverseData());
+			BigInteger b = new BigInteger(1, other);
+			assertEquals("Comparison error", Integer.signum(a.compareTo(b)), Integer.signum(h.compareLE(other)));
+			assertEquals("Comparison with ByteArray error", Integer.signum(ByteArray.compare(h.getReverseData(), other)), Integer.signum(h.compareLE(other)));
+		}
+	}
+	
+	@Test
+	public void targetTest() {
+		
+		Random r = new Random();
+		
+		BigInteger[] targets = new BigInteger[] {TargetBits.bitsToTarget(0x1d00FFFF), TargetBits.bitsToTarget(0x1b0404cb), BigInteger.ONE.shiftLeft(255)};
+		for (BigInteger target : targets) {
+			TargetBits bits = new TargetBits(target);
+			for (int i = 0; i < 200; i++) {
+				byte[] data = new byte[32];
+				r.nextBytes(data);
+				// Clear leading bytes of the number so some hashes meet the target
+				for (int j = 31; j >= 32 - (i % 8); j--) {
+					data[j] = 0;
+				}
+				Hash h = new Hash(data);
+				boolean expected = new BigInteger(1, h.getReverseData()).compareTo(bits.getTarget()) <= 0;
+				assertEquals("Target check error", expected, bits.isMetBy(h));
+			}
+		}
+	}
+
 }
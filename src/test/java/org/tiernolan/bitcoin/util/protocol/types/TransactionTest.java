@@ -0,0 +1,83 @@
+package org.tiernolan.bitcoin.util.protocol.types;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.crypt.Digest;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataInputStream;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+
+public class TransactionTest {
+
+	@Test
+	public void testDecode() throws IOException {
+		Random r = new Random(1);
+		byte[] sig = new byte[300];
+		r.nextBytes(sig);
+		byte[] pk = new byte[25];
+		r.nextBytes(pk);
+
+		TxIn[] in = new TxIn[3];
+		for (int i = 0; i < in.length; i++) {
+			in[i] = new TxIn(new OutPoint(getRandomHash(r), i), sig, -1 - i);
+		}
+		TxOut[] out = new TxOut[] {new TxOut(5000000000L, pk), new TxOut(1, new byte[0])};
+		Transaction tx = new Transaction(1, in, out, 12345);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		EndianDataOutputStream eos = new EndianDataOutputStream(bos);
+		tx.write(Version.VERSION, eos);
+		eos.writeLEInt(0x5A5A5A5A);
+		eos.flush();
+		byte[] data = bos.toByteArray();
+		int length = data.length - 4;
+
+		EndianDataInputStream eis = new EndianDataInputStream(new ByteArrayInputStream(data));
+		Transaction decoded = new Transaction(Version.VERSION, eis);
+		assertEquals("Stream not left after transaction", 0x5A5A5A5A, eis.readLEInt());
+
+		byte[] raw = new byte[length];
+		System.arraycopy(data, 0, raw, 0, length);
+		assertEquals("Tx hash mismatch", new Hash(Digest.doubleSHA256(raw)), decoded.getTxHash());
+		assertEquals("Tx hash mismatch", tx.getTxHash(), decoded.getTxHash());
+		assertEquals("Serialized size mismatch", length, decoded.getSerializedSize());
+		assertEquals("Serialized size mismatch", length, tx.getSerializedSize(Version.VERSION));
+
+		assertEquals("Lock time mismatch", 12345, decoded.getLockTime());
+		assertArrayEquals("Inputs mismatch", in, decoded.getInputs());
+		assertArrayEquals("Outputs mismatch", out, decoded.getOutputs());
+		assertArrayEquals("Sig script mismatch", sig, decoded.getInput(2).getSigScript());
+		assertEquals("Value mismatch", 5000000000L, decoded.getOutput(0).getValue());
+
+		byte[] truncated = new byte[length - 1];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		try {
+			new Transaction(Version.VERSION, new EndianDataInputStream(new ByteArrayInputStream(truncated)));
+			fail("Truncated transaction decoded");
+		} catch (EOFException e) {
+		}
+	}
+
+	@Test(expected = EOFException.class)
+	public void testFalseCount() throws IOException {
+		// Version, then an input count of 1000000 with no inputs
+		byte[] data = new byte[] {1, 0, 0, 0, (byte) 0xFE, 0x40, 0x42, 0x0F, 0x00};
+		new Transaction(Version.VERSION, new EndianDataInputStream(new ByteArrayInputStream(data)));
+	}
+
+	private static Hash getRandomHash(Random r) {
+		byte[] data = new byte[32];
+		r.nextBytes(data);
+		return new Hash(data);
+	}
+
+}
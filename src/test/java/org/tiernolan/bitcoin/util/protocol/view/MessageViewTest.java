@@ -0,0 +1,165 @@
+package org.tiernolan.bitcoin.util.protocol.view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import org.tiernolan.bitcoin.util.crypt.Digest;
+import org.tiernolan.bitcoin.util.protocol.Message;
+import org.tiernolan.bitcoin.util.protocol.MessageType;
+import org.tiernolan.bitcoin.util.protocol.endian.EndianDataOutputStream;
+import org.tiernolan.bitcoin.util.protocol.message.Headers;
+import org.tiernolan.bitcoin.util.protocol.message.Inv;
+import org.tiernolan.bitcoin.util.protocol.message.Version;
+import org.tiernolan.bitcoin.util.protocol.types.BlockHeader;
+import org.tiernolan.bitcoin.util.protocol.types.Hash;
+import org.tiernolan.bitcoin.util.protocol.types.InvVector;
+import org.tiernolan.bitcoin.util.protocol.types.OutPoint;
+import org.tiernolan.bitcoin.util.protocol.types.TargetBits;
+import org.tiernolan.bitcoin.util.protocol.types.VarInt;
+
+public class MessageViewTest {
+
+	@Test
+	public void testHeadersView() throws IOException {
+		Random r = new Random(1);
+		BlockHeader[] headers = new BlockHeader[100];
+		Hash prev = getRandomHash(r);
+		for (int i = 0; i < headers.length; i++) {
+			headers[i] = new BlockHeader(2, prev, getRandomHash(r), 1000 + i, Message.MIN_POW, r.nextInt(), 0);
+			prev = headers[i].getBlockHash();
+		}
+		byte[] payload = serialize(new Headers(Version.VERSION, headers));
+
+		// Leading bytes check that views respect the buffer position
+		ByteBuffer buf = ByteBuffer.allocate(payload.length + 3);
+		buf.position(3);
+		buf.put(payload);
+		buf.position(3);
+
+		HeadersView view = new HeadersView(buf);
+		assertEquals("Header count mismatch", headers.length, view.size());
+		assertEquals("Length mismatch", payload.length, view.getLength());
+
+		int i = 0;
+		for (BlockHeaderView h : view) {
+			assertTrue("Previous hash mismatch", h.isPrevious(headers[i].getPrevious()));
+			assertEquals("Previous hash mismatch", headers[i].getPrevious(), h.getPrevious());
+			assertEquals("Merkle root mismatch", headers[i].getMerkle(), h.getMerkle());
+			assertEquals("Bits mismatch", headers[i].getTarget().getBits(), h.getBits());
+			assertEquals("Timestamp mismatch", headers[i].getTimestamp(), h.getTimestamp());
+			assertEquals("Nonce mismatch", headers[i].getNonce(), h.getNonce());
+			assertEquals("Version mismatch", headers[i].getVersion(), h.getVersion());
+			assertEquals("Block hash mismatch", headers[i].getBlockHash(), h.getBlockHash());
+			if (i > 0) {
+				assertTrue("Headers not linked", view.isPrevious(i, headers[i - 1].getBlockHash()));
+				assertFalse("Headers linked to wrong header", view.isPrevious(i, headers[i].getBlockHash()));
+			}
+			assertEquals("Bits mismatch by index", h.getBits(), view.getBits(i));
+			i++;
+		}
+		assertEquals("Iteration count mismatch", headers.length, i);
+		assertArrayEquals("Decoded headers mismatch", headers, view.toBlockHeaders());
+		assertEquals("Target mismatch", headers[5].getTarget(), new TargetBits(TargetBits.bitsToTarget(view.getBits(5))));
+	}
+
+	@Test
+	public void testInvView() throws IOException {
+		Random r = new Random(2);
+		InvVector[] invs = new InvVector[50];
+		for (int i = 0; i < invs.length; i++) {
+			invs[i] = new InvVector(1 + (i & 1), getRandomHash(r));
+		}
+		byte[] payload = serialize(new Inv(invs));
+		InvView view = new InvView(ByteBuffer.wrap(payload));
+		assertEquals("Inv count mismatch", invs.length, view.size());
+		assertEquals("Length mismatch", payload.length, view.getLength());
+		for (int i = 0; i < invs.length; i++) {
+			assertEquals("Type mismatch", invs[i].getType(), view.getType(i));
+			assertTrue("Hash mismatch", view.hashEquals(i, invs[i].getTxHash()));
+			assertEquals("Inv vector mismatch", invs[i], view.getInvVector(i));
+		}
+	}
+
+	@Test
+	public void testTransactionView() throws IOException {
+		Random r = new Random(3);
+		Hash prevTx = getRandomHash(r);
+		byte[] sig = new byte[300];
+		r.nextBytes(sig);
+		byte[] pk = new byte[25];
+		r.nextBytes(pk);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		EndianDataOutputStream out = new EndianDataOutputStream(bos);
+		out.writeLEInt(1);
+		new VarInt(2).write(Version.VERSION, out);
+		for (int i = 0; i < 2; i++) {
+			new OutPoint(prevTx, i).write(Version.VERSION, out);
+			new VarInt(sig.length).write(Version.VERSION, out);
+			out.write(sig);
+			out.writeLEInt(-1 - i);
+		}
+		new VarInt(1).write(Version.VERSION, out);
+		out.writeLELong(5000000000L);
+		new VarInt(pk.length).write(Version.VERSION, out);
+		out.write(pk);
+		out.writeLEInt(12345);
+		out.flush();
+		byte[] tx = bos.toByteArray();
+
+		TransactionView view = new TransactionView(ByteBuffer.wrap(tx));
+		assertEquals("Length mismatch", tx.length, view.getLength());
+		assertEquals("Version mismatch", 1, view.getVersion());
+		assertEquals("Input count mismatch", 2, view.getInputCount());
+		assertEquals("Output count mismatch", 1, view.getOutputCount());
+		for (int i = 0; i < 2; i++) {
+			assertTrue("Previous hash mismatch", view.isPreviousTxHash(i, prevTx));
+			assertEquals("Previous index mismatch", i, view.getPreviousIndex(i));
+			assertArrayEquals("Sig script mismatch", sig, view.getSigScript(i));
+			assertEquals("Sequence mismatch", -1 - i, view.getSequence(i));
+		}
+		assertEquals("Value mismatch", 5000000000L, view.getValue(0));
+		assertArrayEquals("Pub key script mismatch", pk, view.getPubKeyScript(0));
+		assertEquals("Lock time mismatch", 12345, view.getLockTime());
+		assertEquals("Tx hash mismatch", new Hash(Digest.doubleSHA256(tx)), view.getTxHash());
+
+		byte[] truncated = new byte[tx.length - 1];
+		System.arraycopy(tx, 0, truncated, 0, truncated.length);
+		try {
+			new TransactionView(ByteBuffer.wrap(truncated));
+			fail("Truncated transaction accepted");
+		} catch (IOException e) {
+		}
+
+		byte[] falseCount = new byte[] {1, 0, 0, 0, (byte) 0xFE, 0x40, 0x42, 0x0F, 0x00};
+		try {
+			new TransactionView(ByteBuffer.wrap(falseCount));
+			fail("Input count larger than the data accepted");
+		} catch (IOException e) {
+		}
+	}
+
+	private static byte[] serialize(MessageType messageType) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		EndianDataOutputStream eos = new EndianDataOutputStream(bos);
+		messageType.write(Version.VERSION, eos);
+		eos.flush();
+		return bos.toByteArray();
+	}
+
+	private static Hash getRandomHash(Random r) {
+		byte[] data = new byte[32];
+		r.nextBytes(data);
+		return new Hash(data);
+	}
+
+}